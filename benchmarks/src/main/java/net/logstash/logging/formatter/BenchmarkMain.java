@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the GC profiler, once with 1, 4 and all available
+ * threads, so both the ops/s and the B/op of a change can be compared.
+ *
+ * The usual JMH command line options are accepted, e.g. a benchmark regex
+ * or {@code -p shape=PLAIN,MDC}. Passing {@code -t} runs that thread count only.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        final int[] threads = commandLine.getThreads().hasValue()
+                ? new int[] {commandLine.getThreads().get()}
+                : new int[] {1, 4, Runtime.getRuntime().availableProcessors()};
+        for (int count : threads) {
+            final OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(commandLine);
+            if (commandLine.getIncludes().isEmpty()) {
+                builder.include(LogstashUtilFormatterBenchmark.class.getSimpleName());
+            }
+            final Options options = builder
+                    .threads(count)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObjectBuilder;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.MDC;
+import org.jboss.logmanager.NDC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the formatter for the record shapes seen in practice.
+ *
+ * Run through {@link BenchmarkMain} to get the allocation rate per
+ * operation for 1, 4 and all available threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogstashUtilFormatterBenchmark {
+
+    private static final String TAGS = "net.logstash.logging.formatter.LogstashUtilFormatter.tags";
+    private static final String FIELDS = "net.logstash.logging.formatter.LogstashUtilFormatter.fields";
+    private static final JsonBuilderFactory BUILDER = Json.createBuilderFactory(null);
+
+    /**
+     * The shape of the formatted record.
+     */
+    public enum Shape {
+        /** A constant message. */
+        PLAIN,
+        /** A {@code {0}} message with parameters. */
+        BRACE,
+        /** A {@code %s} message with parameters. */
+        PRINTF,
+        /** A record with 32 MDC entries. */
+        MDC,
+        /** A record with a nested diagnostic context. */
+        NDC,
+        /** A record with an exception and four nested causes. */
+        EXCEPTION,
+        /** A formatter with 32 custom fields and 16 tags. */
+        FIELDS
+    }
+
+    @Param
+    public Shape shape;
+
+    private LogstashUtilFormatter formatter;
+    private ExtLogRecord record;
+
+    /**
+     * The output buffer of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Output {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+    }
+
+    @Setup
+    public void setUp() {
+        if (shape == Shape.FIELDS) {
+            StringBuilder fields = new StringBuilder();
+            StringBuilder tags = new StringBuilder();
+            for (int i = 0; i < 32; i++) {
+                fields.append(i == 0 ? "" : ",").append("field").append(i).append(":value").append(i);
+            }
+            for (int i = 0; i < 16; i++) {
+                tags.append(i == 0 ? "" : ",").append("tag").append(i);
+            }
+            System.setProperty(FIELDS, fields.toString());
+            System.setProperty(TAGS, tags.toString());
+        } else {
+            System.setProperty(FIELDS, "environment:production");
+            System.setProperty(TAGS, "foo,bar");
+        }
+        formatter = new LogstashUtilFormatter();
+
+        record = new ExtLogRecord(Level.INFO, "Request handled", LogstashUtilFormatterBenchmark.class.getName());
+        record.setLoggerName("net.logstash.logging.formatter.Benchmark");
+        record.setSourceClassName("net.logstash.logging.formatter.LogstashUtilFormatterBenchmark");
+        record.setSourceMethodName("setUp");
+        switch (shape) {
+            case BRACE:
+                record.setMessage("Request {0} handled in {1} ms by {2}");
+                record.setParameters(new Object[] {"GET /index.html", 12, "worker-1"});
+                break;
+            case PRINTF:
+                record.setMessage("Request %s handled in %s ms by %s");
+                record.setParameters(new Object[] {"GET /index.html", 12, "worker-1"});
+                break;
+            case MDC:
+                for (int i = 0; i < 32; i++) {
+                    MDC.put("key" + i, "value " + i);
+                }
+                break;
+            case NDC:
+                NDC.push("request-42");
+                NDC.push("session \"abc\"");
+                break;
+            case EXCEPTION:
+                record.setLevel(Level.SEVERE);
+                record.setThrown(exceptionChain(4));
+                break;
+            default:
+                break;
+        }
+        // snapshot the thread bound contexts so every benchmark thread sees them
+        record.copyAll();
+        MDC.clear();
+        NDC.clear();
+    }
+
+    private static Throwable exceptionChain(final int causes) {
+        final Throwable cause = causes > 0 ? exceptionChain(causes - 1) : null;
+        return deepStack(20, new IllegalStateException("Failure at level " + causes, cause));
+    }
+
+    private static Throwable deepStack(final int frames, final Throwable template) {
+        if (frames > 0) {
+            return deepStack(frames - 1, template);
+        }
+        template.fillInStackTrace();
+        return template;
+    }
+
+    @Benchmark
+    public String format() {
+        return formatter.format(record);
+    }
+
+    @Benchmark
+    public int formatToByteBuffer(final Output output) {
+        output.buffer.clear();
+        return formatter.formatTo(record, output.buffer);
+    }
+
+    @Benchmark
+    public String formatMessage() {
+        return formatter.formatMessage(record);
+    }
+
+    @Benchmark
+    public JsonObjectBuilder addThrowableInfo() {
+        final JsonObjectBuilder builder = BUILDER.createObjectBuilder();
+        formatter.addThrowableInfo(record, builder);
+        return builder;
+    }
+}
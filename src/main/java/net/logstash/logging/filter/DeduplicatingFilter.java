@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.filter;
+
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Filter collapsing the repeats of a record into a single record.
+ *
+ * Records are fingerprinted by logger, level, message template and
+ * exception class. The first record of a fingerprint is let through and
+ * opens a window, the repeats within the window are only counted. Once the
+ * window is over, the repeats are published as one
+ * {@link RepeatedLogRecord}, a copy of the first record carrying the
+ * number of repeats and the time of the first and last one.
+ *
+ * Closed windows are swept at most once per window, while records are
+ * filtered and by the timer once they stop, and every window is closed when
+ * the handler of the filter is flushed or closed. The fingerprints are kept
+ * in a bounded map, records of new fingerprints are let through unchanged
+ * while it is full.
+ */
+public class DeduplicatingFilter extends SummarizingFilter {
+
+    private final ConcurrentMap<Fingerprint, Burst> bursts = new ConcurrentHashMap<Fingerprint, Burst>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+    private final LongAdder collapsed = new LongAdder();
+
+    private volatile long windowNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile int maxEntries = 1024;
+
+    public DeduplicatingFilter() {
+    }
+
+    @Override
+    public boolean isLoggable(final LogRecord record) {
+        if (isSummary(record)) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        final long window = windowNanos;
+        final long sweep = nextSweep.get();
+        if (now - sweep >= 0 && nextSweep.compareAndSet(sweep, now + window)) {
+            sweep(now, window);
+        }
+        final Fingerprint fingerprint = new Fingerprint(record);
+        Burst burst = bursts.get(fingerprint);
+        while (true) {
+            if (burst != null && now - burst.start < window && burst.repeat(record.getMillis())) {
+                collapsed.increment();
+                return false;
+            }
+            if (burst == null && bursts.size() >= maxEntries) {
+                return true;
+            }
+            final ExtLogRecord original = ExtLogRecord.wrap(record);
+            // the copy of the record is published later, possibly by the timer thread
+            original.copyMdc();
+            final Burst next = new Burst(original, now);
+            if (burst == null ? bursts.putIfAbsent(fingerprint, next) == null
+                    : bursts.replace(fingerprint, burst, next)) {
+                if (burst != null) {
+                    close(burst);
+                }
+                startSweeping();
+                return true;
+            }
+            burst = bursts.get(fingerprint);
+        }
+    }
+
+    @Override
+    void sweep(final long now) {
+        sweep(now, windowNanos);
+    }
+
+    @Override
+    long sweepPeriodNanos() {
+        return windowNanos;
+    }
+
+    private void sweep(final long now, final long window) {
+        for (Entry<Fingerprint, Burst> entry : bursts.entrySet()) {
+            final Burst burst = entry.getValue();
+            if (now - burst.start >= window && bursts.remove(entry.getKey(), burst)) {
+                close(burst);
+            }
+        }
+    }
+
+    private void close(final Burst burst) {
+        final long count = burst.close();
+        if (count > 0) {
+            publish(new RepeatedLogRecord(burst.original, count, burst.first.get(), burst.last.get()));
+        }
+    }
+
+    /**
+     * Publish the repeats counted so far, closing every window.
+     */
+    @Override
+    public void flush() {
+        for (Entry<Fingerprint, Burst> entry : bursts.entrySet()) {
+            if (bursts.remove(entry.getKey(), entry.getValue())) {
+                close(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Set how long the repeats of a record are collapsed.
+     *
+     * @param window the window in milliseconds
+     */
+    public void setWindow(final long window) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+        restartSweeping();
+    }
+
+    public long getWindow() {
+        return TimeUnit.NANOSECONDS.toMillis(windowNanos);
+    }
+
+    /**
+     * Set the number of fingerprints tracked at once.
+     *
+     * @param maxEntries the number of fingerprints
+     */
+    public void setMaxEntries(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Get the number of records collapsed so far.
+     *
+     * @return the number of records
+     */
+    public long getCollapsedCount() {
+        return collapsed.sum();
+    }
+
+    private static final class Fingerprint {
+
+        private final String loggerName;
+        private final Level level;
+        private final String message;
+        private final Class<?> thrown;
+        private final int hash;
+
+        Fingerprint(final LogRecord record) {
+            this.loggerName = record.getLoggerName();
+            this.level = record.getLevel();
+            this.message = record.getMessage();
+            this.thrown = record.getThrown() != null ? record.getThrown().getClass() : null;
+            int h = loggerName != null ? loggerName.hashCode() : 0;
+            h = 31 * h + level.hashCode();
+            h = 31 * h + (message != null ? message.hashCode() : 0);
+            this.hash = 31 * h + (thrown != null ? thrown.hashCode() : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            final Fingerprint other = (Fingerprint) obj;
+            return hash == other.hash && level.equals(other.level) && thrown == other.thrown
+                    && equal(loggerName, other.loggerName) && equal(message, other.message);
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * The repeats of a record within a window.
+     */
+    private static final class Burst {
+
+        final ExtLogRecord original;
+        final long start;
+        /** The number of repeats, -1 once closed. */
+        private final AtomicLong count = new AtomicLong();
+        final LongAccumulator first = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        final LongAccumulator last = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+        Burst(final ExtLogRecord original, final long start) {
+            this.original = original;
+            this.start = start;
+        }
+
+        boolean repeat(final long millis) {
+            // before counting, so whoever closes the burst sees the times of all repeats counted
+            first.accumulate(millis);
+            last.accumulate(millis);
+            while (true) {
+                final long current = count.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        long close() {
+            return count.getAndSet(-1L);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.ExtLogRecord.FormatStyle;
+
+/**
+ * Filter limiting the records of every logger and level to a rate.
+ *
+ * Each logger and level has its own token bucket, refilled at {@code rate}
+ * records per second and holding up to {@code burst} records. The buckets
+ * are a single atomic arrival time each, so records are let through or
+ * rejected without locking, and rejected records are counted in striped
+ * counters. Records at DEBUG and below can also be sampled with a fixed
+ * probability before they reach the buckets.
+ *
+ * The number of rejected records is reported with a summary record at the
+ * level of the rejected records, once its bucket would let a record through
+ * again, at least every {@code summaryInterval} while the records are still
+ * being rejected, and when the handler of the filter is flushed or closed.
+ * The summary holds the count in the {@code suppressed} MDC entry and is
+ * never filtered itself.
+ */
+public class RateLimitingFilter extends SummarizingFilter {
+
+    private static final int MAX_LOGGERS = 4096;
+    /** Buckets per logger, far more levels than any logger uses. */
+    private static final int MAX_LEVELS = 16;
+    private static final int DEBUG = Level.FINE.intValue();
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** The name the buckets of the loggers beyond {@link #MAX_LOGGERS} are summarized under. */
+    private static final String OVERFLOW = "";
+
+    private final ConcurrentMap<String, AtomicReferenceArray<Bucket>> loggers =
+            new ConcurrentHashMap<String, AtomicReferenceArray<Bucket>>();
+    /** Buckets of the loggers beyond {@link #MAX_LOGGERS}. */
+    private final AtomicReferenceArray<Bucket> overflow = new AtomicReferenceArray<Bucket>(MAX_LEVELS);
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+
+    private volatile double rate = 100;
+    private volatile int burst;
+    private volatile Map<Integer, Double> levelRates = new HashMap<Integer, Double>();
+    private volatile double sampleRate = 1.0;
+    private volatile long summaryIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+
+    public RateLimitingFilter() {
+    }
+
+    @Override
+    public boolean isLoggable(final LogRecord record) {
+        if (isSummary(record)) {
+            return true;
+        }
+        final int level = record.getLevel().intValue();
+        final double sampleRate = this.sampleRate;
+        if (level <= DEBUG && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.increment();
+            return false;
+        }
+        final Bucket bucket = bucket(record.getLoggerName(), record.getLevel());
+        if (bucket == null) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        if (bucket.tryAcquire(now)) {
+            if (bucket.hasSuppressed() && bucket.claimSummary(now, 0L)) {
+                summarize(record.getLoggerName(), bucket);
+            }
+            return true;
+        }
+        bucket.suppressed.increment();
+        suppressed.increment();
+        startSweeping();
+        if (bucket.claimSummary(now, summaryIntervalNanos)) {
+            summarize(record.getLoggerName(), bucket);
+        }
+        return false;
+    }
+
+    /**
+     * Summarize the buckets that would let a record through again, for the
+     * loggers that went quiet while they were being limited.
+     */
+    @Override
+    void sweep(final long now) {
+        for (Map.Entry<String, AtomicReferenceArray<Bucket>> entry : loggers.entrySet()) {
+            sweep(entry.getKey(), entry.getValue(), now, false);
+        }
+        sweep(OVERFLOW, overflow, now, false);
+    }
+
+    @Override
+    public void flush() {
+        final long now = System.nanoTime();
+        for (Map.Entry<String, AtomicReferenceArray<Bucket>> entry : loggers.entrySet()) {
+            sweep(entry.getKey(), entry.getValue(), now, true);
+        }
+        sweep(OVERFLOW, overflow, now, true);
+    }
+
+    private void sweep(final String loggerName, final AtomicReferenceArray<Bucket> buckets, final long now,
+            final boolean all) {
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            final Bucket bucket = buckets.get(i);
+            if (bucket == null) {
+                return;
+            }
+            if (bucket.hasSuppressed() && (all || bucket.isOpen(now)) && bucket.claimSummary(now, 0L)) {
+                summarize(loggerName, bucket);
+            }
+        }
+    }
+
+    @Override
+    long sweepPeriodNanos() {
+        return Math.min(summaryIntervalNanos, SECOND_NANOS);
+    }
+
+    private Bucket bucket(final String loggerName, final Level level) {
+        final String name = loggerName == null ? "" : loggerName;
+        AtomicReferenceArray<Bucket> buckets = loggers.get(name);
+        if (buckets == null) {
+            if (loggers.size() >= MAX_LOGGERS) {
+                buckets = overflow;
+            } else {
+                final AtomicReferenceArray<Bucket> created = new AtomicReferenceArray<Bucket>(MAX_LEVELS);
+                buckets = loggers.putIfAbsent(name, created);
+                if (buckets == null) {
+                    buckets = created;
+                }
+            }
+        }
+        final int value = level.intValue();
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket == null) {
+                final double rate = rateOf(value);
+                if (rate <= 0) {
+                    // not limited, not worth a slot either
+                    return null;
+                }
+                final int burst = this.burst;
+                bucket = new Bucket(level, rate, burst > 0 ? burst : Math.max(1, (int) Math.ceil(rate)));
+                if (buckets.compareAndSet(i, null, bucket)) {
+                    return bucket;
+                }
+                bucket = buckets.get(i);
+            }
+            if (bucket.level.intValue() == value) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    private double rateOf(final int level) {
+        final Double rate = levelRates.get(level);
+        return rate != null ? rate : this.rate;
+    }
+
+    private void summarize(final String name, final Bucket bucket) {
+        final long count = bucket.drainSuppressed();
+        if (count <= 0) {
+            return;
+        }
+        final String loggerName = name == null ? "" : name;
+        final ExtLogRecord summary = new ExtLogRecord(bucket.level, "Suppressed {0} records from logger {1}",
+                FormatStyle.MESSAGE_FORMAT, RateLimitingFilter.class.getName());
+        summary.setParameters(new Object[] {count, loggerName});
+        summary.setLoggerName(loggerName);
+        summary.putMdc("suppressed", Long.toString(count));
+        publish(summary);
+    }
+
+    /**
+     * Set the records per second let through for every logger and level.
+     *
+     * @param rate the rate, 0 or less not to limit
+     */
+    public void setRate(final double rate) {
+        this.rate = rate;
+        reset();
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Set the records let through at once after a quiet period.
+     *
+     * @param burst the burst size, 0 for as many as the rate per second
+     */
+    public void setBurst(final int burst) {
+        this.burst = burst;
+        reset();
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Set the rate of some levels, e.g. {@code DEBUG:10,ERROR:0}.
+     *
+     * @param levelRates comma separated levels and rates
+     * @throws IllegalArgumentException if a level or rate cannot be parsed
+     */
+    public void setLevelRates(final String levelRates) {
+        final Map<Integer, Double> rates = new HashMap<Integer, Double>();
+        if (levelRates != null) {
+            for (String entry : levelRates.split(",")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                final String[] parts = entry.split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Level rate '" + entry.trim() + "' is not LEVEL:rate");
+                }
+                rates.put(parseLevel(parts[0].trim()).intValue(), Double.valueOf(parts[1].trim()));
+            }
+        }
+        this.levelRates = rates;
+        reset();
+    }
+
+    /**
+     * Set the probability of a record at DEBUG or below to be kept.
+     *
+     * @param sampleRate the probability, 1 to keep them all
+     */
+    public void setSampleRate(final double sampleRate) {
+        if (sampleRate < 0.0 || sampleRate > 1.0) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " is not between 0 and 1");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set how often a summary is logged while records are rejected.
+     *
+     * @param summaryInterval the interval in milliseconds
+     */
+    public void setSummaryInterval(final long summaryInterval) {
+        this.summaryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(summaryInterval);
+        restartSweeping();
+    }
+
+    public long getSummaryInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(summaryIntervalNanos);
+    }
+
+    /**
+     * Get the number of records rejected by the rate limits so far.
+     *
+     * @return the number of records
+     */
+    public long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    /**
+     * Get the number of records dropped by sampling so far.
+     *
+     * @return the number of records
+     */
+    public long getSampledOutCount() {
+        return sampledOut.sum();
+    }
+
+    /**
+     * Drop the buckets for the new limits, summarizing first the records
+     * they suppressed.
+     */
+    private void reset() {
+        flush();
+        loggers.clear();
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            overflow.set(i, null);
+        }
+    }
+
+    private static Level parseLevel(final String name) {
+        // registers the DEBUG, TRACE, ... names with Level.parse
+        org.jboss.logmanager.Level.DEBUG.getName();
+        return Level.parse(name);
+    }
+
+    /**
+     * Token bucket of one logger and level, kept as the time at which it
+     * is full again.
+     */
+    private static final class Bucket {
+
+        final Level level;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong fullAt;
+        final LongAdder suppressed = new LongAdder();
+        /** When the last summary was logged. */
+        private final AtomicLong summarizedAt;
+
+        Bucket(final Level level, final double rate, final int burst) {
+            this.level = level;
+            this.intervalNanos = Math.max(1L, (long) (SECOND_NANOS / rate));
+            this.toleranceNanos = intervalNanos * (burst - 1);
+            final long now = System.nanoTime();
+            this.fullAt = new AtomicLong(now);
+            this.summarizedAt = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(final long now) {
+            while (true) {
+                final long current = fullAt.get();
+                final long base = current - now > 0 ? current : now;
+                if (base - now > toleranceNanos) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, base + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Whether a record would be let through now.
+         */
+        boolean isOpen(final long now) {
+            return fullAt.get() - now <= toleranceNanos;
+        }
+
+        boolean hasSuppressed() {
+            return suppressed.sum() > 0;
+        }
+
+        /**
+         * Elect the one thread to log the next summary.
+         */
+        boolean claimSummary(final long now, final long interval) {
+            final long last = summarizedAt.get();
+            return now - last >= interval && summarizedAt.compareAndSet(last, now);
+        }
+
+        long drainSuppressed() {
+            final long count = suppressed.sum();
+            suppressed.add(-count);
+            return count;
+        }
+    }
+}
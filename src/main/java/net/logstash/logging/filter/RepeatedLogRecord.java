@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.filter;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * A record standing for the repeats of another record, which were not
+ * logged themselves.
+ *
+ * The formatter writes the number of repeats and the time of the first and
+ * last one as the {@code repeat_count}, {@code first_timestamp} and
+ * {@code last_timestamp} fields.
+ */
+public class RepeatedLogRecord extends ExtLogRecord {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long repeatCount;
+    private final long firstMillis;
+    private final long lastMillis;
+
+    /**
+     * Create the record of the repeats.
+     *
+     * @param original the record that was repeated, with its MDC already copied
+     * @param repeatCount the number of repeats
+     * @param firstMillis the time of the first repeat
+     * @param lastMillis the time of the last repeat, also the time of this record
+     */
+    public RepeatedLogRecord(final ExtLogRecord original, final long repeatCount, final long firstMillis,
+            final long lastMillis) {
+        super(original);
+        // the caller can no longer be found from here
+        disableCallerCalculation();
+        setMillis(lastMillis);
+        this.repeatCount = repeatCount;
+        this.firstMillis = firstMillis;
+        this.lastMillis = lastMillis;
+    }
+
+    public long getRepeatCount() {
+        return repeatCount;
+    }
+
+    public long getFirstMillis() {
+        return firstMillis;
+    }
+
+    public long getLastMillis() {
+        return lastMillis;
+    }
+}
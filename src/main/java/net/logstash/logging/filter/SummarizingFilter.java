@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.filter;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Filter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A filter reporting the records it rejected with records of its own.
+ *
+ * On a handler of this module the summaries are published to that handler
+ * only, which attaches itself with {@link #attach(Handler, Filter, Filter)}
+ * and has the filter publish what it still holds back when it is flushed or
+ * closed. On a logger they are logged to the logger of the rejected records
+ * instead. A summary is only let through by the filter that created it.
+ *
+ * What is still held back once the records stop is reported by a shared
+ * timer thread, which only keeps a weak reference to the filter.
+ */
+public abstract class SummarizingFilter implements Filter {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "logstash-filter-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final ThreadLocal<LogRecord> publishing = new ThreadLocal<LogRecord>();
+    private volatile Handler handler;
+    private volatile Sweep sweep;
+
+    SummarizingFilter() {
+    }
+
+    /**
+     * Publish the summaries of every record held back so far.
+     */
+    public abstract void flush();
+
+    /**
+     * Publish the summaries of the records no longer being held back, on the timer thread.
+     *
+     * @param now the time in nanoseconds
+     */
+    abstract void sweep(long now);
+
+    /**
+     * Get how often the filter is swept.
+     *
+     * @return the period in nanoseconds
+     */
+    abstract long sweepPeriodNanos();
+
+    /**
+     * Set the handler the summaries are published to.
+     *
+     * @param handler the handler, null to log the summaries to the logger of the rejected records
+     */
+    public void setHandler(final Handler handler) {
+        this.handler = handler;
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Whether the record is a summary being published by this filter.
+     *
+     * @param record the logrecord
+     * @return true if the record has to be let through
+     */
+    final boolean isSummary(final LogRecord record) {
+        return publishing.get() == record;
+    }
+
+    final void publish(final LogRecord summary) {
+        final Handler handler = this.handler;
+        publishing.set(summary);
+        try {
+            if (handler != null) {
+                handler.publish(summary);
+            } else {
+                final String loggerName = summary.getLoggerName();
+                Logger.getLogger(loggerName == null ? "" : loggerName).log(summary);
+            }
+        } finally {
+            publishing.remove();
+        }
+    }
+
+    /**
+     * Start the timer sweeping the filter, once something is held back.
+     */
+    final void startSweeping() {
+        if (sweep == null) {
+            schedule(false);
+        }
+    }
+
+    /**
+     * Sweep at the new period if the timer was started.
+     */
+    final void restartSweeping() {
+        if (sweep != null) {
+            schedule(true);
+        }
+    }
+
+    private synchronized void schedule(final boolean restart) {
+        final Sweep current = sweep;
+        if (current != null) {
+            if (!restart) {
+                return;
+            }
+            current.future.cancel(false);
+        }
+        final Sweep next = new Sweep(this);
+        final long period = Math.max(1L, sweepPeriodNanos());
+        next.future = TIMER.scheduleWithFixedDelay(next, period, period, TimeUnit.NANOSECONDS);
+        sweep = next;
+    }
+
+    /**
+     * Attach a handler of this module to its new filter, detaching it from
+     * the previous one.
+     *
+     * @param handler the handler
+     * @param previous the previous filter of the handler, may be null
+     * @param filter the new filter of the handler, may be null
+     */
+    public static void attach(final Handler handler, final Filter previous, final Filter filter) {
+        if (previous != filter) {
+            detach(handler, previous);
+        }
+        if (filter instanceof SummarizingFilter) {
+            ((SummarizingFilter) filter).setHandler(handler);
+        }
+    }
+
+    /**
+     * Publish the summaries of the filter of a closing handler and detach the handler.
+     *
+     * @param handler the handler
+     * @param filter the filter of the handler, may be null
+     */
+    public static void detach(final Handler handler, final Filter filter) {
+        if (filter instanceof SummarizingFilter && ((SummarizingFilter) filter).handler == handler) {
+            ((SummarizingFilter) filter).flush();
+            ((SummarizingFilter) filter).setHandler(null);
+        }
+    }
+
+    /**
+     * Publish the summaries of the filter of a handler being flushed.
+     *
+     * @param filter the filter of the handler, may be null
+     */
+    public static void flush(final Filter filter) {
+        if (filter instanceof SummarizingFilter) {
+            ((SummarizingFilter) filter).flush();
+        }
+    }
+
+    /**
+     * Sweeps a filter until it is garbage collected.
+     */
+    private static final class Sweep implements Runnable {
+
+        private final WeakReference<SummarizingFilter> filter;
+        volatile ScheduledFuture<?> future;
+
+        Sweep(final SummarizingFilter filter) {
+            this.filter = new WeakReference<SummarizingFilter>(filter);
+        }
+
+        @Override
+        public void run() {
+            final SummarizingFilter filter = this.filter.get();
+            if (filter == null) {
+                final ScheduledFuture<?> future = this.future;
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                filter.sweep(System.nanoTime());
+            } catch (RuntimeException ex) {
+                // the handler reports its own errors, the next sweep tries again
+            }
+        }
+    }
+}
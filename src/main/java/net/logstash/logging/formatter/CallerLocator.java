@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Finds the class and method that logged a record, as far as the caller
+ * policy asks for them.
+ *
+ * The policy is {@code always}, {@code off} or a level from which the
+ * caller is looked up. Below it a record only has the caller it was given
+ * or already inferred, which saves the stack walk
+ * {@link ExtLogRecord#getSourceClassName()} would do.
+ *
+ * The lookup walks the stack of the logging thread up to the first frame
+ * after the logger frames, lazily with {@code java.lang.StackWalker} when
+ * the JVM has it and through a {@link Throwable} otherwise, and sets the
+ * result on the record for the other handlers. The callers are kept per
+ * call site, so that records from the same line share the same strings.
+ *
+ * Instances are immutable apart from the cache and can be shared between
+ * threads.
+ */
+final class CallerLocator {
+
+    static final String ALWAYS = "always";
+    static final String OFF = "off";
+
+    /** The caller of a record whose caller was not looked up. */
+    static final Caller SKIPPED = new Caller(null, null, null, -1);
+
+    private static final Caller UNKNOWN = new Caller(null, null, null, -1);
+    private static final int MAX_CALL_SITES = 1024;
+
+    /** Whether a record still has to infer its caller, null if it cannot be told. */
+    private static final MethodHandle PENDING;
+    /** StackWalker.walk bound to a walker, null before Java 9. */
+    private static final MethodHandle WALK;
+    private static final MethodHandle FRAME_CLASS_NAME;
+    private static final MethodHandle FRAME_METHOD_NAME;
+    private static final MethodHandle FRAME_FILE_NAME;
+    private static final MethodHandle FRAME_LINE_NUMBER;
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle pending = null;
+        try {
+            final Field field = ExtLogRecord.class.getDeclaredField("calculateCaller");
+            field.setAccessible(true);
+            pending = lookup.unreflectGetter(field);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // another version of the log manager
+        }
+        PENDING = pending;
+
+        MethodHandle walk = null;
+        MethodHandle className = null;
+        MethodHandle methodName = null;
+        MethodHandle fileName = null;
+        MethodHandle lineNumber = null;
+        try {
+            final Class<?> walker = Class.forName("java.lang.StackWalker");
+            final Class<?> frame = Class.forName("java.lang.StackWalker$StackFrame");
+            final MethodType getter = MethodType.methodType(String.class, Object.class);
+            walk = lookup.findVirtual(walker, "walk", MethodType.methodType(Object.class, Function.class))
+                    .bindTo(walker.getMethod("getInstance").invoke(null));
+            className = lookup.findVirtual(frame, "getClassName", MethodType.methodType(String.class)).asType(getter);
+            methodName = lookup.findVirtual(frame, "getMethodName", MethodType.methodType(String.class))
+                    .asType(getter);
+            fileName = lookup.findVirtual(frame, "getFileName", MethodType.methodType(String.class)).asType(getter);
+            lineNumber = lookup.findVirtual(frame, "getLineNumber", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Java 8, walk a Throwable
+            walk = null;
+        }
+        WALK = walk;
+        FRAME_CLASS_NAME = className;
+        FRAME_METHOD_NAME = methodName;
+        FRAME_FILE_NAME = fileName;
+        FRAME_LINE_NUMBER = lineNumber;
+    }
+
+    private final String policy;
+    /** The level from which the caller is looked up. */
+    private final int threshold;
+    private final ConcurrentMap<Caller, Caller> callSites = new ConcurrentHashMap<Caller, Caller>();
+
+    /**
+     * Create a locator.
+     *
+     * @param policy {@code always}, {@code off} or the name of the level from which to look up the caller
+     * @throws IllegalArgumentException if the policy is not a level name
+     */
+    CallerLocator(final String policy) {
+        final String trimmed = policy == null ? ALWAYS : policy.trim();
+        if (ALWAYS.equalsIgnoreCase(trimmed) || trimmed.isEmpty()) {
+            this.policy = ALWAYS;
+            this.threshold = Integer.MIN_VALUE;
+        } else if (OFF.equalsIgnoreCase(trimmed)) {
+            this.policy = OFF;
+            this.threshold = Integer.MAX_VALUE;
+        } else {
+            // registers the DEBUG, TRACE, ... names with Level.parse
+            org.jboss.logmanager.Level.DEBUG.getName();
+            final Level level = Level.parse(trimmed);
+            this.policy = level.getName();
+            this.threshold = level.intValue();
+        }
+    }
+
+    /**
+     * Get the caller of a record, looking it up if the policy asks for it.
+     *
+     * @param record the logrecord
+     * @return the caller, {@link #SKIPPED} if it was not looked up
+     */
+    Caller locate(final ExtLogRecord record) {
+        final Boolean pending = pending(record);
+        if (record.getLevel().intValue() < threshold) {
+            return pending == Boolean.FALSE
+                    ? new Caller(record.getSourceClassName(), record.getSourceMethodName(), null, -1) : SKIPPED;
+        }
+        if (pending == Boolean.TRUE) {
+            final Caller caller = walk(record.getLoggerClassName());
+            if (caller != UNKNOWN) {
+                record.setSourceClassName(caller.className);
+                record.setSourceMethodName(caller.methodName);
+                record.setSourceFileName(caller.fileName);
+                record.setSourceLineNumber(caller.lineNumber);
+                return caller;
+            }
+        }
+        return new Caller(record.getSourceClassName(), record.getSourceMethodName(), null, -1);
+    }
+
+    /**
+     * Capture the caller of a record on the logging thread if the policy asks
+     * for it, before the record is formatted on another thread.
+     *
+     * @param record the logrecord
+     */
+    void capture(final ExtLogRecord record) {
+        if (record.getLevel().intValue() >= threshold) {
+            locate(record);
+        }
+    }
+
+    private static Boolean pending(final ExtLogRecord record) {
+        if (PENDING != null) {
+            try {
+                return (boolean) PENDING.invokeExact(record);
+            } catch (Throwable ex) {
+                // fall through
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the first frame after the frames of the logger class.
+     */
+    private Caller walk(final String loggerClassName) {
+        if (loggerClassName == null) {
+            return UNKNOWN;
+        }
+        if (WALK != null) {
+            try {
+                return (Caller) (Object) WALK.invokeExact((Function) new Function<Stream<Object>, Caller>() {
+                    @Override
+                    public Caller apply(final Stream<Object> frames) {
+                        return find(frames.iterator(), loggerClassName);
+                    }
+                });
+            } catch (Throwable ex) {
+                // walk a Throwable
+            }
+        }
+        final StackTraceElement[] trace = new Throwable().getStackTrace();
+        boolean inLogger = false;
+        for (StackTraceElement frame : trace) {
+            final boolean logger = loggerClassName.equals(frame.getClassName());
+            if (inLogger && !logger) {
+                return callSite(new Caller(frame.getClassName(), frame.getMethodName(), frame.getFileName(),
+                        frame.getLineNumber()));
+            }
+            inLogger |= logger;
+        }
+        return UNKNOWN;
+    }
+
+    private Caller find(final Iterator<Object> frames, final String loggerClassName) {
+        try {
+            boolean inLogger = false;
+            while (frames.hasNext()) {
+                final Object frame = frames.next();
+                final String className = (String) FRAME_CLASS_NAME.invokeExact(frame);
+                final boolean logger = loggerClassName.equals(className);
+                if (inLogger && !logger) {
+                    return callSite(new Caller(className, (String) FRAME_METHOD_NAME.invokeExact(frame),
+                            (String) FRAME_FILE_NAME.invokeExact(frame), (int) FRAME_LINE_NUMBER.invokeExact(frame)));
+                }
+                inLogger |= logger;
+            }
+        } catch (Throwable ex) {
+            // unknown
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Get the caller kept for the call site, keeping this one while there is room.
+     */
+    private Caller callSite(final Caller caller) {
+        final Caller kept = callSites.get(caller);
+        if (kept != null) {
+            return kept;
+        }
+        if (callSites.size() >= MAX_CALL_SITES) {
+            return caller;
+        }
+        final Caller previous = callSites.putIfAbsent(caller, caller);
+        return previous != null ? previous : caller;
+    }
+
+    int callSites() {
+        return callSites.size();
+    }
+
+    @Override
+    public String toString() {
+        return policy;
+    }
+
+    /**
+     * A class, method and line logging records.
+     */
+    static final class Caller {
+
+        final String className;
+        final String methodName;
+        final String fileName;
+        final int lineNumber;
+
+        Caller(final String className, final String methodName, final String fileName, final int lineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = className == null ? 0 : className.hashCode();
+            h = 31 * h + (methodName == null ? 0 : methodName.hashCode());
+            return 31 * h + lineNumber;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Caller)) {
+                return false;
+            }
+            final Caller other = (Caller) obj;
+            return lineNumber == other.lineNumber && equal(className, other.className)
+                    && equal(methodName, other.methodName) && equal(fileName, other.fileName);
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Writes events as CBOR (RFC 7049) frames, straight from the fields of the
+ * event without going through its JSON text.
+ *
+ * A frame is the length of the CBOR item in 4 bytes, most significant
+ * first, followed by the item, so every frame decodes on its own. Objects
+ * and arrays have an indefinite length. Keys are encoded once, when the
+ * layout is compiled, and the constant fields of the layout are copied as
+ * encoded then.
+ *
+ * Numbers keep the value of their JSON text: integers beyond 64 bits are
+ * written as bignums (tags 2 and 3) and fractions a double cannot hold as
+ * written, such as big decimal parameters, as decimal fractions (tag 4).
+ *
+ * Instances are not thread-safe, use {@link #get()} to obtain the writer
+ * bound to the current thread.
+ */
+final class CborEventWriter extends EventWriter {
+
+    static final int FRAME_HEADER_SIZE = 4;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_TAG = 6;
+    private static final int TAG_POSITIVE_BIGNUM = 2;
+    private static final int TAG_NEGATIVE_BIGNUM = 3;
+    private static final int TAG_DECIMAL_FRACTION = 4;
+    private static final byte BEGIN_MAP = (byte) 0xbf;
+    private static final byte BEGIN_ARRAY = (byte) 0x9f;
+    private static final byte BREAK = (byte) 0xff;
+    private static final byte FALSE = (byte) 0xf4;
+    private static final byte TRUE = (byte) 0xf5;
+    private static final byte NULL = (byte) 0xf6;
+    private static final byte DOUBLE = (byte) 0xfb;
+
+    private static final ThreadLocal<CborEventWriter> WRITERS = new ThreadLocal<CborEventWriter>() {
+        @Override
+        protected CborEventWriter initialValue() {
+            return new CborEventWriter();
+        }
+    };
+
+    private byte[] out = new byte[INITIAL_CAPACITY];
+    private int len = FRAME_HEADER_SIZE;
+    private final char[] timestamp = new char[TimestampFormatter.MAX_LENGTH];
+
+    CborEventWriter() {
+    }
+
+    /**
+     * Get the writer bound to the current thread, reset and ready for use.
+     *
+     * @return the writer of the current thread
+     */
+    static CborEventWriter get() {
+        final CborEventWriter writer = WRITERS.get();
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * Discard the content, giving back an oversized buffer.
+     */
+    void reset() {
+        if (out.length > MAX_RETAINED_CAPACITY) {
+            out = new byte[INITIAL_CAPACITY];
+        }
+        len = FRAME_HEADER_SIZE;
+    }
+
+    /**
+     * Encode a key once, to be written by the fields of this writer.
+     *
+     * @param key the key
+     * @return the CBOR text string
+     */
+    static byte[] encodeKey(final String key) {
+        final CborEventWriter writer = new CborEventWriter();
+        writer.text(key);
+        return writer.fragment();
+    }
+
+    /**
+     * Get what was written so far, without the frame header, to be copied
+     * into events by {@link #fields(FieldLayout.Constant)}.
+     *
+     * @return the encoded items
+     */
+    byte[] fragment() {
+        return Arrays.copyOfRange(out, FRAME_HEADER_SIZE, len);
+    }
+
+    /**
+     * Complete the frame with the length of the event.
+     *
+     * @return the size of the frame in {@link #bytes()}
+     */
+    int frame() {
+        final int size = len - FRAME_HEADER_SIZE;
+        out[0] = (byte) (size >>> 24);
+        out[1] = (byte) (size >>> 16);
+        out[2] = (byte) (size >>> 8);
+        out[3] = (byte) size;
+        return len;
+    }
+
+    /**
+     * Get the frame completed by {@link #frame()}.
+     *
+     * @return the byte buffer of this writer
+     */
+    byte[] bytes() {
+        return out;
+    }
+
+    @Override
+    CborEventWriter beginObject() {
+        put(BEGIN_MAP);
+        return this;
+    }
+
+    @Override
+    CborEventWriter beginObject(final Key key) {
+        raw(key.cbor);
+        put(BEGIN_MAP);
+        return this;
+    }
+
+    @Override
+    CborEventWriter endObject() {
+        put(BREAK);
+        return this;
+    }
+
+    @Override
+    CborEventWriter beginArray(final Key key) {
+        raw(key.cbor);
+        put(BEGIN_ARRAY);
+        return this;
+    }
+
+    @Override
+    CborEventWriter endArray() {
+        put(BREAK);
+        return this;
+    }
+
+    @Override
+    CborEventWriter field(final Key key, final String value) {
+        raw(key.cbor);
+        return value(value);
+    }
+
+    @Override
+    CborEventWriter field(final Key key, final long value) {
+        raw(key.cbor);
+        return value(value);
+    }
+
+    @Override
+    CborEventWriter field(final Key key, final TimestampFormatter timestamps, final long millis) {
+        raw(key.cbor);
+        // the timestamp is ASCII
+        final int n = timestamps.formatTo(millis, timestamp, 0);
+        head(MAJOR_TEXT, n);
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            out[len++] = (byte) timestamp[i];
+        }
+        return this;
+    }
+
+    @Override
+    CborEventWriter field(final Key key, final StackTraceCache.Entry stackTrace) {
+        raw(key.cbor);
+        text(stackTrace.text);
+        return this;
+    }
+
+    /**
+     * Copy the fields of the constant encoded when the layout was compiled.
+     */
+    @Override
+    CborEventWriter fields(final FieldLayout.Constant constant) {
+        raw(constant.cbor);
+        return this;
+    }
+
+    @Override
+    CborEventWriter value(final String value) {
+        if (value == null) {
+            put(NULL);
+        } else {
+            text(value);
+        }
+        return this;
+    }
+
+    @Override
+    CborEventWriter value(final long value) {
+        if (value >= 0) {
+            head(MAJOR_UNSIGNED, value);
+        } else {
+            head(MAJOR_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    @Override
+    CborEventWriter value(final double value) {
+        final long bits = Double.doubleToLongBits(value);
+        put(DOUBLE);
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[len++] = (byte) (bits >>> shift);
+        }
+        return this;
+    }
+
+    /**
+     * Write a number exactly: an integer as an integer or a bignum, a
+     * fraction as a double if the double reads back as the same decimal,
+     * as a decimal fraction otherwise.
+     */
+    @Override
+    CborEventWriter value(final BigDecimal value) {
+        if (value.scale() <= 0) {
+            return value(value.toBigIntegerExact());
+        }
+        final double d = value.doubleValue();
+        if (!Double.isInfinite(d) && value.compareTo(new BigDecimal(Double.toString(d))) == 0) {
+            return value(d);
+        }
+        head(MAJOR_TAG, TAG_DECIMAL_FRACTION);
+        head(MAJOR_ARRAY, 2);
+        value(-(long) value.scale());
+        return value(value.unscaledValue());
+    }
+
+    @Override
+    CborEventWriter value(final boolean value) {
+        put(value ? TRUE : FALSE);
+        return this;
+    }
+
+    /**
+     * Write an integer of any size, as a bignum beyond 64 bits.
+     */
+    private CborEventWriter value(final BigInteger value) {
+        if (value.bitLength() < 64) {
+            return value(value.longValue());
+        }
+        final BigInteger magnitude;
+        if (value.signum() >= 0) {
+            head(MAJOR_TAG, TAG_POSITIVE_BIGNUM);
+            magnitude = value;
+        } else {
+            head(MAJOR_TAG, TAG_NEGATIVE_BIGNUM);
+            magnitude = value.negate().subtract(BigInteger.ONE);
+        }
+        final byte[] bytes = magnitude.toByteArray();
+        // without the sign byte
+        final int offset = bytes[0] == 0 ? 1 : 0;
+        final int size = bytes.length - offset;
+        head(MAJOR_BYTES, size);
+        ensureCapacity(size);
+        System.arraycopy(bytes, offset, out, len, size);
+        len += size;
+        return this;
+    }
+
+    /**
+     * Write an event built as an object tree, for the layouts whose custom
+     * fields repeat a key.
+     *
+     * @param value the event or one of its values
+     */
+    void tree(final JsonValue value) {
+        switch (value.getValueType()) {
+            case OBJECT:
+                put(BEGIN_MAP);
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+                    text(entry.getKey());
+                    tree(entry.getValue());
+                }
+                put(BREAK);
+                break;
+            case ARRAY:
+                put(BEGIN_ARRAY);
+                for (JsonValue element : (JsonArray) value) {
+                    tree(element);
+                }
+                put(BREAK);
+                break;
+            case STRING:
+                text(((JsonString) value).getString());
+                break;
+            case NUMBER:
+                value(((JsonNumber) value).bigDecimalValue());
+                break;
+            case TRUE:
+                put(TRUE);
+                break;
+            case FALSE:
+                put(FALSE);
+                break;
+            default:
+                put(NULL);
+                break;
+        }
+    }
+
+    /**
+     * Write a text string, unpaired surrogates become {@code '?'}.
+     */
+    private void text(final String s) {
+        final int n = s.length();
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                size++;
+            } else {
+                size += 3;
+            }
+        }
+        head(MAJOR_TEXT, size);
+        ensureCapacity(size);
+        final byte[] b = out;
+        int p = len;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte) (0xf0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                b[p++] = (byte) '?';
+            } else {
+                b[p++] = (byte) (0xe0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        len = p;
+    }
+
+    /**
+     * Write the initial byte of an item and its argument, in the fewest bytes.
+     */
+    private void head(final int major, final long value) {
+        ensureCapacity(9);
+        final int type = major << 5;
+        if (value < 24) {
+            out[len++] = (byte) (type | value);
+        } else if (value <= 0xff) {
+            out[len++] = (byte) (type | 24);
+            out[len++] = (byte) value;
+        } else if (value <= 0xffff) {
+            out[len++] = (byte) (type | 25);
+            out[len++] = (byte) (value >>> 8);
+            out[len++] = (byte) value;
+        } else if (value <= 0xffffffffL) {
+            out[len++] = (byte) (type | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out[len++] = (byte) (value >>> shift);
+            }
+        } else {
+            out[len++] = (byte) (type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out[len++] = (byte) (value >>> shift);
+            }
+        }
+    }
+
+    private void raw(final byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, out, len, bytes.length);
+        len += bytes.length;
+    }
+
+    private void put(final byte b) {
+        ensureCapacity(1);
+        out[len++] = b;
+    }
+
+    private void ensureCapacity(final int extra) {
+        final int required = len + extra;
+        if (required > out.length) {
+            out = Arrays.copyOf(out, Math.max(required, out.length * 2));
+        }
+    }
+}
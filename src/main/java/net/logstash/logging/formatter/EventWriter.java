@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.math.BigDecimal;
+
+/**
+ * The output the formatter writes the fields of an event to, so that every
+ * encoding is driven by the same walk over the layout.
+ *
+ * Keys are given as {@link Key}s, prepared once in the form each output
+ * needs. A value of null is written as the null literal.
+ */
+abstract class EventWriter {
+
+    /**
+     * Begin the event, or an object in an array.
+     *
+     * @return this writer
+     */
+    abstract EventWriter beginObject();
+
+    abstract EventWriter beginObject(Key key);
+
+    abstract EventWriter endObject();
+
+    abstract EventWriter beginArray(Key key);
+
+    abstract EventWriter endArray();
+
+    abstract EventWriter field(Key key, String value);
+
+    abstract EventWriter field(Key key, long value);
+
+    abstract EventWriter field(Key key, TimestampFormatter timestamps, long millis);
+
+    abstract EventWriter field(Key key, StackTraceCache.Entry stackTrace);
+
+    /**
+     * Write the fields of a constant of the layout.
+     *
+     * @param constant the constant fields
+     * @return this writer
+     */
+    abstract EventWriter fields(FieldLayout.Constant constant);
+
+    abstract EventWriter value(String value);
+
+    abstract EventWriter value(long value);
+
+    /**
+     * Write a number.
+     *
+     * @param value the value, finite
+     * @return this writer
+     */
+    abstract EventWriter value(double value);
+
+    abstract EventWriter value(BigDecimal value);
+
+    abstract EventWriter value(boolean value);
+
+    /**
+     * A key of an event, with its escaped JSON and encoded CBOR forms.
+     */
+    static final class Key {
+
+        final String key;
+        /** The quoted and escaped key followed by a colon. */
+        final char[] json;
+        /** The key as a CBOR text string. */
+        final byte[] cbor;
+
+        Key(final String key) {
+            this.key = key;
+            this.json = JsonEventWriter.escapeName(key);
+            this.cbor = CborEventWriter.encodeKey(key);
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+}
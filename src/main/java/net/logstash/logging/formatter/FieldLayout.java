@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The fields of an event in the order they are written, with their keys.
+ *
+ * A layout is a comma separated list of field names, each optionally
+ * followed by a colon and the key to write it under, e.g.
+ * {@code @timestamp,message:msg,stack_trace}. The names {@code default} and
+ * {@code ecs} stand for the fields of the classic event and for the same
+ * fields under Elastic Common Schema keys. Fields left out are never
+ * computed, and the keys are escaped once when the layout is compiled.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+final class FieldLayout {
+
+    /**
+     * A field of the event.
+     */
+    enum Field {
+        TIMESTAMP("@timestamp"),
+        LEVEL("level"),
+        LEVEL_VALUE("level_value"),
+        MESSAGE("message"),
+        /** The message before its parameters are formatted into it. */
+        MESSAGE_TEMPLATE("message_template"),
+        /** The parameters of the message, as typed JSON values. */
+        PARAMS("params"),
+        LOGGER_NAME("logger_name"),
+        THREAD_NAME("thread_name"),
+        HOSTNAME("HOSTNAME"),
+        /** The process id, when known. */
+        PID("pid"),
+        /** The id of the container, when in one. */
+        CONTAINER_ID("container_id"),
+        /** The start time of the JVM in UTC, when known. */
+        JVM_START_TIME("jvm_start_time"),
+        CLASS("class"),
+        METHOD("method"),
+        LINE_NUMBER("line_number"),
+        EXCEPTION_CLASS("exception_class"),
+        EXCEPTION_MESSAGE("exception_message"),
+        STACK_TRACE("stack_trace"),
+        /** A hash of the classes and methods of the stack trace, the same for every repeat of a failure. */
+        STACK_HASH("stack_hash"),
+        NDC("ndc"),
+        /** The custom fields, under their own keys. */
+        CUSTOM_FIELDS("custom_fields"),
+        TAGS("@tags"),
+        MDC("@mdc"),
+        /** The repeat_count, first_timestamp and last_timestamp of a collapsed record. */
+        REPEAT("repeat");
+
+        /** The name in a layout, which is the key in the default layout. */
+        final String name;
+
+        Field(final String name) {
+            this.name = name;
+        }
+
+        static Field named(final String name) {
+            for (Field field : values()) {
+                if (field.name.equals(name)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unknown field '" + name + "' in layout");
+        }
+    }
+
+    static final String DEFAULT = "default";
+    static final String ECS = "ecs";
+    static final String[] REPEAT_KEYS = {"repeat_count", "first_timestamp", "last_timestamp"};
+
+    private static final String DEFAULT_FIELDS = "@timestamp,level,level_value,message,logger_name,thread_name,"
+            + "HOSTNAME,class,method,line_number,exception_class,exception_message,stack_trace,ndc,custom_fields,"
+            + "@tags,@mdc,repeat";
+    private static final String ECS_FIELDS = "@timestamp,level:log.level,message,logger_name:log.logger,"
+            + "thread_name:process.thread.name,HOSTNAME:host.hostname,class:log.origin.class,"
+            + "method:log.origin.function,exception_class:error.type,exception_message:error.message,"
+            + "stack_trace:error.stack_trace,ndc,custom_fields,@tags:tags,@mdc:labels,repeat";
+
+    private final String spec;
+    final Field[] fields;
+    final String[] keys;
+    /** The key of every field, null for the custom fields and the repeat. */
+    final EventWriter.Key[] names;
+    /** The HOSTNAME, process fields, custom fields and tags, null for the other fields. */
+    final Constant[] constants;
+    /** The context the HOSTNAME and process fields were taken from. */
+    final ProcessContext context;
+    /**
+     * Whether an unknown class or method is written as the string "null",
+     * like the classic event always did: only when they come from the
+     * {@code default} fields.
+     */
+    final boolean nullStrings;
+    /** Whether a custom field repeats another key, the event then has to be built as an object tree. */
+    final boolean shadowing;
+
+    private FieldLayout(final String spec, final List<Field> fields, final List<String> keys,
+            final boolean defaults, final ProcessContext context, final String[][] customfields,
+            final String[] tags) {
+        this.spec = spec;
+        this.context = context;
+        this.fields = fields.toArray(new Field[fields.size()]);
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.names = new EventWriter.Key[this.fields.length];
+        this.constants = new Constant[this.fields.length];
+        this.nullStrings = defaults;
+
+        final Set<String> used = new HashSet<String>();
+        boolean shadows = false;
+        for (int i = 0; i < this.fields.length; i++) {
+            final Field field = this.fields[i];
+            if (field == Field.CUSTOM_FIELDS) {
+                constants[i] = new Constant(customfields, null, 0L, null, null);
+                continue;
+            }
+            if (field == Field.REPEAT) {
+                for (final String key : REPEAT_KEYS) {
+                    use(used, key, spec);
+                }
+                continue;
+            }
+            use(used, this.keys[i], spec);
+            names[i] = new EventWriter.Key(this.keys[i]);
+            if (field == Field.HOSTNAME) {
+                constants[i] = strings(this.keys[i], context.hostName);
+            } else if (field == Field.PID) {
+                constants[i] = context.pid < 0 ? Constant.EMPTY : new Constant(null, names[i], context.pid, null, null);
+            } else if (field == Field.CONTAINER_ID) {
+                constants[i] = context.containerId == null ? Constant.EMPTY
+                        : strings(this.keys[i], context.containerId);
+            } else if (field == Field.JVM_START_TIME) {
+                constants[i] = context.startMillis == 0L ? Constant.EMPTY
+                        : strings(this.keys[i], TimestampFormatter.utc().format(context.startMillis));
+            } else if (field == Field.TAGS) {
+                constants[i] = new Constant(null, null, 0L, names[i], tags);
+            }
+        }
+        if (fields.contains(Field.CUSTOM_FIELDS)) {
+            for (final String[] customfield : customfields) {
+                shadows |= !used.add(customfield[0]);
+            }
+        }
+        this.shadowing = shadows;
+    }
+
+    private static void use(final Set<String> used, final String key, final String spec) {
+        if (!used.add(key)) {
+            throw new IllegalArgumentException("Key '" + key + "' is used twice in layout '" + spec + "'");
+        }
+    }
+
+    /**
+     * Compile a layout.
+     *
+     * @param spec the layout, null or empty for the default layout
+     * @param context the host and process of the HOSTNAME and process fields
+     * @param customfields the custom fields
+     * @param tags the tags
+     * @return the compiled layout
+     * @throws IllegalArgumentException if the layout names an unknown field or repeats a field or key
+     */
+    static FieldLayout compile(final String spec, final ProcessContext context, final String[][] customfields,
+            final String[] tags) {
+        final String layout = spec == null || spec.trim().isEmpty() ? DEFAULT : spec.trim();
+        final List<Field> fields = new ArrayList<Field>();
+        final List<String> keys = new ArrayList<String>();
+        final Set<Field> seen = EnumSet.noneOf(Field.class);
+        final boolean defaults = parse(layout, fields, keys, seen);
+        return new FieldLayout(layout, fields, keys, defaults, context, customfields, tags);
+    }
+
+    /**
+     * Parse the entries of a layout.
+     *
+     * @return whether the layout names the {@code default} fields
+     */
+    private static boolean parse(final String layout, final List<Field> fields, final List<String> keys,
+            final Set<Field> seen) {
+        boolean defaults = false;
+        for (final String entry : layout.split(",")) {
+            final String trimmed = entry.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (DEFAULT.equals(trimmed)) {
+                parse(DEFAULT_FIELDS, fields, keys, seen);
+                defaults = true;
+                continue;
+            }
+            if (ECS.equals(trimmed)) {
+                parse(ECS_FIELDS, fields, keys, seen);
+                continue;
+            }
+            final int colon = trimmed.indexOf(':');
+            final Field field = Field.named(colon < 0 ? trimmed : trimmed.substring(0, colon).trim());
+            final String key = colon < 0 ? field.name : trimmed.substring(colon + 1).trim();
+            if (key.isEmpty()) {
+                throw new IllegalArgumentException("Empty key for field '" + field.name + "' in layout");
+            }
+            if ((field == Field.CUSTOM_FIELDS || field == Field.REPEAT) && colon >= 0) {
+                throw new IllegalArgumentException("The " + field.name + " fields keep their own keys");
+            }
+            if (!seen.add(field)) {
+                throw new IllegalArgumentException("Field '" + field.name + "' is used twice in layout");
+            }
+            fields.add(field);
+            keys.add(key);
+        }
+        return defaults;
+    }
+
+    private static Constant strings(final String key, final String value) {
+        return new Constant(new String[][] {{key, value}}, null, 0L, null, null);
+    }
+
+    boolean contains(final Field field) {
+        for (Field f : fields) {
+            if (f == field) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    /**
+     * Fields that only change with the context: string fields, a number
+     * field and a string array, each optional and written in that order.
+     */
+    static final class Constant {
+
+        static final Constant EMPTY = new Constant(null, null, 0L, null, null);
+
+        private final EventWriter.Key[] keys;
+        private final String[] values;
+        private final EventWriter.Key numberKey;
+        private final long number;
+        private final EventWriter.Key arrayKey;
+        private final String[] array;
+        /** The fields serialized for {@link JsonEventWriter#fields(char[])}. */
+        final char[] json;
+        /** The fields encoded for {@link CborEventWriter#fields(Constant)}. */
+        final byte[] cbor;
+
+        Constant(final String[][] strings, final EventWriter.Key numberKey, final long number,
+                final EventWriter.Key arrayKey, final String[] array) {
+            final int size = strings == null ? 0 : strings.length;
+            this.keys = new EventWriter.Key[size];
+            this.values = new String[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = new EventWriter.Key(strings[i][0]);
+                values[i] = strings[i][1];
+            }
+            this.numberKey = numberKey;
+            this.number = number;
+            this.arrayKey = arrayKey;
+            this.array = array;
+            final JsonEventWriter writer = new JsonEventWriter();
+            writer.beginObject();
+            writeTo(writer);
+            this.json = writer.toFields();
+            final CborEventWriter encoder = new CborEventWriter();
+            writeTo(encoder);
+            this.cbor = encoder.fragment();
+        }
+
+        /**
+         * Write the fields one by one.
+         *
+         * @param writer the writer of the event
+         */
+        void writeTo(final EventWriter writer) {
+            for (int i = 0; i < keys.length; i++) {
+                writer.field(keys[i], values[i]);
+            }
+            if (numberKey != null) {
+                writer.field(numberKey, number);
+            }
+            if (arrayKey != null) {
+                writer.beginArray(arrayKey);
+                for (final String value : array) {
+                    writer.value(value);
+                }
+                writer.endArray();
+            }
+        }
+    }
+}
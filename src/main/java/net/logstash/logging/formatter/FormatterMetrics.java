@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the formatters, striped so formatting threads do not contend
+ * on a single cache line.
+ */
+final class FormatterMetrics implements LogstashUtilFormatterMXBean {
+
+    static final String OBJECT_NAME = "net.logstash.logging:type=LogstashUtilFormatter";
+    /** Stack traces longer than this many characters are counted as oversized. */
+    static final int OVERSIZED_STACK_TRACE = 16 * 1024;
+
+    private static FormatterMetrics registered;
+
+    private final ConcurrentMap<String, LongAdder> records = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder chars = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder messageFormatErrors = new LongAdder();
+    private final LongAdder oversizedStackTraces = new LongAdder();
+    private final LongAdder stackTraceCacheHits = new LongAdder();
+    private final LongAdder stackTraceCacheMisses = new LongAdder();
+    private final LongAdder stackTraceCacheEvictions = new LongAdder();
+    private final LongAdder mdcRecords = new LongAdder();
+    private final LongAdder mdcEntries = new LongAdder();
+    private final LongAccumulator mdcMax = new LongAccumulator(Math::max, 0L);
+
+    FormatterMetrics() {
+    }
+
+    /**
+     * Get the metrics registered with the platform MBean server, registering
+     * them on first use.
+     *
+     * @return the shared metrics
+     * @throws IllegalStateException if the MBean cannot be registered
+     */
+    static synchronized FormatterMetrics registered() {
+        if (registered == null) {
+            final FormatterMetrics metrics = new FormatterMetrics();
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                try {
+                    server.registerMBean(metrics, new ObjectName(OBJECT_NAME));
+                } catch (InstanceAlreadyExistsException ex) {
+                    // another class loader loaded the formatter as well
+                    server.registerMBean(metrics, new ObjectName(OBJECT_NAME + ",loader="
+                            + Integer.toHexString(System.identityHashCode(FormatterMetrics.class.getClassLoader()))));
+                }
+            } catch (JMException ex) {
+                throw new IllegalStateException("Cannot register the formatter metrics", ex);
+            }
+            registered = metrics;
+        }
+        return registered;
+    }
+
+    /**
+     * Count a record formatted to a String.
+     *
+     * @param level the level of the record
+     * @param nanos the time it took to format
+     * @param length the number of characters of the event
+     */
+    void formattedChars(final Level level, final long nanos, final int length) {
+        formatted(level, nanos);
+        chars.add(length);
+    }
+
+    /**
+     * Count a record formatted as UTF-8.
+     *
+     * @param level the level of the record
+     * @param nanos the time it took to format
+     * @param length the number of bytes of the event
+     */
+    void formattedBytes(final Level level, final long nanos, final int length) {
+        formatted(level, nanos);
+        bytes.add(length);
+    }
+
+    private void formatted(final Level level, final long nanos) {
+        final String name = level.getName();
+        LongAdder counter = records.get(name);
+        if (counter == null) {
+            final LongAdder added = new LongAdder();
+            counter = records.putIfAbsent(name, added);
+            if (counter == null) {
+                counter = added;
+            }
+        }
+        counter.increment();
+        latency.record(nanos);
+    }
+
+    void messageFormatError() {
+        messageFormatErrors.increment();
+    }
+
+    void stackTrace(final int length) {
+        if (length > OVERSIZED_STACK_TRACE) {
+            oversizedStackTraces.increment();
+        }
+    }
+
+    void stackTraceCacheHit() {
+        stackTraceCacheHits.increment();
+    }
+
+    void stackTraceCacheMiss() {
+        stackTraceCacheMisses.increment();
+    }
+
+    void stackTraceCacheEviction() {
+        stackTraceCacheEvictions.increment();
+    }
+
+    void mdc(final int size) {
+        mdcRecords.increment();
+        mdcEntries.add(size);
+        mdcMax.accumulate(size);
+    }
+
+    @Override
+    public long getRecordCount() {
+        return latency.count();
+    }
+
+    @Override
+    public Map<String, Long> getRecordCountByLevel() {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Entry<String, LongAdder> entry : records.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getCharsFormatted() {
+        return chars.sum();
+    }
+
+    @Override
+    public long getBytesFormatted() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getFormatLatencyMeanNanos() {
+        return latency.mean();
+    }
+
+    @Override
+    public long getFormatLatency50thPercentileNanos() {
+        return latency.percentile(50.0);
+    }
+
+    @Override
+    public long getFormatLatency90thPercentileNanos() {
+        return latency.percentile(90.0);
+    }
+
+    @Override
+    public long getFormatLatency99thPercentileNanos() {
+        return latency.percentile(99.0);
+    }
+
+    @Override
+    public long getFormatLatency999thPercentileNanos() {
+        return latency.percentile(99.9);
+    }
+
+    @Override
+    public long getFormatLatencyMaxNanos() {
+        return latency.max();
+    }
+
+    @Override
+    public long getMessageFormatErrors() {
+        return messageFormatErrors.sum();
+    }
+
+    @Override
+    public long getOversizedStackTraces() {
+        return oversizedStackTraces.sum();
+    }
+
+    @Override
+    public long getStackTraceCacheHits() {
+        return stackTraceCacheHits.sum();
+    }
+
+    @Override
+    public long getStackTraceCacheMisses() {
+        return stackTraceCacheMisses.sum();
+    }
+
+    @Override
+    public long getStackTraceCacheEvictions() {
+        return stackTraceCacheEvictions.sum();
+    }
+
+    @Override
+    public double getMdcSizeMean() {
+        final long n = mdcRecords.sum();
+        return n == 0 ? 0.0 : (double) mdcEntries.sum() / n;
+    }
+
+    @Override
+    public long getMdcSizeMax() {
+        return mdcMax.get();
+    }
+
+    @Override
+    public void reset() {
+        records.clear();
+        chars.reset();
+        bytes.reset();
+        latency.reset();
+        messageFormatErrors.reset();
+        oversizedStackTraces.reset();
+        stackTraceCacheHits.reset();
+        stackTraceCacheMisses.reset();
+        stackTraceCacheEvictions.reset();
+        mdcRecords.reset();
+        mdcEntries.reset();
+        mdcMax.reset();
+    }
+}
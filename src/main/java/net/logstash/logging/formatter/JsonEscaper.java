@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+/**
+ * Escapes JSON string content exactly like the javax.json reference
+ * implementation.
+ *
+ * The string is copied in bulk first and scanned with a lookup table. Only
+ * from the first character that needs escaping on is the content rewritten,
+ * runs of plain characters still being moved with array copies, so long
+ * messages and stack traces cost little more than a memory copy.
+ *
+ * Quotes, backslashes and the control characters with a short escape get
+ * that escape, the other characters below 0x20, those from 0x80 to 0x9f
+ * and from 0x2000 to 0x20ff a unicode escape. Everything else, surrogates
+ * included, is copied as is.
+ */
+final class JsonEscaper {
+
+    /** Worst case growth, every character becoming a unicode escape. */
+    static final int MAX_EXPANSION = 6;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** For ASCII, 0 if copied as is, otherwise the character following the backslash. */
+    private static final char[] ASCII = new char[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ASCII[c] = 'u';
+        }
+        ASCII['"'] = '"';
+        ASCII['\\'] = '\\';
+        ASCII['\b'] = 'b';
+        ASCII['\f'] = 'f';
+        ASCII['\n'] = 'n';
+        ASCII['\r'] = 'r';
+        ASCII['\t'] = 't';
+    }
+
+    private JsonEscaper() {
+    }
+
+    static boolean needsEscape(final char c) {
+        return c < 0x80 ? ASCII[c] != 0 : c < 0xa0 || (c >= 0x2000 && c < 0x2100);
+    }
+
+    /**
+     * Write the escaped string, without quotes.
+     *
+     * @param s the string to escape
+     * @param dst the destination, with room for {@link #MAX_EXPANSION} times the length of the string after pos
+     * @param pos the position to write at
+     * @return the position after the escaped string
+     */
+    static int escape(final String s, final char[] dst, final int pos) {
+        final int n = s.length();
+        s.getChars(0, n, dst, pos);
+        final int end = pos + n;
+        int i = pos;
+        while (i < end && !needsEscape(dst[i])) {
+            i++;
+        }
+        if (i == end) {
+            return end;
+        }
+        // move the rest to the end of the room, the escaped output can then never overtake it
+        final int shift = (MAX_EXPANSION - 1) * n;
+        System.arraycopy(dst, i, dst, i + shift, end - i);
+        return escape(dst, i + shift, end + shift, i);
+    }
+
+    /**
+     * Escape the characters from read to readEnd of the buffer, writing them
+     * from write on, with write at or before read.
+     */
+    private static int escape(final char[] b, int read, final int readEnd, int write) {
+        while (read < readEnd) {
+            final int start = read;
+            while (read < readEnd && !needsEscape(b[read])) {
+                read++;
+            }
+            if (read > start) {
+                System.arraycopy(b, start, b, write, read - start);
+                write += read - start;
+            }
+            if (read == readEnd) {
+                break;
+            }
+            final char c = b[read++];
+            final char escape = c < 0x80 ? ASCII[c] : 'u';
+            b[write++] = '\\';
+            b[write++] = escape;
+            if (escape == 'u') {
+                b[write++] = HEX[(c >> 12) & 0xf];
+                b[write++] = HEX[(c >> 8) & 0xf];
+                b[write++] = HEX[(c >> 4) & 0xf];
+                b[write++] = HEX[c & 0xf];
+            }
+        }
+        return write;
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer backed by a reusable character buffer.
+ *
+ * The output is compact and escaped exactly like the javax.json reference
+ * implementation, so events written here are identical to the ones built
+ * through a {@link javax.json.JsonObjectBuilder}.
+ *
+ * Instances are not thread-safe, use {@link #get()} to obtain the writer
+ * bound to the current thread.
+ */
+final class JsonEventWriter extends EventWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int MAX_DEPTH = 63;
+
+    private static final ThreadLocal<JsonEventWriter> WRITERS = new ThreadLocal<JsonEventWriter>() {
+        @Override
+        protected JsonEventWriter initialValue() {
+            return new JsonEventWriter();
+        }
+    };
+
+    private char[] buf = new char[INITIAL_CAPACITY];
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int len;
+    private int depth;
+    /** One bit per nesting level, set once the level holds a value. */
+    private long nonEmpty;
+
+    JsonEventWriter() {
+    }
+
+    /**
+     * Get the writer bound to the current thread, reset and ready for use.
+     *
+     * @return the writer of the current thread
+     */
+    static JsonEventWriter get() {
+        final JsonEventWriter writer = WRITERS.get();
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * Discard the content, giving back oversized buffers.
+     */
+    void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new char[INITIAL_CAPACITY];
+        }
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+        len = 0;
+        depth = 0;
+        nonEmpty = 0L;
+    }
+
+    @Override
+    JsonEventWriter beginObject() {
+        separator();
+        return push('{');
+    }
+
+    JsonEventWriter beginObject(final String key) {
+        name(key);
+        return push('{');
+    }
+
+    JsonEventWriter beginObject(final char[] name) {
+        name(name);
+        return push('{');
+    }
+
+    @Override
+    JsonEventWriter beginObject(final Key key) {
+        return beginObject(key.json);
+    }
+
+    @Override
+    JsonEventWriter endObject() {
+        return pop('}');
+    }
+
+    JsonEventWriter beginArray(final String key) {
+        name(key);
+        return push('[');
+    }
+
+    JsonEventWriter beginArray(final char[] name) {
+        name(name);
+        return push('[');
+    }
+
+    @Override
+    JsonEventWriter beginArray(final Key key) {
+        return beginArray(key.json);
+    }
+
+    @Override
+    JsonEventWriter endArray() {
+        return pop(']');
+    }
+
+    JsonEventWriter field(final String key, final String value) {
+        name(key);
+        writeString(value);
+        return this;
+    }
+
+    JsonEventWriter field(final String key, final int value) {
+        name(key);
+        writeRaw(Integer.toString(value));
+        return this;
+    }
+
+    JsonEventWriter field(final String key, final TimestampFormatter timestamps, final long millis) {
+        name(key);
+        return timestamp(timestamps, millis);
+    }
+
+    JsonEventWriter field(final char[] name, final TimestampFormatter timestamps, final long millis) {
+        name(name);
+        return timestamp(timestamps, millis);
+    }
+
+    JsonEventWriter field(final char[] name, final int value) {
+        name(name);
+        writeRaw(Integer.toString(value));
+        return this;
+    }
+
+    JsonEventWriter field(final char[] name, final long value) {
+        name(name);
+        writeRaw(Long.toString(value));
+        return this;
+    }
+
+    @Override
+    JsonEventWriter field(final Key key, final String value) {
+        return field(key.json, value);
+    }
+
+    @Override
+    JsonEventWriter field(final Key key, final long value) {
+        return field(key.json, value);
+    }
+
+    @Override
+    JsonEventWriter field(final Key key, final TimestampFormatter timestamps, final long millis) {
+        return field(key.json, timestamps, millis);
+    }
+
+    /**
+     * Write a stack trace escaped once by the cache.
+     */
+    @Override
+    JsonEventWriter field(final Key key, final StackTraceCache.Entry stackTrace) {
+        return escapedField(key.json, stackTrace.value);
+    }
+
+    /**
+     * Splice the fields of the constant serialized when the layout was compiled.
+     */
+    @Override
+    JsonEventWriter fields(final FieldLayout.Constant constant) {
+        return fields(constant.json);
+    }
+
+    private JsonEventWriter timestamp(final TimestampFormatter timestamps, final long millis) {
+        ensureCapacity(TimestampFormatter.MAX_LENGTH + 2);
+        buf[len++] = '"';
+        len = timestamps.formatTo(millis, buf, len);
+        buf[len++] = '"';
+        return this;
+    }
+
+    /**
+     * Write a field whose key was escaped before by {@link #escapeName(String)}.
+     *
+     * @param name the escaped key followed by the colon
+     * @param value the value, may be null
+     * @return this writer
+     */
+    JsonEventWriter field(final char[] name, final String value) {
+        name(name);
+        writeString(value);
+        return this;
+    }
+
+    /**
+     * Escape a key once, to be written by {@link #field(char[], String)}.
+     *
+     * @param key the key
+     * @return the quoted and escaped key followed by a colon
+     */
+    static char[] escapeName(final String key) {
+        final JsonEventWriter writer = new JsonEventWriter();
+        writer.writeString(key);
+        writer.ensureCapacity(1);
+        writer.buf[writer.len++] = ':';
+        return Arrays.copyOf(writer.buf, writer.len);
+    }
+
+    /**
+     * Write a field whose value was escaped before by {@link #escapeValue(String)}.
+     *
+     * @param name the escaped key followed by the colon
+     * @param value the quoted and escaped value
+     * @return this writer
+     */
+    JsonEventWriter escapedField(final char[] name, final char[] value) {
+        name(name);
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, buf, len, value.length);
+        len += value.length;
+        return this;
+    }
+
+    /**
+     * Escape a value once, to be written by {@link #escapedField(char[], char[])}.
+     *
+     * @param value the value
+     * @return the quoted and escaped value
+     */
+    static char[] escapeValue(final String value) {
+        final JsonEventWriter writer = new JsonEventWriter();
+        writer.writeString(value);
+        return Arrays.copyOf(writer.buf, writer.len);
+    }
+
+    @Override
+    JsonEventWriter value(final String value) {
+        separator();
+        writeString(value);
+        return this;
+    }
+
+    @Override
+    JsonEventWriter value(final long value) {
+        separator();
+        writeRaw(Long.toString(value));
+        return this;
+    }
+
+    @Override
+    JsonEventWriter value(final double value) {
+        separator();
+        writeRaw(Double.toString(value));
+        return this;
+    }
+
+    @Override
+    JsonEventWriter value(final BigDecimal value) {
+        separator();
+        writeRaw(value.toString());
+        return this;
+    }
+
+    @Override
+    JsonEventWriter value(final boolean value) {
+        separator();
+        writeRaw(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Append fields serialized before by {@link #toFields()}.
+     *
+     * @param fields the serialized fields, each preceded by a comma
+     * @return this writer
+     */
+    JsonEventWriter fields(final char[] fields) {
+        if (fields.length > 0) {
+            final long bit = 1L << depth;
+            // the first field of an object goes without its comma
+            final int skip = (nonEmpty & bit) == 0 ? 1 : 0;
+            nonEmpty |= bit;
+            ensureCapacity(fields.length);
+            System.arraycopy(fields, skip, buf, len, fields.length - skip);
+            len += fields.length - skip;
+        }
+        return this;
+    }
+
+    /**
+     * Get the fields of the unclosed outer object, to be spliced into other
+     * objects with {@link #fields(char[])}.
+     *
+     * @return the fields written so far, each preceded by a comma
+     */
+    char[] toFields() {
+        if (depth != 1 || buf[0] != '{') {
+            throw new IllegalStateException("Not inside the outer object");
+        }
+        if (len == 1) {
+            return new char[0];
+        }
+        final char[] fields = new char[len];
+        fields[0] = ',';
+        System.arraycopy(buf, 1, fields, 1, len - 1);
+        return fields;
+    }
+
+    /**
+     * Terminate the event with the newline expected by line based readers.
+     *
+     * @return this writer
+     */
+    JsonEventWriter newLine() {
+        ensureCapacity(1);
+        buf[len++] = '\n';
+        return this;
+    }
+
+    /**
+     * Encode the content as UTF-8 into the byte buffer of this writer.
+     *
+     * Unpaired surrogates are replaced by {@code '?'}, like
+     * {@link String#getBytes(java.nio.charset.Charset)} does.
+     *
+     * @return the number of bytes in {@link #utf8Bytes()}
+     */
+    int encodeUtf8() {
+        if (bytes.length < len * 3) {
+            bytes = new byte[Math.max(len * 3, bytes.length * 2)];
+        }
+        final char[] b = buf;
+        final byte[] out = bytes;
+        final int n = len;
+        int i = 0;
+        int p = 0;
+        while (i < n) {
+            char c = b[i];
+            // ASCII runs are the common case
+            while (c < 0x80) {
+                out[p++] = (byte) c;
+                if (++i == n) {
+                    return p;
+                }
+                c = b[i];
+            }
+            i++;
+            if (c < 0x800) {
+                out[p++] = (byte) (0xc0 | (c >> 6));
+                out[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i < n && Character.isLowSurrogate(b[i])) {
+                final int cp = Character.toCodePoint(c, b[i++]);
+                out[p++] = (byte) (0xf0 | (cp >> 18));
+                out[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[p++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out[p++] = (byte) '?';
+            } else {
+                out[p++] = (byte) (0xe0 | (c >> 12));
+                out[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Get the bytes encoded by the last {@link #encodeUtf8()}.
+     *
+     * @return the byte buffer of this writer
+     */
+    byte[] utf8Bytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len);
+    }
+
+    private void name(final String key) {
+        separator();
+        writeString(key);
+        ensureCapacity(1);
+        buf[len++] = ':';
+    }
+
+    private void name(final char[] name) {
+        separator();
+        ensureCapacity(name.length);
+        System.arraycopy(name, 0, buf, len, name.length);
+        len += name.length;
+    }
+
+    private void separator() {
+        final long bit = 1L << depth;
+        if ((nonEmpty & bit) != 0) {
+            ensureCapacity(1);
+            buf[len++] = ',';
+        } else {
+            nonEmpty |= bit;
+        }
+    }
+
+    private JsonEventWriter push(final char c) {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("Nesting too deep");
+        }
+        ensureCapacity(1);
+        buf[len++] = c;
+        depth++;
+        nonEmpty &= ~(1L << depth);
+        return this;
+    }
+
+    private JsonEventWriter pop(final char c) {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing to close");
+        }
+        depth--;
+        ensureCapacity(1);
+        buf[len++] = c;
+        return this;
+    }
+
+    private void writeRaw(final String s) {
+        final int n = s.length();
+        ensureCapacity(n);
+        s.getChars(0, n, buf, len);
+        len += n;
+    }
+
+    /**
+     * Write a quoted and escaped string, or the {@code null} literal.
+     *
+     * @param s the string to write
+     */
+    private void writeString(final String s) {
+        if (s == null) {
+            writeRaw("null");
+            return;
+        }
+        ensureCapacity(s.length() * JsonEscaper.MAX_EXPANSION + 2);
+        buf[len++] = '"';
+        len = JsonEscaper.escape(s, buf, len);
+        buf[len++] = '"';
+    }
+
+    private void ensureCapacity(final int extra) {
+        final int required = len + extra;
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length * 2));
+        }
+    }
+}
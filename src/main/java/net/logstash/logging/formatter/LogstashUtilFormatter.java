@@ -15,20 +15,27 @@
  */
 package net.logstash.logging.formatter;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.LogRecord;
 
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonBuilderFactory;
 import javax.json.JsonObjectBuilder;
+import net.logstash.logging.filter.RepeatedLogRecord;
 import org.jboss.logmanager.ExtFormatter;
 import org.jboss.logmanager.ExtLogRecord;
 
@@ -37,79 +44,668 @@ import org.jboss.logmanager.ExtLogRecord;
  */
 public class LogstashUtilFormatter extends ExtFormatter {
 
-    private static final JsonBuilderFactory BUILDER =
-            Json.createBuilderFactory(null);
-    private static String hostName;
     private final String[] tags = System.getProperty(
             "net.logstash.logging.formatter.LogstashUtilFormatter.tags", "UNKNOWN").split(",");
-    private final String[] customfields = System.getProperty(
-            "net.logstash.logging.formatter.LogstashUtilFormatter.fields", "").split(",");
+    private final String[][] customfields = parseCustomFields(System.getProperty(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.fields", ""));
+    private volatile FieldLayout layout = FieldLayout.compile(System.getProperty(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.layout"), ProcessContext.current(), customfields, tags);
+    private final MessageTemplate.Cache templates = new MessageTemplate.Cache(MESSAGE_TEMPLATE_CACHE_SIZE);
+    private final TimestampFormatter timestamps = Boolean.getBoolean(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.utc")
+            ? TimestampFormatter.utc() : new TimestampFormatter(ZoneId.systemDefault());
+    private final MdcWriter mdcWriter = new MdcWriter(
+            System.getProperty("net.logstash.logging.formatter.LogstashUtilFormatter.mdc.include"),
+            System.getProperty("net.logstash.logging.formatter.LogstashUtilFormatter.mdc.exclude"));
+    private final StackTraceRenderer stackTraces = new StackTraceRenderer(
+            System.getProperty("net.logstash.logging.formatter.LogstashUtilFormatter.stacktrace.exclude"),
+            Boolean.getBoolean("net.logstash.logging.formatter.LogstashUtilFormatter.stacktrace.rootCauseFirst"),
+            Integer.getInteger("net.logstash.logging.formatter.LogstashUtilFormatter.stacktrace.maxDepth", 0),
+            Integer.getInteger("net.logstash.logging.formatter.LogstashUtilFormatter.stacktrace.maxLength", 0));
+    private final int paramMaxLength = Integer.getInteger(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.params.maxLength", PARAM_MAX_LENGTH);
+    private volatile CallerLocator callers = new CallerLocator(System.getProperty(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.callerInfo", CallerLocator.ALWAYS));
+    private volatile boolean cbor = parseEncoding(System.getProperty(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.encoding", "json"));
+    /** The shared metrics if enabled, null otherwise. */
+    private final FormatterMetrics metrics = Boolean.getBoolean(
+            "net.logstash.logging.formatter.LogstashUtilFormatter.metrics") ? FormatterMetrics.registered() : null;
+    private final StackTraceCache stackTraceCache = new StackTraceCache(stackTraces,
+            Integer.getInteger("net.logstash.logging.formatter.LogstashUtilFormatter.stacktrace.cacheSize",
+                    STACK_TRACE_CACHE_SIZE), metrics);
 
     static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZZ";
 
-    static {
+    private static final int MESSAGE_TEMPLATE_CACHE_SIZE = 1024;
+    private static final int STACK_TRACE_CACHE_SIZE = 256;
+    private static final int PARAM_MAX_LENGTH = 256;
+    /** The records of a batch formatted by one fork-join task. */
+    private static final int BATCH_PART_SIZE = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final EventWriter.Key[] REPEAT_NAMES = {
+        new EventWriter.Key(FieldLayout.REPEAT_KEYS[0]),
+        new EventWriter.Key(FieldLayout.REPEAT_KEYS[1]),
+        new EventWriter.Key(FieldLayout.REPEAT_KEYS[2]),
+    };
+
+    @Override
+    public final String format(final ExtLogRecord record) {
+        final long start = metrics != null ? System.nanoTime() : 0L;
+        final FieldLayout layout = layout();
+        final String event;
+        if (layout.shadowing) {
+            event = formatTree(record, layout);
+        } else {
+            final JsonEventWriter writer = JsonEventWriter.get();
+            writeEvent(record, writer, layout);
+            event = writer.newLine().toString();
+        }
+        if (metrics != null) {
+            metrics.formattedChars(record.getLevel(), System.nanoTime() - start, event.length());
+        }
+        return event;
+    }
+
+    /**
+     * Format the record as UTF-8 into the buffer, or as a CBOR frame with the
+     * {@code cbor} encoding.
+     *
+     * @param record the logrecord to format
+     * @param buffer the buffer to write the event to
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the event does not fit, the buffer is then left unchanged
+     */
+    public int formatTo(final ExtLogRecord record, final ByteBuffer buffer) {
+        final long start = metrics != null ? System.nanoTime() : 0L;
+        final FieldLayout layout = layout();
+        final int length;
+        if (cbor) {
+            final CborEventWriter writer = encodeCbor(record, layout);
+            length = writer.frame();
+            buffer.put(writer.bytes(), 0, length);
+        } else if (layout.shadowing) {
+            final byte[] event = formatTree(record, layout).getBytes(UTF_8);
+            buffer.put(event);
+            length = event.length;
+        } else {
+            final JsonEventWriter writer = JsonEventWriter.get();
+            writeEvent(record, writer, layout);
+            length = writer.newLine().encodeUtf8();
+            buffer.put(writer.utf8Bytes(), 0, length);
+        }
+        if (metrics != null) {
+            metrics.formattedBytes(record.getLevel(), System.nanoTime() - start, length);
+        }
+        return length;
+    }
+
+    /**
+     * Format the record as UTF-8 to the stream, or as a CBOR frame with the
+     * {@code cbor} encoding, with a single write.
+     *
+     * @param record the logrecord to format
+     * @param out the stream to write the event to
+     * @return the number of bytes written
+     * @throws IOException if writing to the stream fails
+     */
+    public int formatTo(final ExtLogRecord record, final OutputStream out) throws IOException {
+        final long start = metrics != null ? System.nanoTime() : 0L;
+        final FieldLayout layout = layout();
+        final int length;
+        if (cbor) {
+            final CborEventWriter writer = encodeCbor(record, layout);
+            length = writer.frame();
+            out.write(writer.bytes(), 0, length);
+        } else if (layout.shadowing) {
+            final byte[] event = formatTree(record, layout).getBytes(UTF_8);
+            out.write(event);
+            length = event.length;
+        } else {
+            final JsonEventWriter writer = JsonEventWriter.get();
+            writeEvent(record, writer, layout);
+            length = writer.newLine().encodeUtf8();
+            out.write(writer.utf8Bytes(), 0, length);
+        }
+        if (metrics != null) {
+            metrics.formattedBytes(record.getLevel(), System.nanoTime() - start, length);
+        }
+        return length;
+    }
+
+    /**
+     * Format records as one contiguous buffer of events in the order of the
+     * list, newline terminated JSON or CBOR frames like
+     * {@link #formatTo(ExtLogRecord, OutputStream)}, written to the sink with
+     * a single write.
+     *
+     * A large batch is split into parts of {@value #BATCH_PART_SIZE} records
+     * formatted in parallel by the common fork-join pool, each into its own
+     * buffer, which are then joined in order.
+     *
+     * @param records the logrecords to format
+     * @param sink the stream to write the events to
+     * @return the number of bytes written
+     * @throws IOException if writing to the sink fails, nothing is written
+     *             if a record cannot be formatted
+     */
+    public int formatBatch(final List<ExtLogRecord> records, final OutputStream sink) throws IOException {
+        final BatchBuffer batch = BatchBuffer.get();
         try {
-            hostName = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            hostName = "unknown-host";
+            final int size = records.size();
+            if (size >= 2 * BATCH_PART_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                final ByteArrayOutputStream[] parts = new ByteArrayOutputStream[(size - 1) / BATCH_PART_SIZE + 1];
+                ForkJoinPool.commonPool().invoke(new FormatParts(records, parts, 0, parts.length));
+                for (ByteArrayOutputStream part : parts) {
+                    part.writeTo(batch);
+                }
+            } else {
+                for (ExtLogRecord record : records) {
+                    formatTo(record, batch);
+                }
+            }
+            final int length = batch.size();
+            if (length > 0) {
+                batch.writeTo(sink);
+            }
+            return length;
+        } finally {
+            batch.release();
         }
     }
 
-    @Override
-    public final String format(final ExtLogRecord record) {
-        final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
-        final String dateString = dateFormat.format(new Date(record.getMillis()));
-        final JsonArrayBuilder tagsBuilder = BUILDER.createArrayBuilder();
-        for (final String tag : tags) {
-            tagsBuilder.add(tag);
+    /**
+     * Formats the records of a range of parts of a batch, splitting it until
+     * there is one part left.
+     */
+    private final class FormatParts extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<ExtLogRecord> records;
+        private final ByteArrayOutputStream[] parts;
+        private final int from;
+        private final int to;
+
+        FormatParts(final List<ExtLogRecord> records, final ByteArrayOutputStream[] parts, final int from,
+                final int to) {
+            this.records = records;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new FormatParts(records, parts, from, middle), new FormatParts(records, parts, middle, to));
+                return;
+            }
+            final int end = Math.min(records.size(), to * BATCH_PART_SIZE);
+            final ByteArrayOutputStream part = new ByteArrayOutputStream(BATCH_PART_SIZE * 512);
+            try {
+                for (int i = from * BATCH_PART_SIZE; i < end; i++) {
+                    formatTo(records.get(i), part);
+                }
+            } catch (IOException ex) {
+                // a ByteArrayOutputStream does not throw
+                throw new UncheckedIOException(ex);
+            }
+            parts[from] = part;
+        }
+    }
+
+    /**
+     * Reusable per-thread buffer joining the events of a batch.
+     */
+    private static final class BatchBuffer extends ByteArrayOutputStream {
+
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+        private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+        private static final ThreadLocal<BatchBuffer> BUFFERS = new ThreadLocal<BatchBuffer>() {
+            @Override
+            protected BatchBuffer initialValue() {
+                return new BatchBuffer();
+            }
+        };
+
+        private BatchBuffer() {
+            super(INITIAL_CAPACITY);
+        }
+
+        static BatchBuffer get() {
+            return BUFFERS.get();
+        }
+
+        /**
+         * Empty the buffer, giving back oversized arrays.
+         */
+        void release() {
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[INITIAL_CAPACITY];
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Encode the event for the record as a CBOR frame.
+     *
+     * @param record the logrecord to encode
+     * @param layout the fields to write
+     * @return the writer of the current thread holding the event
+     */
+    private CborEventWriter encodeCbor(final ExtLogRecord record, final FieldLayout layout) {
+        final CborEventWriter writer = CborEventWriter.get();
+        if (layout.shadowing) {
+            final TreeEventWriter tree = new TreeEventWriter();
+            writeEvent(record, tree, layout);
+            writer.tree(tree.event());
+        } else {
+            writeEvent(record, writer, layout);
+        }
+        return writer;
+    }
+
+    /**
+     * Format the record through a javax.json object tree.
+     *
+     * Only used when custom fields repeat a key, the tree then replaces the
+     * earlier value in place which the streaming writer cannot do.
+     *
+     * @param record the logrecord to format
+     * @param layout the fields to write
+     * @return the formatted event, terminated by a newline
+     */
+    private String formatTree(final ExtLogRecord record, final FieldLayout layout) {
+        final TreeEventWriter writer = new TreeEventWriter();
+        writeEvent(record, writer, layout);
+        return writer.toString() + "\n";
+    }
+
+    /**
+     * Write the event for the record, the single walk over the layout that
+     * every output of the formatter goes through.
+     *
+     * @param record the logrecord to write
+     * @param writer the writer to append to
+     * @param layout the fields to write
+     */
+    private void writeEvent(final ExtLogRecord record, final EventWriter writer, final FieldLayout layout) {
+        final FieldLayout.Field[] fields = layout.fields;
+        final EventWriter.Key[] names = layout.names;
+        final Throwable thrown = record.getThrown();
+        StackTraceCache.Entry stackTrace = null;
+        CallerLocator.Caller caller = null;
+        writer.beginObject();
+        for (int i = 0; i < fields.length; i++) {
+            final EventWriter.Key name = names[i];
+            switch (fields[i]) {
+                case TIMESTAMP:
+                    writer.field(name, timestamps, record.getMillis());
+                    break;
+                case LEVEL:
+                    writer.field(name, record.getLevel().toString());
+                    break;
+                case LEVEL_VALUE:
+                    writer.field(name, record.getLevel().intValue());
+                    break;
+                case MESSAGE:
+                    writer.field(name, formatMessage(record));
+                    break;
+                case MESSAGE_TEMPLATE:
+                    if (record.getMessage() != null) {
+                        writer.field(name, record.getMessage());
+                    }
+                    break;
+                case PARAMS:
+                    writeParams(writer, name, record.getParameters());
+                    break;
+                case LOGGER_NAME:
+                    writer.field(name, record.getLoggerName());
+                    break;
+                case THREAD_NAME:
+                    writer.field(name, record.getThreadName());
+                    break;
+                case CLASS:
+                    caller = caller != null ? caller : callers.locate(record);
+                    writeOptional(writer, name, caller.className, layout.nullStrings);
+                    break;
+                case METHOD:
+                    caller = caller != null ? caller : callers.locate(record);
+                    writeOptional(writer, name, caller.methodName, layout.nullStrings);
+                    break;
+                case LINE_NUMBER:
+                    if (thrown != null) {
+                        writer.field(name, getLineNumber(record));
+                    }
+                    break;
+                case EXCEPTION_CLASS:
+                    caller = caller != null || thrown == null ? caller : callers.locate(record);
+                    if (thrown != null && (caller == CallerLocator.SKIPPED || caller.className != null)) {
+                        writer.field(name, thrown.getClass().getName());
+                    }
+                    break;
+                case EXCEPTION_MESSAGE:
+                    if (thrown != null && thrown.getMessage() != null) {
+                        writer.field(name, thrown.getMessage());
+                    }
+                    break;
+                case STACK_TRACE:
+                    if (thrown != null) {
+                        stackTrace = getStackTrace(thrown);
+                        writer.field(name, stackTrace);
+                    }
+                    break;
+                case STACK_HASH:
+                    if (thrown != null) {
+                        writer.field(name, stackTrace != null ? stackTrace.stackHash : stackTraceCache.hash(thrown));
+                    }
+                    break;
+                case NDC:
+                    if (record.getNdc() != null && !"".equals(record.getNdc())) {
+                        writer.field(name, record.getNdc());
+                    }
+                    break;
+                case MDC:
+                    writeMdc(record, writer, name);
+                    break;
+                case REPEAT:
+                    if (record instanceof RepeatedLogRecord) {
+                        final RepeatedLogRecord repeated = (RepeatedLogRecord) record;
+                        writer.field(REPEAT_NAMES[0], repeated.getRepeatCount());
+                        writer.field(REPEAT_NAMES[1], timestamps, repeated.getFirstMillis());
+                        writer.field(REPEAT_NAMES[2], timestamps, repeated.getLastMillis());
+                    }
+                    break;
+                default:
+                    // HOSTNAME, the process fields, the custom fields and the tags only change with the context
+                    writer.fields(layout.constants[i]);
+                    break;
+            }
+        }
+        writer.endObject();
+    }
+
+    private void writeMdc(final ExtLogRecord record, final EventWriter writer, final EventWriter.Key name) {
+        final int size = mdcWriter.write(record, writer, name);
+        if (metrics != null) {
+            metrics.mdc(size);
+        }
+    }
+
+    private void writeParams(final EventWriter writer, final EventWriter.Key name, final Object[] parameters) {
+        if (parameters == null || parameters.length == 0) {
+            return;
+        }
+        writer.beginArray(name);
+        for (final Object parameter : parameters) {
+            final Object value = toJsonValue(parameter);
+            if (value instanceof Long) {
+                writer.value(((Long) value).longValue());
+            } else if (value instanceof Double) {
+                writer.value(((Double) value).doubleValue());
+            } else if (value instanceof BigDecimal) {
+                writer.value((BigDecimal) value);
+            } else if (value instanceof Boolean) {
+                writer.value(((Boolean) value).booleanValue());
+            } else {
+                writer.value((String) value);
+            }
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Get the JSON value of a message parameter: integers as a Long, finite
+     * doubles as a Double, finite floats and big numbers as a BigDecimal,
+     * booleans as a Boolean, strings as they are and any other object as its
+     * {@code toString()}, cut after the maximum length.
+     *
+     * @param parameter the parameter, may be null
+     * @return the value, null for null
+     */
+    private Object toJsonValue(final Object parameter) {
+        if (parameter == null || parameter instanceof Boolean || parameter instanceof String) {
+            return parameter;
+        }
+        if (parameter instanceof Integer || parameter instanceof Long || parameter instanceof Short
+                || parameter instanceof Byte || parameter instanceof AtomicInteger || parameter instanceof AtomicLong) {
+            return ((Number) parameter).longValue();
+        }
+        if (parameter instanceof Double) {
+            final double value = (Double) parameter;
+            return Double.isNaN(value) || Double.isInfinite(value) ? parameter.toString() : (Object) value;
+        }
+        if (parameter instanceof Float) {
+            // widening to a double would write 0.1f as 0.10000000149011612
+            final float value = (Float) parameter;
+            return Float.isNaN(value) || Float.isInfinite(value) ? parameter.toString()
+                    : (Object) new BigDecimal(Float.toString(value));
+        }
+        if (parameter instanceof BigDecimal) {
+            return parameter;
         }
+        if (parameter instanceof BigInteger) {
+            return new BigDecimal((BigInteger) parameter);
+        }
+        String text = textOf(parameter);
+        if (text.length() > paramMaxLength) {
+            int end = paramMaxLength;
+            if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            text = text.substring(0, end);
+        }
+        return text;
+    }
 
-        JsonObjectBuilder builder = BUILDER.createObjectBuilder();
+    private static String textOf(final Object parameter) {
+        try {
+            return String.valueOf(parameter);
+        } catch (RuntimeException ex) {
+            return parameter.getClass().getName() + ".toString() failed: " + ex;
+        }
+    }
 
-        builder.add("@timestamp", dateString)
-               .add("level", record.getLevel().toString())
-               .add("level_value", record.getLevel().intValue())
-               .add("message", formatMessage(record))
-               .add("logger_name", record.getLoggerName())
-               .add("thread_name", record.getThreadName())
-               .add("HOSTNAME", hostName);
+    /**
+     * Get a value of a message parameter that cannot change any more: the
+     * immutable JDK values as they are, atomic numbers as a Long, dates as a
+     * copy and any other object as its {@code toString()}.
+     *
+     * @param parameter the parameter, may be null
+     * @return the snapshot, the parameter itself if it is immutable
+     */
+    static Object snapshotOf(final Object parameter) {
+        if (parameter == null || parameter instanceof String || parameter instanceof Boolean
+                || parameter instanceof Character || parameter instanceof Integer || parameter instanceof Long
+                || parameter instanceof Short || parameter instanceof Byte || parameter instanceof Double
+                || parameter instanceof Float || parameter instanceof BigDecimal || parameter instanceof BigInteger
+                || parameter instanceof Enum) {
+            return parameter;
+        }
+        if (parameter instanceof AtomicInteger || parameter instanceof AtomicLong) {
+            return ((Number) parameter).longValue();
+        }
+        if (parameter instanceof Date) {
+            return ((Date) parameter).clone();
+        }
+        return textOf(parameter);
+    }
 
-        addSourceClassName(record, builder);
-        addSourceMethodName(record, builder);
-        addThrowableInfo(record, builder);
-        addNdc(record, builder);
-        for (final String customfield : customfields) {
-        	if (!"".equals(customfield)) {
-	            final String field[] = customfield.split(":");
-	            final String key = field[0];
-	            final String value = field[1];
-	            builder.add(key, value);
-        	}
+    private void writeOptional(final EventWriter writer, final EventWriter.Key name, final String value,
+            final boolean nullString) {
+        if (value != null) {
+            writer.field(name, value);
+        } else if (nullString) {
+            writer.field(name, "null");
         }
+    }
 
-        builder.add("@tags", tagsBuilder.build());
+    /**
+     * Parse the custom fields.
+     *
+     * @param property comma separated {@code key:value} pairs
+     * @return the key and value of every field, in order
+     * @throws IllegalArgumentException if a field has no value
+     */
+    static String[][] parseCustomFields(final String property) {
+        final List<String[]> fields = new ArrayList<String[]>();
+        for (final String customfield : property.split(",")) {
+            if (!"".equals(customfield)) {
+                final String field[] = customfield.split(":");
+                if (field.length < 2) {
+                    throw new IllegalArgumentException("Malformed custom field '" + customfield
+                            + "', expected key:value");
+                }
+                fields.add(new String[] {field[0], field[1]});
+            }
+        }
+        return fields.toArray(new String[fields.size()][]);
+    }
 
-        addMdc(record, builder);
+    /**
+     * Set the fields of the events, overriding the layout system property.
+     *
+     * @param layout comma separated field names with optional {@code :key} renames, or {@code default} or {@code ecs}
+     * @throws IllegalArgumentException if the layout names an unknown field or repeats a field or key
+     */
+    public synchronized void setLayout(final String layout) {
+        this.layout = FieldLayout.compile(layout, ProcessContext.current(), customfields, tags);
+    }
 
-        return builder.build().toString() + "\n";
+    /**
+     * Get the layout, compiled again if the host and process context was
+     * resolved further since it was compiled.
+     *
+     * @return the current layout
+     */
+    private FieldLayout layout() {
+        final FieldLayout layout = this.layout;
+        return layout.context == ProcessContext.current() ? layout : recompile(layout);
     }
 
-    private void addMdc(ExtLogRecord record, JsonObjectBuilder builder) {
-    	Map<String, String> mdc = record.getMdcCopy();
+    private synchronized FieldLayout recompile(final FieldLayout stale) {
+        if (this.layout == stale) {
+            this.layout = FieldLayout.compile(stale.toString(), ProcessContext.current(), customfields, tags);
+        }
+        return this.layout;
+    }
 
-    	if (!mdc.isEmpty()) {
-	    	JsonObjectBuilder mdcBuilder = BUILDER.createObjectBuilder();
+    public String getLayout() {
+        return layout.toString();
+    }
 
-			for (Entry<String, String> entry : mdc.entrySet()) {
-				mdcBuilder.add(entry.getKey(), entry.getValue());
-			}
+    /**
+     * Set the encoding of {@link #formatTo(ExtLogRecord, ByteBuffer)} and
+     * {@link #formatTo(ExtLogRecord, OutputStream)}, overriding the encoding
+     * system property. {@link #format(ExtLogRecord)} always returns JSON.
+     *
+     * @param encoding {@code json} for newline terminated JSON, or
+     *            {@code cbor} for length-prefixed CBOR frames
+     * @throws IllegalArgumentException if the encoding is unknown
+     */
+    public void setEncoding(final String encoding) {
+        this.cbor = parseEncoding(encoding);
+    }
 
-			builder.add("@mdc", mdcBuilder.build());
-    	}
-	}
+    public String getEncoding() {
+        return cbor ? "cbor" : "json";
+    }
+
+    /**
+     * Set when the class and method fields look up the caller of a record,
+     * overriding the callerInfo system property. Below the level the fields
+     * only have the caller the record was given or already inferred.
+     *
+     * @param callerInfo {@code always}, {@code off} or the level from which
+     *            the caller is looked up, like {@code WARN}
+     * @throws IllegalArgumentException if the policy is not a level
+     */
+    public void setCallerInfo(final String callerInfo) {
+        this.callers = new CallerLocator(callerInfo);
+    }
+
+    public String getCallerInfo() {
+        return callers.toString();
+    }
+
+    /**
+     * Capture the caller of the record on the logging thread if the caller
+     * policy asks for it, for a handler formatting the record later on
+     * another thread.
+     *
+     * @param record the logrecord
+     */
+    public void captureCaller(final ExtLogRecord record) {
+        callers.capture(record);
+    }
+
+    /**
+     * Replace the parameters of the record that could still change with
+     * snapshots, on the logging thread, for a handler formatting the record
+     * later on another thread. The event then holds the parameters as they
+     * were logged, and their {@code toString()} runs on the logging thread.
+     * The other handlers of the record see the snapshots as well.
+     *
+     * @param record the logrecord
+     */
+    public void captureParameters(final ExtLogRecord record) {
+        final Object[] parameters = record.getParameters();
+        if (parameters == null) {
+            return;
+        }
+        Object[] snapshots = null;
+        for (int i = 0; i < parameters.length; i++) {
+            final Object snapshot = snapshotOf(parameters[i]);
+            if (snapshot != parameters[i]) {
+                if (snapshots == null) {
+                    snapshots = parameters.clone();
+                }
+                snapshots[i] = snapshot;
+            }
+        }
+        if (snapshots != null) {
+            record.setParameters(snapshots);
+        }
+    }
+
+    private static boolean parseEncoding(final String encoding) {
+        if ("cbor".equalsIgnoreCase(encoding)) {
+            return true;
+        } else if ("json".equalsIgnoreCase(encoding)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown encoding '" + encoding + "', expected json or cbor");
+    }
 
 	@Override
-    public synchronized String formatMessage(final LogRecord record) {
+    public String formatMessage(final LogRecord record) {
+        final String pattern = record.getMessage();
+        final Object parameters[] = record.getParameters();
+        if (pattern == null) {
+            return null;
+        }
+        // the catalog is looked up first, even without parameters
+        if (record.getResourceBundle() != null) {
+            return formatLocalizedMessage(record);
+        }
+        if (parameters == null || parameters.length == 0) {
+            return pattern;
+        }
+        return templates.get(pattern).format(parameters, metrics);
+    }
+
+    /**
+     * Format a message that may have to be looked up in the resource bundle
+     * of the record.
+     *
+     * @param record the logrecord
+     * @return the formatted message
+     */
+    private String formatLocalizedMessage(final LogRecord record) {
         String message = super.formatMessage(record);
 
         try {
@@ -118,17 +714,14 @@ public class LogstashUtilFormatter extends ExtFormatter {
                 message = String.format(message, parameters);
             }
         } catch (Exception ex) {
+            if (metrics != null) {
+                metrics.messageFormatError();
+            }
         }
 
         return message;
     }
 
-	private void addNdc(final ExtLogRecord record, JsonObjectBuilder builder) {
-		if (record.getNdc() != null && !"".equals(record.getNdc())) {
-			builder.add("ndc", record.getNdc());
-		}
-	}
-
     /**
      * Format the stacktrace.
      *
@@ -190,17 +783,29 @@ public class LogstashUtilFormatter extends ExtFormatter {
         }
     }
 
-    private void addSourceMethodName(final LogRecord record, final JsonObjectBuilder builder) {
-        addValue(builder, "method", record.getSourceMethodName());
+    private void addStacktraceElements(final LogRecord record, final JsonObjectBuilder builder) {
+        builder.add("stack_trace", getStackTrace(record));
     }
 
-    private void addSourceClassName(final LogRecord record, final JsonObjectBuilder builder) {
-        addValue(builder, "class", record.getSourceClassName());
+    private String getStackTrace(final LogRecord record) {
+        final String stackTrace = stackTraces.render(record.getThrown());
+        if (metrics != null) {
+            metrics.stackTrace(stackTrace.length());
+        }
+        return stackTrace;
     }
 
-    private void addStacktraceElements(final LogRecord record, final JsonObjectBuilder builder) {
-        final StringWriter sw = new StringWriter();
-        record.getThrown().printStackTrace(new PrintWriter(sw));
-        builder.add("stack_trace", sw.toString());
+    /**
+     * Get the escaped stack trace of a throwable, from the cache when it was thrown before.
+     *
+     * @param thrown the throwable
+     * @return the cached stack trace
+     */
+    private StackTraceCache.Entry getStackTrace(final Throwable thrown) {
+        final StackTraceCache.Entry stackTrace = stackTraceCache.get(thrown);
+        if (metrics != null) {
+            metrics.stackTrace(stackTrace.length);
+        }
+        return stackTrace;
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.Map;
+
+/**
+ * Metrics of all {@link LogstashUtilFormatter} instances of the class loader,
+ * registered as {@code net.logstash.logging:type=LogstashUtilFormatter}.
+ */
+public interface LogstashUtilFormatterMXBean {
+
+    /**
+     * @return the number of formatted records
+     */
+    long getRecordCount();
+
+    /**
+     * @return the number of formatted records by level name
+     */
+    Map<String, Long> getRecordCountByLevel();
+
+    /**
+     * @return the number of characters of the events formatted as String
+     */
+    long getCharsFormatted();
+
+    /**
+     * @return the number of bytes of the events formatted as UTF-8
+     */
+    long getBytesFormatted();
+
+    double getFormatLatencyMeanNanos();
+
+    long getFormatLatency50thPercentileNanos();
+
+    long getFormatLatency90thPercentileNanos();
+
+    long getFormatLatency99thPercentileNanos();
+
+    long getFormatLatency999thPercentileNanos();
+
+    long getFormatLatencyMaxNanos();
+
+    /**
+     * @return the number of exceptions thrown while formatting a message,
+     *         which left the pattern or its fallback in the event
+     */
+    long getMessageFormatErrors();
+
+    /**
+     * @return the number of stack traces longer than 16 KiB characters
+     */
+    long getOversizedStackTraces();
+
+    /**
+     * @return the number of stack traces found in the cache of escaped stack traces
+     */
+    long getStackTraceCacheHits();
+
+    /**
+     * @return the number of stack traces rendered because they were not cached
+     */
+    long getStackTraceCacheMisses();
+
+    /**
+     * @return the number of stack traces evicted from the full cache
+     */
+    long getStackTraceCacheEvictions();
+
+    double getMdcSizeMean();
+
+    long getMdcSizeMax();
+
+    /**
+     * Set all metrics back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Writes the MDC of a record as the {@code @mdc} object.
+ *
+ * The entries are read from the snapshot of the thread's MDC the record
+ * holds, through its private field. The record still takes that snapshot
+ * once, with {@link ExtLogRecord#copyMdc()}, and shares it with the other
+ * handlers; what is saved is the second map {@link ExtLogRecord#getMdcCopy()}
+ * builds on every call and the JSON object tree. The escaped keys are cached.
+ * Keys can be restricted to a list of included keys, or some keys excluded,
+ * before anything is written, to any {@link EventWriter}.
+ */
+final class MdcWriter {
+
+    private static final int MAX_CACHED_KEYS = 512;
+    /** Longer keys are most likely not constant and are not cached. */
+    private static final int MAX_CACHED_KEY_LENGTH = 128;
+
+    /** Getter of the MDC held by the record, null if the field is not found. */
+    private static final MethodHandle MDC_GETTER = mdcGetter();
+
+    private final String[] included;
+    private final EventWriter.Key[] includedNames;
+    private final Set<String> excluded;
+    private final ConcurrentMap<String, EventWriter.Key> names = new ConcurrentHashMap<String, EventWriter.Key>();
+
+    /**
+     * Create a writer.
+     *
+     * @param include comma separated keys to write, empty to write all keys
+     * @param exclude comma separated keys not to write
+     */
+    MdcWriter(final String include, final String exclude) {
+        excluded = split(exclude, new HashSet<String>());
+        final Set<String> keys = split(include, new LinkedHashSet<String>());
+        if (keys.isEmpty()) {
+            included = null;
+        } else {
+            keys.removeAll(excluded);
+            included = keys.toArray(new String[keys.size()]);
+        }
+        if (included != null) {
+            includedNames = new EventWriter.Key[included.length];
+            for (int i = 0; i < included.length; i++) {
+                includedNames[i] = new EventWriter.Key(included[i]);
+            }
+        } else {
+            includedNames = null;
+        }
+    }
+
+    /**
+     * Write the MDC object if the record holds any of the keys.
+     *
+     * @param record the logrecord
+     * @param writer the writer of the event
+     * @param name the key of the object
+     * @return the number of entries written
+     */
+    int write(final ExtLogRecord record, final EventWriter writer, final EventWriter.Key name) {
+        int count = 0;
+        if (included != null) {
+            for (int i = 0; i < included.length; i++) {
+                final String value = record.getMdc(included[i]);
+                if (value != null) {
+                    if (count++ == 0) {
+                        writer.beginObject(name);
+                    }
+                    writer.field(includedNames[i], value);
+                }
+            }
+        } else {
+            for (Entry<String, ?> entry : mdcOf(record).entrySet()) {
+                final String key = entry.getKey();
+                if (excluded.contains(key)) {
+                    continue;
+                }
+                if (count++ == 0) {
+                    writer.beginObject(name);
+                }
+                final Object value = entry.getValue();
+                writer.field(name(key), value != null ? value.toString() : null);
+            }
+        }
+        if (count > 0) {
+            writer.endObject();
+        }
+        return count;
+    }
+
+    private EventWriter.Key name(final String key) {
+        EventWriter.Key name = names.get(key);
+        if (name == null) {
+            name = new EventWriter.Key(key);
+            if (key.length() <= MAX_CACHED_KEY_LENGTH) {
+                if (names.size() >= MAX_CACHED_KEYS) {
+                    names.clear();
+                }
+                names.put(key, name);
+            }
+        }
+        return name;
+    }
+
+    int cachedKeys() {
+        return names.size();
+    }
+
+    /**
+     * Get the snapshot of the MDC held by the record, taking it if the record
+     * has none yet, without copying it again.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, ?> mdcOf(final ExtLogRecord record) {
+        if (MDC_GETTER != null) {
+            // one copy of the thread's MDC per record, a no-op once the record has it
+            record.copyMdc();
+            try {
+                final Map<String, ?> mdc = (Map<String, ?>) MDC_GETTER.invokeExact(record);
+                if (mdc != null) {
+                    return mdc;
+                }
+            } catch (Throwable ex) {
+                // use the copy below
+            }
+        }
+        return record.getMdcCopy();
+    }
+
+    private static MethodHandle mdcGetter() {
+        try {
+            final Field field = ExtLogRecord.class.getDeclaredField("mdcCopy");
+            if (!Map.class.isAssignableFrom(field.getType())) {
+                return null;
+            }
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field)
+                    .asType(MethodType.methodType(Map.class, ExtLogRecord.class));
+        } catch (Exception ex) {
+            // another version of the log manager, the copies are used instead
+            return null;
+        }
+    }
+
+    private static <T extends Set<String>> T split(final String keys, final T set) {
+        if (keys != null) {
+            for (String key : keys.split(",")) {
+                if (!key.trim().isEmpty()) {
+                    set.add(key.trim());
+                }
+            }
+        }
+        return set;
+    }
+}
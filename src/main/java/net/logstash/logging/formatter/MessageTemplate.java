@@ -0,0 +1,329 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Formattable;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A parsed log message pattern.
+ *
+ * Formatting first tries the {@link MessageFormat} style used by
+ * {@link java.util.logging.Formatter#formatMessage}, and if that leaves the
+ * pattern untouched falls back to {@link String#format}. Patterns that only
+ * use {@code {0}} or {@code %s} placeholders are parsed once and rendered
+ * directly, all others go through the JDK classes on every call.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+final class MessageTemplate {
+
+    private static final int NONE = 0;
+    private static final int SIMPLE = 1;
+    private static final int COMPLEX = 2;
+    private static final int INVALID = 3;
+
+    private final String pattern;
+    private final int braceStyle;
+    private final String[] braceLiterals;
+    private final int[] braceArguments;
+    private final int printfStyle;
+    private final String[] printfLiterals;
+
+    private MessageTemplate(final String pattern) {
+        this.pattern = pattern;
+
+        final List<String> literals = new ArrayList<String>();
+        final List<Integer> arguments = new ArrayList<Integer>();
+        braceStyle = parseBraces(pattern, literals, arguments);
+        braceLiterals = literals.toArray(new String[literals.size()]);
+        braceArguments = new int[arguments.size()];
+        for (int i = 0; i < braceArguments.length; i++) {
+            braceArguments[i] = arguments.get(i);
+        }
+
+        literals.clear();
+        printfStyle = parsePrintf(pattern, literals);
+        printfLiterals = literals.toArray(new String[literals.size()]);
+    }
+
+    /**
+     * Parse a pattern.
+     *
+     * @param pattern the message pattern, not null
+     * @return the parsed pattern
+     */
+    static MessageTemplate compile(final String pattern) {
+        return new MessageTemplate(pattern);
+    }
+
+    /**
+     * Format the parameters into the pattern.
+     *
+     * @param parameters the parameters, not empty
+     * @return the formatted message, or the pattern itself if neither style applies
+     */
+    String format(final Object[] parameters) {
+        return format(parameters, null);
+    }
+
+    /**
+     * Format the parameters into the pattern, counting the exceptions that
+     * made it fall back.
+     *
+     * @param parameters the parameters, not empty
+     * @param metrics the metrics to count errors in, may be null
+     * @return the formatted message, or the pattern itself if neither style applies
+     */
+    String format(final Object[] parameters, final FormatterMetrics metrics) {
+        try {
+            switch (braceStyle) {
+                case SIMPLE:
+                    return formatBraces(parameters);
+                case COMPLEX:
+                    return MessageFormat.format(pattern, parameters);
+                default:
+                    break;
+            }
+        } catch (Exception ex) {
+            // fall back to the printf style, like the formatter always did
+            if (metrics != null) {
+                metrics.messageFormatError();
+            }
+        }
+
+        try {
+            switch (printfStyle) {
+                case SIMPLE:
+                    return formatPrintf(parameters);
+                case COMPLEX:
+                    return String.format(pattern, parameters);
+                default:
+                    break;
+            }
+        } catch (Exception ex) {
+            // keep the pattern
+            if (metrics != null) {
+                metrics.messageFormatError();
+            }
+        }
+        return pattern;
+    }
+
+    private String formatBraces(final Object[] parameters) {
+        final Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        final StringBuilder sb = new StringBuilder(pattern.length() + 16 * braceArguments.length);
+        for (int i = 0; i < braceArguments.length; i++) {
+            sb.append(braceLiterals[i]);
+            final int index = braceArguments[i];
+            if (index >= parameters.length) {
+                sb.append('{').append(index).append('}');
+                continue;
+            }
+            final Object parameter = parameters[index];
+            if (parameter == null) {
+                sb.append("null");
+            } else if (parameter instanceof Number) {
+                sb.append(NumberFormat.getInstance(locale).format(parameter));
+            } else if (parameter instanceof Date) {
+                sb.append(DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, locale).format(parameter));
+            } else if (parameter instanceof String) {
+                sb.append((String) parameter);
+            } else {
+                final String s = parameter.toString();
+                sb.append(s != null ? s : "null");
+            }
+        }
+        return sb.append(braceLiterals[braceArguments.length]).toString();
+    }
+
+    private String formatPrintf(final Object[] parameters) {
+        final int count = printfLiterals.length - 1;
+        if (count > parameters.length) {
+            // String.format would fail with a MissingFormatArgumentException
+            return pattern;
+        }
+        for (int i = 0; i < count; i++) {
+            if (parameters[i] instanceof Formattable) {
+                return String.format(pattern, parameters);
+            }
+        }
+        final StringBuilder sb = new StringBuilder(pattern.length() + 16 * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(printfLiterals[i]).append(String.valueOf(parameters[i]));
+        }
+        return sb.append(printfLiterals[count]).toString();
+    }
+
+    /**
+     * Parse the pattern like {@link MessageFormat#applyPattern} does.
+     *
+     * The pattern is only formatted by {@link java.util.logging.Formatter}
+     * when it holds a brace followed by a digit.
+     */
+    private static int parseBraces(final String pattern, final List<String> literals, final List<Integer> arguments) {
+        if (!hasBraceDigit(pattern)) {
+            return NONE;
+        }
+        final StringBuilder literal = new StringBuilder(pattern.length());
+        boolean inQuote = false;
+        final int n = pattern.length();
+        for (int i = 0; i < n; i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < n && pattern.charAt(i + 1) == '\'') {
+                    literal.append(c);
+                    i++;
+                } else {
+                    inQuote = !inQuote;
+                }
+            } else if (c == '{' && !inQuote) {
+                final int end = pattern.indexOf('}', i + 1);
+                if (end < 0) {
+                    return INVALID;
+                }
+                final String index = pattern.substring(i + 1, end);
+                if (!isDigits(index)) {
+                    // format types, styles or quoting inside the argument
+                    return index.indexOf(',') >= 0 || index.indexOf('\'') >= 0 || index.indexOf('{') >= 0
+                            ? COMPLEX : INVALID;
+                }
+                final int argument;
+                try {
+                    argument = Integer.parseInt(index);
+                } catch (NumberFormatException ex) {
+                    return INVALID;
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                arguments.add(argument);
+                i = end;
+            } else {
+                literal.append(c);
+            }
+        }
+        literals.add(literal.toString());
+        return SIMPLE;
+    }
+
+    /**
+     * Parse the pattern if it only holds {@code %s}, {@code %n} and {@code %%}.
+     */
+    private static int parsePrintf(final String pattern, final List<String> literals) {
+        if (pattern.indexOf('%') < 0) {
+            return NONE;
+        }
+        final StringBuilder literal = new StringBuilder(pattern.length());
+        final int n = pattern.length();
+        for (int i = 0; i < n; i++) {
+            final char c = pattern.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i + 1 == n) {
+                return COMPLEX;
+            }
+            final char conversion = pattern.charAt(++i);
+            if (conversion == 's') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+            } else if (conversion == 'n') {
+                literal.append(System.lineSeparator());
+            } else if (conversion == '%') {
+                literal.append('%');
+            } else {
+                return COMPLEX;
+            }
+        }
+        literals.add(literal.toString());
+        return SIMPLE;
+    }
+
+    private static boolean hasBraceDigit(final String pattern) {
+        final int fence = pattern.length() - 1;
+        int index = -1;
+        while ((index = pattern.indexOf('{', index + 1)) > -1 && index < fence) {
+            final char digit = pattern.charAt(index + 1);
+            if (digit >= '0' && digit <= '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDigits(final String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bounded cache of parsed patterns, cleared when it fills up.
+     */
+    static final class Cache {
+
+        /** Longer patterns are most likely not constant and are not cached. */
+        private static final int MAX_PATTERN_LENGTH = 1024;
+
+        private final ConcurrentMap<String, MessageTemplate> templates;
+        private final int maxSize;
+
+        Cache(final int maxSize) {
+            this.maxSize = maxSize;
+            this.templates = new ConcurrentHashMap<String, MessageTemplate>(Math.min(maxSize, 256));
+        }
+
+        /**
+         * Get the parsed pattern, parsing it if needed.
+         *
+         * @param pattern the message pattern, not null
+         * @return the parsed pattern
+         */
+        MessageTemplate get(final String pattern) {
+            MessageTemplate template = templates.get(pattern);
+            if (template == null) {
+                template = compile(pattern);
+                if (pattern.length() <= MAX_PATTERN_LENGTH) {
+                    if (templates.size() >= maxSize) {
+                        templates.clear();
+                    }
+                    templates.put(pattern, template);
+                }
+            }
+            return template;
+        }
+
+        int size() {
+            return templates.size();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The host and process the events come from.
+ *
+ * Resolving it never waits on the network: the host name is taken from
+ * the {@code net.logstash.logging.formatter.LogstashUtilFormatter.hostname}
+ * system property, the {@code HOSTNAME} or {@code COMPUTERNAME} environment
+ * variables or the kernel host name, and the process id and the container
+ * id from {@code /proc}. What is still unknown, the host name through
+ * {@link InetAddress#getLocalHost()}, the process id and the JVM start time
+ * through the runtime MXBean, is resolved by a background thread, which
+ * then publishes a new context.
+ *
+ * Instances are immutable, the formatters compile their layouts against
+ * {@link #current()} and compile them again once it changes.
+ */
+final class ProcessContext {
+
+    static final String UNKNOWN_HOST = "unknown-host";
+
+    private static final String HOSTNAME_PROPERTY = "net.logstash.logging.formatter.LogstashUtilFormatter.hostname";
+    private static final Path KERNEL_HOSTNAME = Paths.get("/proc/sys/kernel/hostname");
+    private static final Path PROC_SELF = Paths.get("/proc/self");
+    private static final Path CGROUP = Paths.get("/proc/self/cgroup");
+    private static final Path MOUNTINFO = Paths.get("/proc/self/mountinfo");
+    private static final Pattern CONTAINER_ID = Pattern.compile("(?<![0-9a-f])[0-9a-f]{64}(?![0-9a-f])");
+
+    private static volatile ProcessContext current;
+
+    /** The host name, {@link #UNKNOWN_HOST} until it is resolved. */
+    final String hostName;
+    /** Whether the host name is final. */
+    final boolean hostResolved;
+    /** The process id, -1 if unknown. */
+    final long pid;
+    /** The id of the container, null if unknown. */
+    final String containerId;
+    /** The start time of the JVM in milliseconds since the epoch, 0 if unknown. */
+    final long startMillis;
+
+    ProcessContext(final String hostName, final boolean hostResolved, final long pid, final String containerId,
+            final long startMillis) {
+        this.hostName = hostName;
+        this.hostResolved = hostResolved;
+        this.pid = pid;
+        this.containerId = containerId;
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * Get the current context, resolving what is known without the network
+     * on first use.
+     *
+     * @return the context
+     */
+    static ProcessContext current() {
+        ProcessContext context = current;
+        if (context == null) {
+            context = initial();
+        }
+        return context;
+    }
+
+    private static synchronized ProcessContext initial() {
+        if (current == null) {
+            final String hostName = hostName(System.getProperty(HOSTNAME_PROPERTY), System.getenv(), KERNEL_HOSTNAME);
+            current = new ProcessContext(hostName != null ? hostName : UNKNOWN_HOST, hostName != null,
+                    pid(PROC_SELF), containerId(CGROUP, MOUNTINFO), 0L);
+            final Thread resolver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    resolve();
+                }
+            }, "logstash-context-resolver");
+            resolver.setDaemon(true);
+            resolver.start();
+        }
+        return current;
+    }
+
+    /**
+     * Publish a new context, the layouts are compiled again on their next event.
+     *
+     * @param context the context
+     */
+    static void publish(final ProcessContext context) {
+        current = context;
+    }
+
+    /**
+     * Resolve what may block, in the background.
+     */
+    private static void resolve() {
+        try {
+            final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+            final ProcessContext context = current;
+            publish(new ProcessContext(context.hostName, context.hostResolved,
+                    context.pid >= 0 ? context.pid : pid(runtime.getName()), context.containerId,
+                    runtime.getStartTime()));
+        } catch (RuntimeException ex) {
+            // left unknown
+        }
+        if (!current.hostResolved) {
+            String hostName;
+            try {
+                hostName = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException ex) {
+                hostName = UNKNOWN_HOST;
+            }
+            final ProcessContext context = current;
+            publish(new ProcessContext(hostName, true, context.pid, context.containerId, context.startMillis));
+        }
+    }
+
+    /**
+     * Get the host name without the network.
+     *
+     * @param override the host name set as a system property, may be null
+     * @param env the environment variables
+     * @param kernelHostName the file of the kernel host name
+     * @return the host name, or null if it can only be resolved through the network
+     */
+    static String hostName(final String override, final Map<String, String> env, final Path kernelHostName) {
+        for (String name : new String[] {override, env.get("HOSTNAME"), env.get("COMPUTERNAME")}) {
+            if (name != null && !name.trim().isEmpty()) {
+                return name.trim();
+            }
+        }
+        try {
+            final String name = new String(Files.readAllBytes(kernelHostName), StandardCharsets.UTF_8).trim();
+            return name.isEmpty() ? null : name;
+        } catch (IOException | SecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the process id from the {@code /proc/self} link.
+     *
+     * @return the process id, -1 if unknown
+     */
+    static long pid(final Path procSelf) {
+        try {
+            return Long.parseLong(Files.readSymbolicLink(procSelf).toString());
+        } catch (IOException | NumberFormatException | UnsupportedOperationException | SecurityException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Get the process id from the name of the runtime MXBean, {@code pid@host} on the usual JVMs.
+     *
+     * @return the process id, -1 if unknown
+     */
+    static long pid(final String runtimeName) {
+        final int at = runtimeName.indexOf('@');
+        try {
+            return Long.parseLong(at < 0 ? runtimeName : runtimeName.substring(0, at));
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Get the id of the container from the control groups of the process, or
+     * with cgroup v2 from its mounts.
+     *
+     * @return the 64 hexadecimal digits of the id, null if not in a container
+     */
+    static String containerId(final Path cgroup, final Path mountinfo) {
+        for (Path path : new Path[] {cgroup, mountinfo}) {
+            try {
+                final List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+                for (String line : lines) {
+                    if (path == mountinfo && !line.contains("/containers/")) {
+                        continue;
+                    }
+                    final Matcher matcher = CONTAINER_ID.matcher(line);
+                    if (matcher.find()) {
+                        return matcher.group();
+                    }
+                }
+            } catch (IOException | SecurityException ex) {
+                // not on Linux
+            }
+        }
+        return null;
+    }
+}
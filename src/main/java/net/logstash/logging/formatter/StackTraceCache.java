@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the escaped stack traces of throwables thrown again and again.
+ *
+ * A throwable is looked up by its fingerprint: the captions and frames of
+ * the throwable, its suppressed exceptions and its causes, which is all the
+ * rendered text depends on. Taking the frames is much cheaper than turning
+ * each of them into text and escaping the result, so a repeated failure
+ * only costs the fingerprint and a copy of the cached value.
+ *
+ * The cache holds at most a number of stack traces, an arbitrary one is
+ * evicted to make room for a new one.
+ *
+ * Every stack trace also gets a stable hash of the classes of the
+ * throwable and its causes and of the class and method of their frames,
+ * which leaves out messages and line numbers so that the same failure keeps
+ * its hash across messages, builds and restarts.
+ */
+final class StackTraceCache {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The kinds of the throwables of a fingerprint. */
+    private static final int ROOT = 0;
+    private static final int SUPPRESSED = 1;
+    private static final int CAUSE = 2;
+    private static final int CIRCULAR = 3;
+
+    private final StackTraceRenderer renderer;
+    private final int maxEntries;
+    /** The shared metrics if enabled, null otherwise. */
+    private final FormatterMetrics metrics;
+    private final ConcurrentMap<Fingerprint, Entry> entries;
+
+    /**
+     * Create a cache.
+     *
+     * @param renderer the renderer of the stack traces
+     * @param maxEntries the most stack traces cached, 0 not to cache them
+     * @param metrics the metrics counting hits and misses, may be null
+     */
+    StackTraceCache(final StackTraceRenderer renderer, final int maxEntries, final FormatterMetrics metrics) {
+        this.renderer = renderer;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.metrics = metrics;
+        this.entries = new ConcurrentHashMap<Fingerprint, Entry>(Math.min(this.maxEntries, 1024));
+    }
+
+    /**
+     * Get the stack trace of a throwable, rendered and escaped on a miss.
+     *
+     * @param thrown the throwable
+     * @return the cached stack trace
+     */
+    Entry get(final Throwable thrown) {
+        final Fingerprint fingerprint = new Fingerprint(thrown, renderer);
+        if (maxEntries == 0) {
+            return new Entry(fingerprint, renderer.render(thrown));
+        }
+        Entry entry = entries.get(fingerprint);
+        if (entry != null) {
+            if (metrics != null) {
+                metrics.stackTraceCacheHit();
+            }
+            return entry;
+        }
+        if (metrics != null) {
+            metrics.stackTraceCacheMiss();
+        }
+        entry = new Entry(fingerprint, renderer.render(thrown));
+        while (entries.size() >= maxEntries) {
+            final Iterator<Fingerprint> it = entries.keySet().iterator();
+            if (!it.hasNext()) {
+                break;
+            }
+            it.next();
+            it.remove();
+            if (metrics != null) {
+                metrics.stackTraceCacheEviction();
+            }
+        }
+        final Entry existing = entries.putIfAbsent(fingerprint, entry);
+        return existing != null ? existing : entry;
+    }
+
+    /**
+     * Get the stable hash of the stack trace of a throwable, without rendering it.
+     *
+     * @param thrown the throwable
+     * @return the hash as 16 hexadecimal digits
+     */
+    String hash(final Throwable thrown) {
+        return new Fingerprint(thrown, renderer).stackHash;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * A rendered stack trace.
+     */
+    static final class Entry {
+
+        /** The stable hash, as 16 hexadecimal digits. */
+        final String stackHash;
+        /** The text, for the outputs other than JSON. */
+        final String text;
+        /** The quoted and escaped text, for {@link JsonEventWriter#escapedField(char[], char[])}. */
+        final char[] value;
+        /** The number of characters of the text. */
+        final int length;
+
+        Entry(final Fingerprint fingerprint, final String text) {
+            this.stackHash = fingerprint.stackHash;
+            this.text = text;
+            this.value = JsonEventWriter.escapeValue(text);
+            this.length = text.length();
+        }
+    }
+
+    /**
+     * The throwables of a stack trace in the order they are printed, each
+     * with its kind, its caption and its frames.
+     */
+    static final class Fingerprint {
+
+        /** The kind of each throwable, and for a circular reference the index of the throwable it repeats. */
+        private final int[] shape;
+        private final String[] captions;
+        private final StackTraceElement[][] traces;
+        private final int hashCode;
+        final String stackHash;
+
+        Fingerprint(final Throwable thrown, final StackTraceRenderer renderer) {
+            final Walk walk = new Walk();
+            walk.visit(thrown, ROOT, 0, true);
+            final int n = walk.captions.size();
+            this.shape = new int[n];
+            this.captions = walk.captions.toArray(new String[n]);
+            this.traces = walk.traces.toArray(new StackTraceElement[n][]);
+            int h = 1;
+            long stable = FNV_OFFSET;
+            for (int i = 0; i < n; i++) {
+                shape[i] = walk.shape.get(i);
+                h = 31 * h + shape[i];
+                h = 31 * h + captions[i].hashCode();
+                h = 31 * h + Arrays.hashCode(traces[i]);
+                if (walk.chain.get(i)) {
+                    stable = mix(stable, walk.classes.get(i).hashCode());
+                    for (StackTraceElement frame : traces[i]) {
+                        if (!renderer.isExcluded(frame.getClassName())) {
+                            stable = mix(stable, frame.getClassName().hashCode());
+                            stable = mix(stable, frame.getMethodName().hashCode());
+                        }
+                    }
+                }
+            }
+            this.hashCode = h;
+            this.stackHash = hex(stable);
+        }
+
+        private static long mix(final long hash, final int value) {
+            return (hash ^ (value & 0xffffffffL)) * FNV_PRIME;
+        }
+
+        private static String hex(final long hash) {
+            final char[] digits = new char[16];
+            for (int i = 15, shift = 0; i >= 0; i--, shift += 4) {
+                digits[i] = HEX[(int) (hash >>> shift) & 0xf];
+            }
+            return new String(digits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            final Fingerprint other = (Fingerprint) obj;
+            return hashCode == other.hashCode
+                    && Arrays.equals(shape, other.shape)
+                    && Arrays.equals(captions, other.captions)
+                    && Arrays.deepEquals(traces, other.traces);
+        }
+    }
+
+    /**
+     * Walks the throwables in the order {@link StackTraceRenderer} prints
+     * them by default, so that a fingerprint stands for one rendered text
+     * whatever the options of the renderer.
+     */
+    private static final class Walk {
+
+        private final Map<Throwable, Integer> seen = new IdentityHashMap<Throwable, Integer>();
+        final List<Integer> shape = new ArrayList<Integer>();
+        final List<String> captions = new ArrayList<String>();
+        final List<StackTraceElement[]> traces = new ArrayList<StackTraceElement[]>();
+        final List<String> classes = new ArrayList<String>();
+        /** Whether each throwable is the first one or one of its causes, the part of the stable hash. */
+        final List<Boolean> chain = new ArrayList<Boolean>();
+
+        void visit(final Throwable thrown, final int kind, final int depth, final boolean inChain) {
+            final Integer index = seen.get(thrown);
+            if (index != null) {
+                add(CIRCULAR | index << 2, thrown.toString(), new StackTraceElement[0], null, false);
+                return;
+            }
+            seen.put(thrown, captions.size());
+            add(kind | depth << 2, thrown.toString(), thrown.getStackTrace(), thrown.getClass().getName(), inChain);
+            for (Throwable suppressed : thrown.getSuppressed()) {
+                visit(suppressed, SUPPRESSED, depth + 1, false);
+            }
+            final Throwable cause = thrown.getCause();
+            if (cause != null) {
+                visit(cause, CAUSE, depth, inChain);
+            }
+        }
+
+        private void add(final int kind, final String caption, final StackTraceElement[] trace,
+                final String className, final boolean inChain) {
+            shape.add(kind);
+            captions.add(caption);
+            traces.add(trace);
+            classes.add(className);
+            chain.add(inChain);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Renders the stack trace of a throwable, walking the frames directly.
+ *
+ * By default the text is the one {@link Throwable#printStackTrace()}
+ * prints, causes and suppressed exceptions included, with the frames in
+ * common with the enclosing trace folded into {@code ... n more}. A cause
+ * or suppressed exception seen before is printed as a circular reference
+ * the way the running Java does: {@code [CIRCULAR REFERENCE: ...]} after
+ * its caption on Java 9 and later, {@code \t[CIRCULAR REFERENCE:...]} on
+ * Java 8. It can be shortened by:
+ * <ul>
+ * <li>leaving out the frames of some packages, except the first frame of
+ * each trace, a run of left out frames becomes {@code ... n filtered}</li>
+ * <li>starting with the root cause, each wrapping exception then comes
+ * after its cause as {@code Wrapped by:} with the frames in common with
+ * the cause folded</li>
+ * <li>printing at most a number of frames per trace, the rest becomes
+ * {@code ... n truncated}</li>
+ * <li>cutting the text at the end of a line so that it fits in a number
+ * of characters, with a {@code ... truncated} line</li>
+ * </ul>
+ */
+final class StackTraceRenderer {
+
+    private static final String CAUSE_CAPTION = "Caused by: ";
+    private static final String WRAPPED_CAPTION = "Wrapped by: ";
+    private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+    private static final String TRUNCATED = "... truncated";
+    private static final String NEW_LINE = System.lineSeparator();
+    /** Whether a circular reference is printed after its prefix and caption, as since Java 9. */
+    private static final boolean CAPTIONED_CIRCULAR_REFERENCE = captionedCircularReference();
+
+    private final String[] excluded;
+    private final boolean rootCauseFirst;
+    private final int maxDepth;
+    private final int maxLength;
+
+    /**
+     * Create a renderer.
+     *
+     * @param exclude comma separated prefixes of the class names of the frames to leave out
+     * @param rootCauseFirst whether to start with the root cause
+     * @param maxDepth the most frames printed per trace, 0 for all
+     * @param maxLength the most characters, 0 for no limit
+     */
+    StackTraceRenderer(final String exclude, final boolean rootCauseFirst, final int maxDepth, final int maxLength) {
+        final List<String> prefixes = new ArrayList<String>();
+        if (exclude != null) {
+            for (String prefix : exclude.split(",")) {
+                if (!prefix.trim().isEmpty()) {
+                    prefixes.add(prefix.trim());
+                }
+            }
+        }
+        this.excluded = prefixes.toArray(new String[prefixes.size()]);
+        this.rootCauseFirst = rootCauseFirst;
+        this.maxDepth = Math.max(0, maxDepth);
+        this.maxLength = Math.max(0, maxLength);
+    }
+
+    /**
+     * Render the stack trace.
+     *
+     * @param thrown the throwable
+     * @return the stack trace, each line ending with the line separator
+     */
+    String render(final Throwable thrown) {
+        final Output out = new Output(maxLength);
+        final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        if (rootCauseFirst) {
+            renderRootCauseFirst(out, thrown, seen);
+        } else {
+            seen.add(thrown);
+            final StackTraceElement[] trace = thrown.getStackTrace();
+            out.line("", "", thrown.toString());
+            frames(out, "", trace, trace.length - 1, 0);
+            enclosed(out, thrown, trace, "", seen);
+        }
+        return out.toString();
+    }
+
+    private void renderRootCauseFirst(final Output out, final Throwable thrown, final Set<Throwable> seen) {
+        // the chain of causes, without a cause seen before
+        final List<Throwable> chain = new ArrayList<Throwable>();
+        for (Throwable t = thrown; t != null && seen.add(t); t = t.getCause()) {
+            chain.add(t);
+        }
+        StackTraceElement[] inner = null;
+        for (int i = chain.size() - 1; i >= 0 && !out.full; i--) {
+            final Throwable t = chain.get(i);
+            final StackTraceElement[] trace = t.getStackTrace();
+            if (inner == null) {
+                out.line("", "", t.toString());
+                frames(out, "", trace, trace.length - 1, 0);
+            } else {
+                final int last = lastDistinctFrame(trace, inner);
+                out.line("", WRAPPED_CAPTION, t.toString());
+                frames(out, "", trace, last, trace.length - 1 - last);
+            }
+            for (Throwable suppressed : t.getSuppressed()) {
+                enclosed(out, suppressed, trace, SUPPRESSED_CAPTION, "\t", seen);
+            }
+            inner = trace;
+        }
+    }
+
+    /**
+     * Render the suppressed exceptions and the cause of a throwable.
+     */
+    private void enclosed(final Output out, final Throwable thrown, final StackTraceElement[] trace,
+            final String prefix, final Set<Throwable> seen) {
+        for (Throwable suppressed : thrown.getSuppressed()) {
+            enclosed(out, suppressed, trace, SUPPRESSED_CAPTION, prefix + "\t", seen);
+        }
+        final Throwable cause = thrown.getCause();
+        if (cause != null) {
+            enclosed(out, cause, trace, CAUSE_CAPTION, prefix, seen);
+        }
+    }
+
+    private void enclosed(final Output out, final Throwable thrown, final StackTraceElement[] enclosingTrace,
+            final String caption, final String prefix, final Set<Throwable> seen) {
+        if (out.full) {
+            return;
+        }
+        if (!seen.add(thrown)) {
+            if (CAPTIONED_CIRCULAR_REFERENCE) {
+                out.line(prefix, caption + "[CIRCULAR REFERENCE: ", thrown + "]");
+            } else {
+                out.line("\t", "[CIRCULAR REFERENCE:", thrown + "]");
+            }
+            return;
+        }
+        final StackTraceElement[] trace = thrown.getStackTrace();
+        final int last = lastDistinctFrame(trace, enclosingTrace);
+        out.line(prefix, caption, thrown.toString());
+        frames(out, prefix, trace, last, trace.length - 1 - last);
+        enclosed(out, thrown, trace, prefix, seen);
+    }
+
+    /**
+     * Check how the running Java prints a cause cycle.
+     */
+    private static boolean captionedCircularReference() {
+        final Exception first = new Exception();
+        final Exception second = new Exception(first);
+        first.initCause(second);
+        first.setStackTrace(new StackTraceElement[0]);
+        second.setStackTrace(new StackTraceElement[0]);
+        final StringWriter text = new StringWriter();
+        first.printStackTrace(new PrintWriter(text));
+        return text.toString().contains(CAUSE_CAPTION + "[CIRCULAR REFERENCE: ");
+    }
+
+    /**
+     * Get the last frame of the trace not in common with the end of the other trace.
+     */
+    private static int lastDistinctFrame(final StackTraceElement[] trace, final StackTraceElement[] other) {
+        int m = trace.length - 1;
+        int n = other.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(other[n])) {
+            m--;
+            n--;
+        }
+        return m;
+    }
+
+    /**
+     * Render the frames up to the last one, leaving out the excluded frames
+     * and the ones beyond the maximum depth.
+     */
+    private void frames(final Output out, final String prefix, final StackTraceElement[] trace, final int last,
+            final int common) {
+        int printed = 0;
+        int filtered = 0;
+        for (int i = 0; i <= last && !out.full; i++) {
+            if (maxDepth > 0 && printed == maxDepth) {
+                if (filtered > 0) {
+                    out.line(prefix, "\t... ", filtered + " filtered");
+                }
+                out.line(prefix, "\t... ", (last + 1 - i) + " truncated");
+                filtered = 0;
+                break;
+            }
+            if (i > 0 && isExcluded(trace[i].getClassName())) {
+                filtered++;
+                continue;
+            }
+            if (filtered > 0) {
+                out.line(prefix, "\t... ", filtered + " filtered");
+                filtered = 0;
+            }
+            out.line(prefix, "\tat ", trace[i].toString());
+            printed++;
+        }
+        if (filtered > 0) {
+            out.line(prefix, "\t... ", filtered + " filtered");
+        }
+        if (common != 0) {
+            out.line(prefix, "\t... ", common + " more");
+        }
+    }
+
+    /**
+     * Check whether the frames of a class are left out.
+     *
+     * @param className the class name of a frame
+     * @return whether its prefix is excluded
+     */
+    boolean isExcluded(final String className) {
+        for (String prefix : excluded) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The text rendered so far, cut at a whole line once the maximum length is reached.
+     */
+    private static final class Output {
+
+        private final StringBuilder text = new StringBuilder(1024);
+        private final int maxLength;
+        boolean full;
+
+        Output(final int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        void line(final String prefix, final String caption, final String line) {
+            if (full) {
+                return;
+            }
+            final int length = prefix.length() + caption.length() + line.length() + NEW_LINE.length();
+            if (maxLength > 0 && text.length() + length > maxLength) {
+                full = true;
+                // drop whole lines until the marker fits
+                final int limit = maxLength - TRUNCATED.length() - NEW_LINE.length();
+                int end = text.length();
+                while (end > Math.max(limit, 0)) {
+                    final int previous = text.lastIndexOf(NEW_LINE, end - NEW_LINE.length() - 1);
+                    end = previous < 0 ? 0 : previous + NEW_LINE.length();
+                }
+                text.setLength(end);
+                if (limit >= 0) {
+                    text.append(TRUNCATED).append(NEW_LINE);
+                }
+                return;
+            }
+            text.append(prefix).append(caption).append(line).append(NEW_LINE);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Thread-safe formatter for the {@code @timestamp} field.
+ *
+ * Produces the same text as {@link LogstashUtilFormatter#DATE_FORMAT}, or
+ * {@code yyyy-MM-dd'T'HH:mm:ss.SSS'Z'} in UTC mode. Everything up to the
+ * seconds is cached for the most recent second, so most records only need
+ * their milliseconds written.
+ */
+final class TimestampFormatter {
+
+    /** Upper bound of the formatted length, including nine digit years. */
+    static final int MAX_LENGTH = 36;
+
+    private final ZoneId zone;
+    private final boolean utc;
+    private volatile Second cached;
+
+    /**
+     * Immutable text of one second, shared between threads.
+     */
+    private static final class Second {
+        final long epochSecond;
+        final char[] prefix;
+        final char[] suffix;
+
+        Second(final long epochSecond, final char[] prefix, final char[] suffix) {
+            this.epochSecond = epochSecond;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+
+    /**
+     * Create a formatter using the zone offset of the given zone.
+     *
+     * @param zone the zone to render the local time in
+     */
+    TimestampFormatter(final ZoneId zone) {
+        this(zone, false);
+    }
+
+    private TimestampFormatter(final ZoneId zone, final boolean utc) {
+        this.zone = zone;
+        this.utc = utc;
+    }
+
+    /**
+     * Create a formatter writing ISO-8601 UTC timestamps with a {@code Z} suffix.
+     *
+     * @return the formatter
+     */
+    static TimestampFormatter utc() {
+        return new TimestampFormatter(ZoneOffset.UTC, true);
+    }
+
+    /**
+     * Format the timestamp.
+     *
+     * @param millis milliseconds since the epoch
+     * @return the formatted timestamp
+     */
+    String format(final long millis) {
+        final char[] buf = new char[MAX_LENGTH];
+        return new String(buf, 0, formatTo(millis, buf, 0));
+    }
+
+    /**
+     * Format the timestamp into a buffer.
+     *
+     * @param millis milliseconds since the epoch
+     * @param buf the buffer, with room for {@link #MAX_LENGTH} characters
+     * @param pos the position to start writing at
+     * @return the position after the last character written
+     */
+    int formatTo(final long millis, final char[] buf, final int pos) {
+        final long epochSecond = Math.floorDiv(millis, 1000L);
+        final int milli = (int) Math.floorMod(millis, 1000L);
+        Second second = cached;
+        if (second == null || second.epochSecond != epochSecond) {
+            second = computeSecond(epochSecond);
+            cached = second;
+        }
+        int p = pos;
+        System.arraycopy(second.prefix, 0, buf, p, second.prefix.length);
+        p += second.prefix.length;
+        buf[p++] = (char) ('0' + milli / 100);
+        buf[p++] = (char) ('0' + milli / 10 % 10);
+        buf[p++] = (char) ('0' + milli % 10);
+        System.arraycopy(second.suffix, 0, buf, p, second.suffix.length);
+        return p + second.suffix.length;
+    }
+
+    private Second computeSecond(final long epochSecond) {
+        final ZoneOffset offset = zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond));
+        final LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, offset);
+
+        final StringBuilder prefix = new StringBuilder(24);
+        pad(prefix, time.getYear(), 4).append('-');
+        pad(prefix, time.getMonthValue(), 2).append('-');
+        pad(prefix, time.getDayOfMonth(), 2).append('T');
+        pad(prefix, time.getHour(), 2).append(':');
+        pad(prefix, time.getMinute(), 2).append(':');
+        pad(prefix, time.getSecond(), 2).append('.');
+
+        final StringBuilder suffix = new StringBuilder(5);
+        if (utc) {
+            suffix.append('Z');
+        } else {
+            // RFC 822 zone as SimpleDateFormat writes it, seconds are truncated
+            int minutes = offset.getTotalSeconds() / 60;
+            if (minutes < 0) {
+                suffix.append('-');
+                minutes = -minutes;
+            } else {
+                suffix.append('+');
+            }
+            pad(suffix, minutes / 60, 2);
+            pad(suffix, minutes % 60, 2);
+        }
+        return new Second(epochSecond, toChars(prefix), toChars(suffix));
+    }
+
+    private static StringBuilder pad(final StringBuilder sb, final int value, final int width) {
+        final String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(digits);
+    }
+
+    private static char[] toChars(final StringBuilder sb) {
+        final char[] chars = new char[sb.length()];
+        sb.getChars(0, chars.length, chars, 0);
+        return chars;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Builds the event as a javax.json object tree.
+ *
+ * Only used when custom fields repeat a key: a key written again then
+ * replaces the earlier value in place, which the streaming writers cannot
+ * do.
+ *
+ * Instances are not thread-safe and write a single event.
+ */
+final class TreeEventWriter extends EventWriter {
+
+    private static final JsonBuilderFactory BUILDER = Json.createBuilderFactory(null);
+
+    /** The open objects and arrays, innermost first. */
+    private final Deque<Object> builders = new ArrayDeque<Object>();
+    /** The key of each open object or array, the empty string in an array. */
+    private final Deque<String> keys = new ArrayDeque<String>();
+    private JsonObject event;
+
+    @Override
+    TreeEventWriter beginObject() {
+        return push(BUILDER.createObjectBuilder(), "");
+    }
+
+    @Override
+    TreeEventWriter beginObject(final Key key) {
+        return push(BUILDER.createObjectBuilder(), key.key);
+    }
+
+    @Override
+    TreeEventWriter endObject() {
+        final String key = keys.pop();
+        final JsonObject object = ((JsonObjectBuilder) builders.pop()).build();
+        if (builders.isEmpty()) {
+            event = object;
+        } else if (builders.peek() instanceof JsonObjectBuilder) {
+            object().add(key, object);
+        } else {
+            array().add(object);
+        }
+        return this;
+    }
+
+    @Override
+    TreeEventWriter beginArray(final Key key) {
+        return push(BUILDER.createArrayBuilder(), key.key);
+    }
+
+    @Override
+    TreeEventWriter endArray() {
+        final String key = keys.pop();
+        final JsonArrayBuilder array = (JsonArrayBuilder) builders.pop();
+        object().add(key, array);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter field(final Key key, final String value) {
+        if (value == null) {
+            object().addNull(key.key);
+        } else {
+            object().add(key.key, value);
+        }
+        return this;
+    }
+
+    @Override
+    TreeEventWriter field(final Key key, final long value) {
+        object().add(key.key, value);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter field(final Key key, final TimestampFormatter timestamps, final long millis) {
+        object().add(key.key, timestamps.format(millis));
+        return this;
+    }
+
+    @Override
+    TreeEventWriter field(final Key key, final StackTraceCache.Entry stackTrace) {
+        object().add(key.key, stackTrace.text);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter fields(final FieldLayout.Constant constant) {
+        constant.writeTo(this);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter value(final String value) {
+        if (value == null) {
+            array().addNull();
+        } else {
+            array().add(value);
+        }
+        return this;
+    }
+
+    @Override
+    TreeEventWriter value(final long value) {
+        array().add(value);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter value(final double value) {
+        array().add(value);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter value(final BigDecimal value) {
+        array().add(value);
+        return this;
+    }
+
+    @Override
+    TreeEventWriter value(final boolean value) {
+        array().add(value);
+        return this;
+    }
+
+    /**
+     * Get the event built.
+     *
+     * @return the event, null before its object is ended
+     */
+    JsonObject event() {
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(event);
+    }
+
+    private TreeEventWriter push(final Object builder, final String key) {
+        builders.push(builder);
+        keys.push(key);
+        return this;
+    }
+
+    private JsonObjectBuilder object() {
+        return (JsonObjectBuilder) builders.peek();
+    }
+
+    private JsonArrayBuilder array() {
+        return (JsonArrayBuilder) builders.peek();
+    }
+}
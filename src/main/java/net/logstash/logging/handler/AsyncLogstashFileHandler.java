@@ -0,0 +1,554 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Filter;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+
+import net.logstash.logging.filter.SummarizingFilter;
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtHandler;
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Handler appending events to a file from a background thread.
+ *
+ * Publishing threads only copy the record into a bounded lock-free ring
+ * buffer. A single consumer thread formats the records into a batch buffer
+ * and writes each batch with one {@link FileChannel} write, either once the
+ * queue is drained, the batch is full or the flush interval has passed.
+ * When a backlog has built up, a {@link LogstashUtilFormatter} formats the
+ * waiting records in parallel with
+ * {@link LogstashUtilFormatter#formatBatch(List, OutputStream)}.
+ *
+ * What happens when the queue is full depends on the {@link OverflowPolicy}.
+ */
+public class AsyncLogstashFileHandler extends ExtHandler {
+
+    /**
+     * What to do with a record when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for room in the queue. */
+        BLOCK,
+        /** Discard the record. */
+        DROP_NEWEST,
+        /** Discard the record if its level is below the drop threshold, wait otherwise. */
+        DROP_BY_LEVEL,
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_QUEUE_LENGTH = 8192;
+    private static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /** Records waiting in the queue from which they are formatted in parallel. */
+    private static final int PARALLEL_BACKLOG = 1024;
+    private static final int MAX_PARALLEL_BATCH = 8192;
+
+    private final Object outputLock = new Object();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile int dropThreshold = Level.WARNING.intValue();
+    private volatile long flushIntervalNanos;
+    private int queueLength = DEFAULT_QUEUE_LENGTH;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean append = true;
+    private File file;
+    private FileChannel channel;
+
+    private volatile RingBuffer<ExtLogRecord> queue;
+    private volatile Thread consumer;
+    private volatile boolean sleeping;
+    private volatile boolean flushRequested;
+    private volatile boolean closed;
+    /** Number of records taken from the queue whose event has been written. */
+    private volatile long written;
+
+    public AsyncLogstashFileHandler() {
+    }
+
+    /**
+     * Capture what a record takes from the logging thread, its caller only as
+     * far as the caller policy of a {@link LogstashUtilFormatter} asks for it.
+     * That formatter renders the message itself, on the writer thread, from
+     * snapshots of the parameters taken here, so it is not rendered here as
+     * well.
+     *
+     * @param record the logrecord
+     * @param formatter the formatter of the handler
+     */
+    static void capture(final ExtLogRecord record, final Formatter formatter) {
+        if (formatter instanceof LogstashUtilFormatter) {
+            record.copyMdc();
+            ((LogstashUtilFormatter) formatter).captureCaller(record);
+            ((LogstashUtilFormatter) formatter).captureParameters(record);
+        } else {
+            record.copyAll();
+        }
+    }
+
+    @Override
+    protected void doPublish(final ExtLogRecord record) {
+        final RingBuffer<ExtLogRecord> queue = this.queue;
+        if (queue == null || closed) {
+            return;
+        }
+        // the caller, MDC and NDC have to be captured on the logging thread
+        capture(record, getFormatter());
+        if (!queue.offer(record)) {
+            final OverflowPolicy policy = overflowPolicy;
+            if (policy == OverflowPolicy.DROP_NEWEST
+                    || (policy == OverflowPolicy.DROP_BY_LEVEL && record.getLevel().intValue() < dropThreshold)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            while (!queue.offer(record)) {
+                final Thread consumer = this.consumer;
+                if (closed || consumer == null || !consumer.isAlive()) {
+                    // nobody is left to make room
+                    dropped.incrementAndGet();
+                    return;
+                }
+                wakeConsumer();
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            }
+        }
+        // no autoflush, waiting for the write would defeat the queue
+        if (sleeping) {
+            wakeConsumer();
+        }
+    }
+
+    /**
+     * Set the filter, which publishes its summaries to this handler.
+     *
+     * @param filter the filter
+     */
+    @Override
+    public void setFilter(final Filter filter) throws SecurityException {
+        final Filter previous = getFilter();
+        super.setFilter(filter);
+        SummarizingFilter.attach(this, previous, filter);
+    }
+
+    /**
+     * Write everything published so far, waiting for the consumer thread.
+     */
+    @Override
+    public void flush() {
+        SummarizingFilter.flush(getFilter());
+        final RingBuffer<ExtLogRecord> queue = this.queue;
+        final Thread consumer = this.consumer;
+        if (queue != null && consumer != null) {
+            final long target = queue.offered();
+            flushRequested = true;
+            while (written < target && consumer.isAlive()) {
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            }
+        }
+        super.flush();
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        checkAccess(this);
+        SummarizingFilter.detach(this, getFilter());
+        closed = true;
+        final Thread consumer = this.consumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+            boolean interrupted = false;
+            while (consumer.isAlive()) {
+                try {
+                    consumer.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (outputLock) {
+            safeClose(channel);
+            channel = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Set the file to append to, starting the consumer thread on first use.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be opened
+     */
+    public void setFile(final File file) throws IOException {
+        checkAccess(this);
+        final File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final FileChannel newChannel;
+        final FileChannel oldChannel;
+        synchronized (outputLock) {
+            newChannel = append
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+            oldChannel = channel;
+            channel = newChannel;
+            this.file = file;
+        }
+        safeClose(oldChannel);
+        start();
+    }
+
+    public void setFileName(final String fileName) throws IOException {
+        setFile(new File(fileName));
+    }
+
+    public File getFile() {
+        synchronized (outputLock) {
+            return file;
+        }
+    }
+
+    /**
+     * Set whether to append to an existing file, must be set before the file.
+     *
+     * @param append false to truncate the file when it is opened
+     */
+    public void setAppend(final boolean append) {
+        checkAccess(this);
+        synchronized (outputLock) {
+            this.append = append;
+        }
+    }
+
+    /**
+     * Set the number of records the queue holds, must be set before the file.
+     *
+     * @param queueLength the queue length, rounded up to a power of two
+     */
+    public void setQueueLength(final int queueLength) {
+        checkAccess(this);
+        if (queueLength < 1) {
+            throw new IllegalArgumentException("Queue length must be positive");
+        }
+        synchronized (outputLock) {
+            checkNotStarted();
+            this.queueLength = queueLength;
+        }
+    }
+
+    public int getQueueLength() {
+        synchronized (outputLock) {
+            return queueLength;
+        }
+    }
+
+    /**
+     * Set the size in bytes of the buffer events are batched in, must be set
+     * before the file.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(final int batchSize) {
+        checkAccess(this);
+        if (batchSize < 1024) {
+            throw new IllegalArgumentException("Batch size must be at least 1024 bytes");
+        }
+        synchronized (outputLock) {
+            checkNotStarted();
+            this.batchSize = batchSize;
+        }
+    }
+
+    public int getBatchSize() {
+        synchronized (outputLock) {
+            return batchSize;
+        }
+    }
+
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        checkAccess(this);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set the level records must reach to be kept by {@link OverflowPolicy#DROP_BY_LEVEL}.
+     *
+     * @param dropThreshold the level name, {@code WARNING} by default
+     */
+    public void setDropThreshold(final String dropThreshold) {
+        checkAccess(this);
+        this.dropThreshold = Level.parse(dropThreshold).intValue();
+    }
+
+    /**
+     * Set how long events may wait in the batch before it is written.
+     *
+     * With the default of 0 a batch is written as soon as the queue is drained.
+     *
+     * @param flushInterval the interval in milliseconds
+     */
+    public void setFlushInterval(final long flushInterval) {
+        checkAccess(this);
+        if (flushInterval < 0) {
+            throw new IllegalArgumentException("Flush interval must not be negative");
+        }
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    public long getFlushInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos);
+    }
+
+    /**
+     * Get the number of records discarded because the queue was full.
+     *
+     * @return the number of dropped records
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void checkNotStarted() {
+        if (queue != null) {
+            throw new IllegalStateException("Handler already started");
+        }
+    }
+
+    private void start() {
+        synchronized (outputLock) {
+            if (queue != null) {
+                return;
+            }
+            queue = new RingBuffer<ExtLogRecord>(queueLength);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        consume();
+                    } catch (Error err) {
+                        reportError("Consumer thread stopped by " + err, null, ErrorManager.GENERIC_FAILURE);
+                        throw err;
+                    }
+                }
+            }, "logstash-async-file-handler");
+            thread.setDaemon(true);
+            consumer = thread;
+            thread.start();
+        }
+    }
+
+    private void wakeConsumer() {
+        final Thread consumer = this.consumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Main loop of the consumer thread.
+     */
+    private void consume() {
+        final RingBuffer<ExtLogRecord> queue = this.queue;
+        final ByteBuffer batch = ByteBuffer.allocateDirect(getBatchSize());
+        long taken = 0;
+        long batchStart = 0;
+        while (true) {
+            final ExtLogRecord record = queue.poll();
+            if (record != null) {
+                if (batch.position() == 0) {
+                    batchStart = System.nanoTime();
+                }
+                if (queue.offered() - queue.polled() >= PARALLEL_BACKLOG
+                        && getFormatter() instanceof LogstashUtilFormatter) {
+                    taken += appendBacklog(record, queue, batch);
+                    write(batch, taken);
+                    continue;
+                }
+                taken++;
+                append(record, batch);
+                final long interval = flushIntervalNanos;
+                if (interval > 0 && System.nanoTime() - batchStart >= interval) {
+                    write(batch, taken);
+                }
+                continue;
+            }
+
+            final long interval = flushIntervalNanos;
+            final long waited = System.nanoTime() - batchStart;
+            if (flushRequested || closed || interval == 0 || waited >= interval) {
+                flushRequested = false;
+                write(batch, taken);
+            }
+            if (closed && queue.isEmpty()) {
+                return;
+            }
+            sleeping = true;
+            if (queue.isEmpty() && !flushRequested && !closed) {
+                LockSupport.parkNanos(this, batch.position() > 0 ? interval - waited : IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Format the record into the batch, writing the batch first if it is full.
+     */
+    private void append(final ExtLogRecord record, final ByteBuffer batch) {
+        try {
+            try {
+                format(record, batch);
+            } catch (BufferOverflowException ex) {
+                write(batch, -1);
+                try {
+                    format(record, batch);
+                } catch (BufferOverflowException ex2) {
+                    // larger than a whole batch
+                    final ByteArrayOutputStream event = new ByteArrayOutputStream();
+                    formatTo(record, event);
+                    writeFully(ByteBuffer.wrap(event.toByteArray()));
+                }
+            }
+        } catch (Exception ex) {
+            reportError("Formatting error", ex, ErrorManager.FORMAT_FAILURE);
+        }
+    }
+
+    /**
+     * Take the records waiting in the queue and write them as one batch
+     * formatted in parallel, after the events already in the batch.
+     *
+     * @return the number of records taken
+     */
+    private int appendBacklog(final ExtLogRecord first, final RingBuffer<ExtLogRecord> queue, final ByteBuffer batch) {
+        final List<ExtLogRecord> records = new ArrayList<ExtLogRecord>(MAX_PARALLEL_BATCH);
+        records.add(first);
+        ExtLogRecord record;
+        while (records.size() < MAX_PARALLEL_BATCH && (record = queue.poll()) != null) {
+            records.add(record);
+        }
+        write(batch, -1);
+        try {
+            ((LogstashUtilFormatter) getFormatter()).formatBatch(records, new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    writeFully(ByteBuffer.wrap(b, off, len));
+                }
+            });
+        } catch (IOException ex) {
+            reportError("Error writing log message", ex, ErrorManager.WRITE_FAILURE);
+        } catch (RuntimeException ex) {
+            // nothing was written, format one record at a time to report the failing ones
+            for (ExtLogRecord r : records) {
+                append(r, batch);
+            }
+        }
+        return records.size();
+    }
+
+    private void format(final ExtLogRecord record, final ByteBuffer batch) {
+        final Formatter formatter = getFormatter();
+        if (formatter instanceof LogstashUtilFormatter) {
+            ((LogstashUtilFormatter) formatter).formatTo(record, batch);
+        } else {
+            batch.put(formatter.format(record).getBytes(UTF_8));
+        }
+    }
+
+    private void formatTo(final ExtLogRecord record, final ByteArrayOutputStream out) throws IOException {
+        final Formatter formatter = getFormatter();
+        if (formatter instanceof LogstashUtilFormatter) {
+            ((LogstashUtilFormatter) formatter).formatTo(record, out);
+        } else {
+            out.write(formatter.format(record).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Write and clear the batch.
+     *
+     * @param batch the batch
+     * @param taken the number of records taken so far, or -1 if the last one is not in the batch yet
+     */
+    private void write(final ByteBuffer batch, final long taken) {
+        if (batch.position() > 0) {
+            batch.flip();
+            try {
+                writeFully(batch);
+            } catch (IOException ex) {
+                reportError("Error writing log message", ex, ErrorManager.WRITE_FAILURE);
+            }
+            batch.clear();
+        }
+        if (taken >= 0) {
+            written = taken;
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        synchronized (outputLock) {
+            if (channel == null) {
+                return;
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private void safeClose(final FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (Exception ex) {
+                reportError("Error closing file", ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.logging.Formatter;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Reusable per-thread buffer holding one UTF-8 encoded event.
+ */
+final class EventBuffer extends ByteArrayOutputStream {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<EventBuffer> BUFFERS = new ThreadLocal<EventBuffer>() {
+        @Override
+        protected EventBuffer initialValue() {
+            return new EventBuffer();
+        }
+    };
+
+    private EventBuffer() {
+        super(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Get the empty buffer of the current thread, {@link #release()} it when done.
+     *
+     * @return the buffer
+     */
+    static EventBuffer get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * Format the record into this buffer.
+     *
+     * With a {@link LogstashUtilFormatter} the event is encoded straight
+     * from the formatter's buffer, other formatters go through a String.
+     *
+     * @param formatter the formatter of the handler
+     * @param record the logrecord to format
+     * @throws IOException never, required by the output stream contract
+     */
+    void format(final Formatter formatter, final ExtLogRecord record) throws IOException {
+        if (formatter instanceof LogstashUtilFormatter) {
+            ((LogstashUtilFormatter) formatter).formatTo(record, this);
+        } else {
+            write(formatter.format(record).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Format the record as a line, for the handlers that find the end of
+     * the events by their newline.
+     *
+     * @param formatter the formatter of the handler
+     * @param record the logrecord to format
+     * @throws IOException if the formatter writes binary events
+     */
+    void formatLine(final Formatter formatter, final ExtLogRecord record) throws IOException {
+        if (formatter instanceof LogstashUtilFormatter
+                && !"json".equals(((LogstashUtilFormatter) formatter).getEncoding())) {
+            throw new IOException("This handler only writes the json encoding");
+        }
+        format(formatter, record);
+    }
+
+    /**
+     * Copy the content into the buffer.
+     *
+     * @param dst the buffer to copy to
+     */
+    void copyTo(final ByteBuffer dst) {
+        dst.put(buf, 0, count);
+    }
+
+    /**
+     * Empty the buffer, giving back oversized arrays.
+     */
+    void release() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[INITIAL_CAPACITY];
+        }
+        reset();
+    }
+}
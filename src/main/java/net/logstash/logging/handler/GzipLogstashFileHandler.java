@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Handler appending gzip compressed events to a file.
+ *
+ * Every time the file is opened a new gzip member is started, and it is
+ * finished when the file is changed or the handler closed, so a rotated
+ * file is a valid {@code .gz} file. Appending to an existing file adds a
+ * member, which gzip readers decompress as if it were one stream.
+ *
+ * Meanwhile the deflater is sync-flushed every {@code syncFlushInterval}:
+ * everything written before then can be decompressed by a reader of the
+ * file, which only sees whole events as each event ends with a newline.
+ * Auto flush is off by default, otherwise every event would be flushed
+ * and barely compressed.
+ */
+public class GzipLogstashFileHandler extends LogstashFileHandler {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private volatile long syncFlushIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    /** Whether events were written since the last flush. */
+    private volatile boolean dirty;
+    private volatile Thread flusher;
+
+    public GzipLogstashFileHandler() {
+        setAutoFlush(false);
+    }
+
+    public GzipLogstashFileHandler(final String fileName) throws FileNotFoundException {
+        this();
+        setFileName(fileName);
+    }
+
+    @Override
+    protected OutputStream wrap(final OutputStream out) throws IOException {
+        return new GzipStream(out, bufferSize, compressionLevel);
+    }
+
+    @Override
+    protected void preWrite(final ExtLogRecord record) {
+        dirty = true;
+        if (flusher == null && syncFlushIntervalNanos > 0) {
+            startFlusher();
+        }
+    }
+
+    @Override
+    void flushStream() {
+        dirty = false;
+        super.flushStream();
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        checkAccess(this);
+        final Thread flusher = this.flusher;
+        this.flusher = null;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        super.close();
+    }
+
+    /**
+     * Set the deflater level, used for the files opened afterwards.
+     *
+     * @param compressionLevel 1 (fastest) to 9 (smallest), 6 by default
+     */
+    public void setCompressionLevel(final int compressionLevel) {
+        checkAccess(this);
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel == Deflater.DEFAULT_COMPRESSION ? 6 : compressionLevel;
+    }
+
+    /**
+     * Set the size of the deflater output buffer, used for the files opened afterwards.
+     *
+     * @param bufferSize the size in bytes, 64 KiB by default
+     */
+    public void setBufferSize(final int bufferSize) {
+        checkAccess(this);
+        if (bufferSize < 512) {
+            throw new IllegalArgumentException("Buffer size must be at least 512 bytes");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set how long written events may stay in the deflater before it is
+     * sync-flushed.
+     *
+     * @param syncFlushInterval the interval in milliseconds, 1000 by
+     *            default, 0 to only flush with {@link #flush()}
+     */
+    public void setSyncFlushInterval(final long syncFlushInterval) {
+        checkAccess(this);
+        if (syncFlushInterval < 0) {
+            throw new IllegalArgumentException("Sync flush interval must not be negative");
+        }
+        this.syncFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncFlushInterval);
+        final Thread flusher = this.flusher;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    public long getSyncFlushInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(syncFlushIntervalNanos);
+    }
+
+    private void startFlusher() {
+        synchronized (outputLock) {
+            if (flusher != null) {
+                return;
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    syncFlush();
+                }
+            }, "logstash-gzip-flusher");
+            thread.setDaemon(true);
+            flusher = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Main loop of the flusher thread, until the handler is closed or the interval set to 0.
+     */
+    private void syncFlush() {
+        final Thread current = Thread.currentThread();
+        while (flusher == current) {
+            final long interval = syncFlushIntervalNanos;
+            if (interval == 0) {
+                synchronized (outputLock) {
+                    if (flusher == current) {
+                        flusher = null;
+                    }
+                }
+                return;
+            }
+            LockSupport.parkNanos(this, interval);
+            if (dirty && flusher == current) {
+                flushStream();
+            }
+        }
+    }
+
+    /**
+     * Gzip stream at a given level, sync-flushing the deflater when flushed.
+     */
+    private static final class GzipStream extends GZIPOutputStream {
+
+        GzipStream(final OutputStream out, final int size, final int level) throws IOException {
+            super(out, size, true);
+            def.setLevel(level);
+        }
+    }
+}
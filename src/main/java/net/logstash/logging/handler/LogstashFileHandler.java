@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Handler appending UTF-8 encoded events to a file.
+ */
+public class LogstashFileHandler extends LogstashOutputStreamHandler {
+
+    private File file;
+    private boolean append = true;
+
+    public LogstashFileHandler() {
+    }
+
+    public LogstashFileHandler(final String fileName) throws FileNotFoundException {
+        setFileName(fileName);
+    }
+
+    /**
+     * Set whether to append to an existing file, must be set before the file.
+     *
+     * @param append false to truncate the file when it is opened
+     */
+    public void setAppend(final boolean append) {
+        checkAccess(this);
+        synchronized (outputLock) {
+            this.append = append;
+        }
+    }
+
+    /**
+     * Set the file to write to, creating missing parent directories.
+     *
+     * @param file the file, or null to stop writing
+     * @throws FileNotFoundException if the file cannot be opened
+     */
+    public void setFile(final File file) throws FileNotFoundException {
+        checkAccess(this);
+        synchronized (outputLock) {
+            if (file == null) {
+                this.file = null;
+                setOutputStream(null);
+                return;
+            }
+            final File parent = file.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            final FileOutputStream out = new FileOutputStream(file, append);
+            final OutputStream stream;
+            try {
+                stream = wrap(new BufferedOutputStream(out));
+            } catch (IOException ex) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // reported below
+                }
+                final FileNotFoundException failure = new FileNotFoundException("Cannot write to " + file);
+                failure.initCause(ex);
+                throw failure;
+            }
+            this.file = file;
+            setOutputStream(stream);
+        }
+    }
+
+    /**
+     * Wrap the buffered stream of a newly opened file.
+     *
+     * @param out the stream of the file
+     * @return the stream events are written to
+     * @throws IOException if the stream cannot be written
+     */
+    protected OutputStream wrap(final OutputStream out) throws IOException {
+        return out;
+    }
+
+    public void setFileName(final String fileName) throws FileNotFoundException {
+        setFile(fileName == null ? null : new File(fileName));
+    }
+
+    public File getFile() {
+        synchronized (outputLock) {
+            return file;
+        }
+    }
+}
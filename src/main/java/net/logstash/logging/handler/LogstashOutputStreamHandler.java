@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.OutputStream;
+import java.util.logging.ErrorManager;
+import java.util.logging.Filter;
+import java.util.logging.Formatter;
+
+import net.logstash.logging.filter.SummarizingFilter;
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtHandler;
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Handler writing UTF-8 encoded events to an output stream.
+ *
+ * With a {@link LogstashUtilFormatter} the events are encoded straight from
+ * the formatter's buffer, without an intermediate String or charset encoder.
+ * Other formatters are supported through {@link Formatter#format}.
+ */
+public class LogstashOutputStreamHandler extends ExtHandler {
+
+    protected final Object outputLock = new Object();
+    private OutputStream outputStream;
+
+    public LogstashOutputStreamHandler() {
+    }
+
+    public LogstashOutputStreamHandler(final OutputStream outputStream, final Formatter formatter) {
+        setFormatter(formatter);
+        setOutputStream(outputStream);
+    }
+
+    @Override
+    protected void doPublish(final ExtLogRecord record) {
+        final EventBuffer event = EventBuffer.get();
+        try {
+            event.format(getFormatter(), record);
+        } catch (Exception ex) {
+            reportError("Formatting error", ex, ErrorManager.FORMAT_FAILURE);
+            event.release();
+            return;
+        }
+        try {
+            synchronized (outputLock) {
+                if (outputStream == null) {
+                    return;
+                }
+                preWrite(record);
+                event.writeTo(outputStream);
+            }
+        } catch (Exception ex) {
+            reportError("Error writing log message", ex, ErrorManager.WRITE_FAILURE);
+            return;
+        } finally {
+            event.release();
+        }
+        if (isAutoFlush()) {
+            flushStream();
+        }
+    }
+
+    /**
+     * Called with the output lock held before an event is written.
+     *
+     * @param record the logrecord about to be written
+     */
+    protected void preWrite(final ExtLogRecord record) {
+    }
+
+    /**
+     * Set the stream to write to, closing the previous one.
+     *
+     * @param outputStream the new stream, or null to stop writing
+     */
+    public void setOutputStream(final OutputStream outputStream) {
+        checkAccess(this);
+        final OutputStream old;
+        synchronized (outputLock) {
+            old = this.outputStream;
+            this.outputStream = outputStream;
+        }
+        safeClose(old);
+    }
+
+    /**
+     * Set the filter, which publishes its summaries to this handler.
+     *
+     * @param filter the filter
+     */
+    @Override
+    public void setFilter(final Filter filter) throws SecurityException {
+        final Filter previous = getFilter();
+        super.setFilter(filter);
+        SummarizingFilter.attach(this, previous, filter);
+    }
+
+    /**
+     * Publish the summaries of the filter and flush the stream.
+     */
+    @Override
+    public void flush() {
+        SummarizingFilter.flush(getFilter());
+        flushStream();
+        super.flush();
+    }
+
+    /**
+     * Flush the stream only, after every event with autoFlush, so that the
+     * filter keeps collapsing the records in between.
+     */
+    void flushStream() {
+        synchronized (outputLock) {
+            if (outputStream != null) {
+                try {
+                    outputStream.flush();
+                } catch (Exception ex) {
+                    reportError("Error flushing stream", ex, ErrorManager.FLUSH_FAILURE);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        checkAccess(this);
+        SummarizingFilter.detach(this, getFilter());
+        setOutputStream(null);
+        super.close();
+    }
+
+    private void safeClose(final OutputStream stream) {
+        if (stream != null) {
+            try {
+                stream.flush();
+                stream.close();
+            } catch (Exception ex) {
+                reportError("Error closing stream", ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+}
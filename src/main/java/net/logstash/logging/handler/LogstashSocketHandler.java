@@ -0,0 +1,914 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Filter;
+import java.util.logging.Level;
+
+import net.logstash.logging.filter.SummarizingFilter;
+import net.logstash.logging.handler.AsyncLogstashFileHandler.OverflowPolicy;
+import org.jboss.logmanager.ExtHandler;
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Handler sending events to a Logstash {@code tcp} or {@code udp} input.
+ *
+ * Publishing threads only copy the record into a bounded lock-free ring
+ * buffer. A single sender thread formats the records into a batch and
+ * writes it to a non-blocking channel, waiting on a selector while the
+ * socket cannot take more. With UDP every batch is one datagram of whole
+ * events.
+ *
+ * When the connection fails the batch being sent is kept, from the first
+ * event not completely written, and the connection is retried after a
+ * jittered delay doubling up to {@code maxReconnectDelay}. Records keep
+ * being queued meanwhile, what happens when the queue is full depends on
+ * the {@link OverflowPolicy}.
+ *
+ * With a {@code spillDirectory} the events are kept on disk instead, in a
+ * {@link SpillQueue}, while the connection is down, while events spilled
+ * before are waiting, or when the queue is half full because Logstash is
+ * slow. They are replayed in order once it catches up. The events still
+ * held when the handler is closed are spilled too and sent after the next
+ * start. An event is only removed from the disk once completely written
+ * to the socket, so some may be sent twice after a failure.
+ */
+public class LogstashSocketHandler extends ExtHandler {
+
+    /**
+     * The transport of the events.
+     */
+    public enum Protocol {
+        /** A stream of newline separated events, for the {@code json_lines} codec. */
+        TCP,
+        /** Datagrams of newline separated events. */
+        UDP,
+    }
+
+    private static final int DEFAULT_QUEUE_LENGTH = 8192;
+    private static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    /** The largest payload of an IPv4 UDP datagram. */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final long IDLE_WAIT_MILLIS = 100;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /** How long closing waits for the queued events to be sent. */
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int DEFAULT_SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_SPILL_MAX_SIZE = 1024L * 1024 * 1024;
+
+    private final Object configLock = new Object();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private String host = "localhost";
+    private int port;
+    private Protocol protocol = Protocol.TCP;
+    private int queueLength = DEFAULT_QUEUE_LENGTH;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private volatile int dropThreshold = Level.WARNING.intValue();
+    private volatile long flushIntervalNanos;
+    private volatile long reconnectDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private volatile long maxReconnectDelayNanos = TimeUnit.SECONDS.toNanos(30);
+    private File spillDirectory;
+    private int spillSegmentSize = DEFAULT_SPILL_SEGMENT_SIZE;
+    private long spillMaxSize = DEFAULT_SPILL_MAX_SIZE;
+    private long spillMaxAge;
+
+    private volatile RingBuffer<ExtLogRecord> queue;
+    private volatile Thread sender;
+    private volatile Selector selector;
+    private volatile boolean sleeping;
+    private volatile boolean connected;
+    /** Whether the last attempt to connect or send failed. */
+    private volatile boolean down;
+    private volatile boolean flushRequested;
+    private volatile boolean spilling;
+    private volatile boolean closed;
+    private volatile long closedAt;
+    /** Number of records taken from the queue whose event has been sent or dropped. */
+    private volatile long written;
+
+    // owned by the sender thread
+    private SelectableChannel channel;
+    private SelectionKey key;
+    private long reconnectAt;
+    private long reconnectDelay;
+
+    public LogstashSocketHandler() {
+    }
+
+    @Override
+    protected void doPublish(final ExtLogRecord record) {
+        RingBuffer<ExtLogRecord> queue = this.queue;
+        if (queue == null) {
+            queue = start();
+        }
+        if (queue == null || closed) {
+            return;
+        }
+        // the caller, MDC and NDC have to be captured on the logging thread
+        AsyncLogstashFileHandler.capture(record, getFormatter());
+        if (!queue.offer(record)) {
+            final OverflowPolicy policy = overflowPolicy;
+            if (policy == OverflowPolicy.DROP_NEWEST
+                    || (policy == OverflowPolicy.DROP_BY_LEVEL && record.getLevel().intValue() < dropThreshold)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            while (!queue.offer(record)) {
+                final Thread sender = this.sender;
+                if (closed || sender == null || !sender.isAlive()) {
+                    // nobody is left to make room
+                    dropped.incrementAndGet();
+                    return;
+                }
+                wakeSender();
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            }
+        }
+        if (sleeping) {
+            wakeSender();
+        }
+    }
+
+    /**
+     * Set the filter, which publishes its summaries to this handler.
+     *
+     * @param filter the filter
+     */
+    @Override
+    public void setFilter(final Filter filter) throws SecurityException {
+        final Filter previous = getFilter();
+        super.setFilter(filter);
+        SummarizingFilter.attach(this, previous, filter);
+    }
+
+    /**
+     * Send everything published so far, waiting for the sender thread
+     * unless the connection is down. When spilling, waits for the events
+     * to be either sent or on disk.
+     */
+    @Override
+    public void flush() {
+        SummarizingFilter.flush(getFilter());
+        final RingBuffer<ExtLogRecord> queue = this.queue;
+        final Thread sender = this.sender;
+        if (queue != null && sender != null) {
+            final long target = queue.offered();
+            flushRequested = true;
+            while (written < target && (!down || spilling) && sender.isAlive()) {
+                wakeSender();
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            }
+        }
+        super.flush();
+    }
+
+    /**
+     * Send the queued events, for at most 5 seconds, and close the connection.
+     */
+    @Override
+    public void close() throws SecurityException {
+        checkAccess(this);
+        SummarizingFilter.detach(this, getFilter());
+        closedAt = System.nanoTime();
+        closed = true;
+        final Thread sender = this.sender;
+        if (sender != null) {
+            wakeSender();
+            boolean interrupted = false;
+            while (sender.isAlive()) {
+                try {
+                    sender.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.close();
+    }
+
+    public void setHost(final String host) {
+        checkAccess(this);
+        synchronized (configLock) {
+            checkNotStarted();
+            this.host = host;
+        }
+    }
+
+    public String getHost() {
+        synchronized (configLock) {
+            return host;
+        }
+    }
+
+    public void setPort(final int port) {
+        checkAccess(this);
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port " + port);
+        }
+        synchronized (configLock) {
+            checkNotStarted();
+            this.port = port;
+        }
+    }
+
+    public int getPort() {
+        synchronized (configLock) {
+            return port;
+        }
+    }
+
+    public void setProtocol(final Protocol protocol) {
+        checkAccess(this);
+        synchronized (configLock) {
+            checkNotStarted();
+            this.protocol = protocol;
+        }
+    }
+
+    public Protocol getProtocol() {
+        synchronized (configLock) {
+            return protocol;
+        }
+    }
+
+    /**
+     * Set the number of records the queue holds, must be set before the first record.
+     *
+     * @param queueLength the queue length, rounded up to a power of two
+     */
+    public void setQueueLength(final int queueLength) {
+        checkAccess(this);
+        if (queueLength < 1) {
+            throw new IllegalArgumentException("Queue length must be positive");
+        }
+        synchronized (configLock) {
+            checkNotStarted();
+            this.queueLength = queueLength;
+        }
+    }
+
+    public int getQueueLength() {
+        synchronized (configLock) {
+            return queueLength;
+        }
+    }
+
+    /**
+     * Set the size in bytes of the buffer events are batched in, must be set
+     * before the first record. With UDP it is capped to the largest datagram.
+     *
+     * @param batchSize the batch size
+     */
+    public void setBatchSize(final int batchSize) {
+        checkAccess(this);
+        if (batchSize < 1024) {
+            throw new IllegalArgumentException("Batch size must be at least 1024 bytes");
+        }
+        synchronized (configLock) {
+            checkNotStarted();
+            this.batchSize = batchSize;
+        }
+    }
+
+    public int getBatchSize() {
+        synchronized (configLock) {
+            return batchSize;
+        }
+    }
+
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        checkAccess(this);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set the level records must reach to be kept by {@link OverflowPolicy#DROP_BY_LEVEL}.
+     *
+     * @param dropThreshold the level name, {@code WARNING} by default
+     */
+    public void setDropThreshold(final String dropThreshold) {
+        checkAccess(this);
+        this.dropThreshold = Level.parse(dropThreshold).intValue();
+    }
+
+    /**
+     * Set how long events may wait in the batch before it is sent.
+     *
+     * With the default of 0 a batch is sent as soon as the queue is drained.
+     *
+     * @param flushInterval the interval in milliseconds
+     */
+    public void setFlushInterval(final long flushInterval) {
+        checkAccess(this);
+        if (flushInterval < 0) {
+            throw new IllegalArgumentException("Flush interval must not be negative");
+        }
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    public long getFlushInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos);
+    }
+
+    /**
+     * Set the delay before the first reconnection attempt, doubled after
+     * every failed attempt.
+     *
+     * @param reconnectDelay the delay in milliseconds
+     */
+    public void setReconnectDelay(final long reconnectDelay) {
+        checkAccess(this);
+        if (reconnectDelay < 1) {
+            throw new IllegalArgumentException("Reconnect delay must be positive");
+        }
+        this.reconnectDelayNanos = TimeUnit.MILLISECONDS.toNanos(reconnectDelay);
+    }
+
+    public long getReconnectDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(reconnectDelayNanos);
+    }
+
+    /**
+     * Set the longest delay between reconnection attempts.
+     *
+     * @param maxReconnectDelay the delay in milliseconds
+     */
+    public void setMaxReconnectDelay(final long maxReconnectDelay) {
+        checkAccess(this);
+        if (maxReconnectDelay < 1) {
+            throw new IllegalArgumentException("Reconnect delay must be positive");
+        }
+        this.maxReconnectDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxReconnectDelay);
+    }
+
+    public long getMaxReconnectDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(maxReconnectDelayNanos);
+    }
+
+    /**
+     * Set the directory events are spilled to while they cannot be sent,
+     * must be set before the first record. Not spilling by default.
+     *
+     * @param spillDirectory the directory, created if needed
+     */
+    public void setSpillDirectory(final String spillDirectory) {
+        checkAccess(this);
+        synchronized (configLock) {
+            checkNotStarted();
+            this.spillDirectory = spillDirectory == null ? null : new File(spillDirectory);
+        }
+    }
+
+    public String getSpillDirectory() {
+        synchronized (configLock) {
+            return spillDirectory == null ? null : spillDirectory.getPath();
+        }
+    }
+
+    /**
+     * Set the size of the files events are spilled to, must be set before
+     * the first record. Larger events get a file of their own.
+     *
+     * @param spillSegmentSize the size in bytes, 16 MiB by default
+     */
+    public void setSpillSegmentSize(final int spillSegmentSize) {
+        checkAccess(this);
+        if (spillSegmentSize < 4096) {
+            throw new IllegalArgumentException("Spill segment size must be at least 4096 bytes");
+        }
+        synchronized (configLock) {
+            checkNotStarted();
+            this.spillSegmentSize = spillSegmentSize;
+        }
+    }
+
+    public int getSpillSegmentSize() {
+        synchronized (configLock) {
+            return spillSegmentSize;
+        }
+    }
+
+    /**
+     * Set how much disk the spilled events may take, must be set before the
+     * first record. Beyond it the oldest events are dropped.
+     *
+     * @param spillMaxSize the size in bytes, 1 GiB by default
+     */
+    public void setSpillMaxSize(final long spillMaxSize) {
+        checkAccess(this);
+        synchronized (configLock) {
+            checkNotStarted();
+            this.spillMaxSize = spillMaxSize;
+        }
+    }
+
+    public long getSpillMaxSize() {
+        synchronized (configLock) {
+            return spillMaxSize;
+        }
+    }
+
+    /**
+     * Set how long spilled events are kept, must be set before the first
+     * record. Older events are dropped.
+     *
+     * @param spillMaxAge the age in milliseconds, 0 to keep them until sent
+     */
+    public void setSpillMaxAge(final long spillMaxAge) {
+        checkAccess(this);
+        if (spillMaxAge < 0) {
+            throw new IllegalArgumentException("Spill maximum age must not be negative");
+        }
+        synchronized (configLock) {
+            checkNotStarted();
+            this.spillMaxAge = spillMaxAge;
+        }
+    }
+
+    public long getSpillMaxAge() {
+        synchronized (configLock) {
+            return spillMaxAge;
+        }
+    }
+
+    /**
+     * Get the number of records discarded because the queue was full,
+     * could not be sent before the handler was closed, or were spilled
+     * beyond the size or age limits.
+     *
+     * @return the number of dropped records
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Whether the handler is connected to Logstash.
+     *
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    private void checkNotStarted() {
+        if (queue != null) {
+            throw new IllegalStateException("Handler already started");
+        }
+    }
+
+    private RingBuffer<ExtLogRecord> start() {
+        synchronized (configLock) {
+            if (queue != null || closed) {
+                return queue;
+            }
+            if (port == 0) {
+                reportError("No port set", null, ErrorManager.OPEN_FAILURE);
+                return null;
+            }
+            try {
+                selector = Selector.open();
+            } catch (IOException ex) {
+                reportError("Error opening selector", ex, ErrorManager.OPEN_FAILURE);
+                return null;
+            }
+            SpillQueue spill = null;
+            if (spillDirectory != null) {
+                try {
+                    spill = new SpillQueue(spillDirectory, spillSegmentSize, spillMaxSize, spillMaxAge);
+                    spilling = true;
+                } catch (IOException | IllegalArgumentException ex) {
+                    reportError("Error opening spill directory " + spillDirectory, ex, ErrorManager.OPEN_FAILURE);
+                }
+            }
+            final SpillQueue spillQueue = spill;
+            final RingBuffer<ExtLogRecord> queue = new RingBuffer<ExtLogRecord>(queueLength);
+            final String host = this.host;
+            final int port = this.port;
+            final Protocol protocol = this.protocol;
+            final int capacity = protocol == Protocol.UDP ? Math.min(batchSize, MAX_DATAGRAM_SIZE) : batchSize;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(queue, host, port, protocol, capacity, spillQueue);
+                    } catch (Error err) {
+                        reportError("Sender thread stopped by " + err, null, ErrorManager.GENERIC_FAILURE);
+                        throw err;
+                    }
+                }
+            }, "logstash-socket-handler");
+            thread.setDaemon(true);
+            sender = thread;
+            this.queue = queue;
+            thread.start();
+            return queue;
+        }
+    }
+
+    private void wakeSender() {
+        final Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Main loop of the sender thread.
+     */
+    private void send(final RingBuffer<ExtLogRecord> queue, final String host, final int port,
+            final Protocol protocol, final int capacity, final SpillQueue spill) {
+        final ByteBuffer batch = ByteBuffer.allocateDirect(capacity);
+        // holds the event that did not fit in the batch any more
+        final EventBuffer event = EventBuffer.get();
+        ByteBuffer sending = null;
+        // whether the events sent are the oldest spilled ones
+        boolean replaying = false;
+        long taken = 0;
+        long sendingTaken = 0;
+        long spilledTaken = 0;
+        long batchStart = 0;
+        try {
+            while (true) {
+                final long now = System.nanoTime();
+                if (closed && (now - closedAt > CLOSE_TIMEOUT_NANOS || (down && channel == null))) {
+                    break;
+                }
+                if (spill != null) {
+                    dropped.addAndGet(spill.takeDropped());
+                }
+                if (sending == null) {
+                    while (event.size() > 0 || fill(queue, event)) {
+                        if (event.size() == 0) {
+                            // not formatted
+                            taken++;
+                        } else if (event.size() <= batch.remaining()) {
+                            if (batch.position() == 0) {
+                                batchStart = now;
+                            }
+                            event.copyTo(batch);
+                            event.release();
+                            taken++;
+                        } else if (batch.position() == 0) {
+                            // larger than a whole batch, sent on its own
+                            taken++;
+                            sending = oversized(event, protocol, capacity);
+                            event.release();
+                            if (sending != null) {
+                                sendingTaken = taken;
+                                break;
+                            }
+                        } else {
+                            break;
+                        }
+                    }
+                    final long interval = flushIntervalNanos;
+                    if (sending == null && batch.position() > 0 && (event.size() > 0 || flushRequested || closed
+                            || interval == 0 || now - batchStart >= interval)) {
+                        flushRequested = false;
+                        batch.flip();
+                        sending = batch;
+                        sendingTaken = taken;
+                    }
+                    if (sending != null && spill != null && (down || !spill.isEmpty())) {
+                        // behind the events spilled before
+                        spill(spill, sending);
+                        sending = null;
+                        batch.clear();
+                        written = taken;
+                    }
+                    if (sending == null && spill != null && (channel != null || now - reconnectAt >= 0)) {
+                        sending = spill.peek();
+                        replaying = sending != null;
+                    }
+                }
+
+                if (sending != null && !connected && !connect(host, port, protocol, now) && spill != null
+                        && channel == null) {
+                    // kept on disk until the connection is back, so the queue does not fill up meanwhile
+                    if (!replaying) {
+                        spill(spill, sending);
+                        batch.clear();
+                        written = taken;
+                    }
+                    sending = null;
+                    replaying = false;
+                }
+                if (sending != null) {
+                    if (!connected) {
+                        final long wait = channel != null ? IDLE_WAIT_MILLIS
+                                : TimeUnit.NANOSECONDS.toMillis(reconnectAt - now) + 1;
+                        waitFor(SelectionKey.OP_CONNECT, Math.min(wait, IDLE_WAIT_MILLIS));
+                        continue;
+                    }
+                    try {
+                        ((ByteChannel) channel).write(sending);
+                    } catch (IOException ex) {
+                        reportError("Error sending to " + host + ":" + port, ex, ErrorManager.WRITE_FAILURE);
+                        disconnect(System.nanoTime());
+                        rewindToEvent(sending);
+                        continue;
+                    }
+                    if (sending.hasRemaining()) {
+                        if (spill != null && queue.offered() - queue.polled() >= queue.capacity() / 2) {
+                            // Logstash is slow, the queue goes to disk rather than overflowing
+                            taken += spillQueued(queue, event, spill, protocol, capacity);
+                            spilledTaken = taken;
+                        }
+                        waitFor(SelectionKey.OP_WRITE, IDLE_WAIT_MILLIS);
+                        continue;
+                    }
+                    if (replaying) {
+                        ack(spill);
+                        replaying = false;
+                    } else {
+                        batch.clear();
+                        written = Math.max(written, sendingTaken);
+                    }
+                    written = Math.max(written, spilledTaken);
+                    sending = null;
+                    continue;
+                }
+
+                if (batch.position() == 0) {
+                    // records that could not be formatted or sent are done with too
+                    written = taken;
+                    flushRequested = false;
+                    if (closed && queue.isEmpty()) {
+                        break;
+                    }
+                }
+                final long interval = flushIntervalNanos;
+                long wait = batch.position() > 0
+                        ? TimeUnit.NANOSECONDS.toMillis(interval - (now - batchStart)) + 1 : IDLE_WAIT_MILLIS;
+                if (spill != null && channel == null && !spill.isEmpty()) {
+                    // the spilled events are replayed once it is time to reconnect
+                    wait = Math.min(wait, TimeUnit.NANOSECONDS.toMillis(reconnectAt - now) + 1);
+                }
+                sleeping = true;
+                if (queue.isEmpty() && !flushRequested && !closed) {
+                    waitFor(0, wait);
+                }
+                sleeping = false;
+            }
+        } finally {
+            if (spill != null) {
+                // kept for the next start rather than lost
+                if (sending != null && !replaying) {
+                    spill(spill, sending);
+                } else if (batch.position() > 0) {
+                    batch.flip();
+                    spill(spill, batch);
+                }
+                taken += spillQueued(queue, event, spill, protocol, capacity);
+                written = taken;
+                try {
+                    spill.close();
+                } catch (IOException ex) {
+                    reportError("Error closing spill queue", ex, ErrorManager.CLOSE_FAILURE);
+                }
+                dropped.addAndGet(spill.takeDropped());
+            }
+            // what could not be sent before closing, the event left over was not counted as taken
+            long lost = taken - written + (event.size() > 0 ? 1 : 0);
+            event.release();
+            while (queue.poll() != null) {
+                lost++;
+            }
+            dropped.addAndGet(lost);
+            disconnect(System.nanoTime());
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                reportError("Error closing selector", ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Spill the events from the position to the limit of the buffer.
+     */
+    private void spill(final SpillQueue spill, final ByteBuffer events) {
+        int count = 0;
+        for (int i = events.position(); i < events.limit(); i++) {
+            if (events.get(i) == '\n') {
+                count++;
+            }
+        }
+        try {
+            spill.append(events, count);
+        } catch (IOException ex) {
+            dropped.addAndGet(count);
+            reportError("Error spilling events", ex, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * Spill at most a queue length of records, starting with the event left over.
+     *
+     * @return the number of records taken from the queue, or left over
+     */
+    private long spillQueued(final RingBuffer<ExtLogRecord> queue, final EventBuffer event, final SpillQueue spill,
+            final Protocol protocol, final int capacity) {
+        final ByteBuffer chunk = ByteBuffer.allocate(capacity);
+        long count = 0;
+        while (count < queue.capacity() && (event.size() > 0 || fill(queue, event))) {
+            count++;
+            if (event.size() == 0) {
+                continue;
+            }
+            if (event.size() > chunk.remaining() && chunk.position() > 0) {
+                chunk.flip();
+                spill(spill, chunk);
+                chunk.clear();
+            }
+            if (event.size() > chunk.remaining()) {
+                final ByteBuffer large = oversized(event, protocol, capacity);
+                if (large != null) {
+                    spill(spill, large);
+                }
+            } else {
+                event.copyTo(chunk);
+            }
+            event.release();
+        }
+        if (chunk.position() > 0) {
+            chunk.flip();
+            spill(spill, chunk);
+        }
+        return count;
+    }
+
+    private void ack(final SpillQueue spill) {
+        try {
+            spill.ack();
+        } catch (IOException ex) {
+            reportError("Error writing spill checkpoint", ex, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    /**
+     * Format the next queued record into the event buffer.
+     *
+     * @return false if the queue is empty, otherwise true even if the record could not be formatted
+     */
+    private boolean fill(final RingBuffer<ExtLogRecord> queue, final EventBuffer event) {
+        final ExtLogRecord record = queue.poll();
+        if (record == null) {
+            return false;
+        }
+        try {
+            event.formatLine(getFormatter(), record);
+        } catch (Exception ex) {
+            event.release();
+            reportError("Formatting error", ex, ErrorManager.FORMAT_FAILURE);
+        }
+        return true;
+    }
+
+    private ByteBuffer oversized(final EventBuffer event, final Protocol protocol, final int capacity) {
+        if (protocol == Protocol.UDP) {
+            dropped.incrementAndGet();
+            reportError("Event of " + event.size() + " bytes does not fit in a datagram of " + capacity + " bytes",
+                    null, ErrorManager.WRITE_FAILURE);
+            return null;
+        }
+        return ByteBuffer.wrap(event.toByteArray());
+    }
+
+    /**
+     * Move back to the first event not completely sent, so no partial
+     * event reaches the next connection.
+     */
+    private static void rewindToEvent(final ByteBuffer sending) {
+        int position = sending.position();
+        while (position > 0 && sending.get(position - 1) != '\n') {
+            position--;
+        }
+        sending.position(position);
+    }
+
+    /**
+     * Open the channel or finish connecting it, unless it is too early to retry.
+     *
+     * @return true if connected
+     */
+    private boolean connect(final String host, final int port, final Protocol protocol, final long now) {
+        try {
+            if (channel == null) {
+                if (now - reconnectAt < 0) {
+                    return false;
+                }
+                // resolved on every attempt, the address may have changed
+                final InetSocketAddress address = new InetSocketAddress(host, port);
+                if (address.isUnresolved()) {
+                    throw new IOException("Unknown host " + host);
+                }
+                if (protocol == Protocol.UDP) {
+                    final DatagramChannel datagram = DatagramChannel.open();
+                    channel = datagram;
+                    datagram.configureBlocking(false);
+                    datagram.connect(address);
+                    key = datagram.register(selector, 0);
+                    return connected();
+                }
+                final SocketChannel socket = SocketChannel.open();
+                channel = socket;
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                socket.setOption(StandardSocketOptions.SO_KEEPALIVE, Boolean.TRUE);
+                key = socket.register(selector, 0);
+                return socket.connect(address) && connected();
+            }
+            return ((SocketChannel) channel).finishConnect() && connected();
+        } catch (IOException ex) {
+            reportError("Error connecting to " + host + ":" + port, ex, ErrorManager.OPEN_FAILURE);
+            disconnect(now);
+            return false;
+        }
+    }
+
+    private boolean connected() {
+        connected = true;
+        down = false;
+        reconnectDelay = 0;
+        return true;
+    }
+
+    /**
+     * Close the channel and schedule the next attempt after a jittered backoff.
+     */
+    private void disconnect(final long now) {
+        connected = false;
+        down = true;
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                reportError("Error closing connection", ex, ErrorManager.CLOSE_FAILURE);
+            }
+            channel = null;
+            final long max = maxReconnectDelayNanos;
+            reconnectDelay = reconnectDelay == 0 ? Math.min(reconnectDelayNanos, max) : Math.min(reconnectDelay * 2, max);
+            // between half and all of the delay, so many clients do not reconnect at once
+            reconnectAt = now + reconnectDelay / 2 + ThreadLocalRandom.current().nextLong(reconnectDelay / 2 + 1);
+        }
+    }
+
+    /**
+     * Wait on the selector for the channel to be ready or the handler woken up.
+     */
+    private void waitFor(final int ops, final long timeoutMillis) {
+        try {
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+            selector.select(Math.max(1L, timeoutMillis));
+            selector.selectedKeys().clear();
+        } catch (IOException ex) {
+            reportError("Error waiting for the connection", ex, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+}
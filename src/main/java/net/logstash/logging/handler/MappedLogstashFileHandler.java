@@ -0,0 +1,645 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Filter;
+
+import net.logstash.logging.filter.SummarizingFilter;
+import org.jboss.logmanager.ExtHandler;
+import org.jboss.logmanager.ExtLogRecord;
+
+/**
+ * Handler appending events to a memory-mapped region of a pre-sized file.
+ *
+ * Writers reserve their part of the region through a single atomic
+ * sequencer and copy their event into it concurrently. When a region is
+ * full the next one is mapped right after the data, or the file is rotated
+ * if it reached its maximum size or the period of the date suffix ended.
+ * The unused tail of the mapped region is truncated on rotation and close,
+ * and after a crash when the file is opened again.
+ *
+ * A region is unmapped as soon as it is replaced, since Windows neither
+ * truncates nor renames a file that is still mapped. Where the runtime
+ * offers no way to unmap it, a truncation that fails leaves the NUL tail in
+ * place, to be skipped like after a crash.
+ *
+ * Rotated files are named after the file plus the date suffix of their
+ * period, e.g. {@code logstash.log.2017-01-01}, and an index if a period
+ * holds several files.
+ *
+ * As the file is larger than its content until it is rotated or closed,
+ * only readers that stop at NUL bytes or read rotated files should be used.
+ */
+public class MappedLogstashFileHandler extends ExtHandler {
+
+    private static final int DEFAULT_REGION_SIZE = 32 * 1024 * 1024;
+    private static final long WAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    private static final int RECOVERY_CHUNK = 64 * 1024;
+    /** How long to wait before opening the file again after it failed again. */
+    private static final long RETRY_MILLIS = 1000;
+    /** Releases the mapping of a direct buffer, null if the runtime does not allow it. */
+    private static final MethodHandle UNMAP = unmapper();
+
+    private final Object rollLock = new Object();
+
+    private File file;
+    private boolean append = true;
+    private int regionSize = DEFAULT_REGION_SIZE;
+    private long maxFileSize;
+    private String suffix;
+    private SimpleDateFormat suffixFormat;
+    private int period = -1;
+    private FileChannel channel;
+
+    private volatile Segment current;
+    /** Whether rolling the file failed, it is then opened again by the next writer. */
+    private volatile boolean failed;
+    /** When to try opening the file again, guarded by the roll lock. */
+    private long retryAt;
+
+    /**
+     * A mapped region of the file, written through its sequencer.
+     */
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        /** Offset of the region in the file. */
+        final long base;
+        final int capacity;
+        /** Time at which the file has to be rotated, Long.MAX_VALUE if never. */
+        final long rollAt;
+        /** Suffix for the file when it is rotated. */
+        final String suffix;
+        final AtomicLong reserved = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        /** End of the data, set by the writer that sealed the segment. */
+        volatile long end = -1;
+
+        Segment(final MappedByteBuffer buffer, final long base, final long rollAt, final String suffix) {
+            this.buffer = buffer;
+            this.base = base;
+            this.capacity = buffer.capacity();
+            this.rollAt = rollAt;
+            this.suffix = suffix;
+        }
+
+        void write(final long position, final EventBuffer event) {
+            final ByteBuffer dst = buffer.duplicate();
+            dst.position((int) position);
+            event.copyTo(dst);
+        }
+
+        /**
+         * Stop all further reservations.
+         *
+         * @return true if the caller sealed the segment, false if it already was sealed
+         */
+        boolean seal() {
+            return sealed(reserved.getAndAdd((long) capacity + 1));
+        }
+
+        /**
+         * Check whether a reservation starting at the position sealed the segment.
+         *
+         * @param start the start of a reservation that did not fit
+         * @return true if the reservation was the first one not to fit
+         */
+        boolean sealed(final long start) {
+            if (start <= capacity) {
+                end = start;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public MappedLogstashFileHandler() {
+    }
+
+    @Override
+    protected void doPublish(final ExtLogRecord record) {
+        if (current == null && !reopen()) {
+            return;
+        }
+        final EventBuffer event = EventBuffer.get();
+        try {
+            event.formatLine(getFormatter(), record);
+        } catch (Exception ex) {
+            reportError("Formatting error", ex, ErrorManager.FORMAT_FAILURE);
+            event.release();
+            return;
+        }
+        try {
+            write(event, record.getMillis());
+        } catch (Exception ex) {
+            reportError("Error writing log message", ex, ErrorManager.WRITE_FAILURE);
+        } finally {
+            event.release();
+        }
+    }
+
+    private void write(final EventBuffer event, final long millis) throws IOException {
+        final int length = event.size();
+        while (true) {
+            final Segment segment = current;
+            if (segment == null) {
+                if (failed) {
+                    throw new IOException("Cannot write to " + file + " until it is opened again");
+                }
+                return;
+            }
+            final boolean due = millis >= segment.rollAt;
+            final boolean sealed;
+            segment.inFlight.incrementAndGet();
+            try {
+                if (due) {
+                    sealed = segment.seal();
+                } else {
+                    final long start = segment.reserved.getAndAdd(length);
+                    if (start + length <= segment.capacity) {
+                        segment.write(start, event);
+                        return;
+                    }
+                    sealed = segment.sealed(start);
+                }
+            } finally {
+                segment.inFlight.decrementAndGet();
+            }
+            if (sealed) {
+                roll(segment, length, due ? millis : -1);
+            } else {
+                while (current == segment) {
+                    LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace a sealed segment, by mapping the next region or by rotating the file.
+     *
+     * @param segment the sealed segment
+     * @param length the length of the event that did not fit
+     * @param due the time of the event if the period of the file ended, -1 otherwise
+     */
+    private void roll(final Segment segment, final int length, final long due) throws IOException {
+        synchronized (rollLock) {
+            if (current != segment) {
+                // closed in the meantime
+                return;
+            }
+            awaitWriters(segment);
+            try {
+                final long size = segment.base + segment.end;
+                if (due >= 0 || (maxFileSize > 0 && size > 0 && size + length > maxFileSize)) {
+                    closeFile(segment, size);
+                    rename(segment.suffix);
+                    // the new period starts with the event that ended the last one
+                    openFile(false, Math.max(due, System.currentTimeMillis()));
+                } else {
+                    current = map(size, length, segment.rollAt, segment.suffix);
+                    unmap(segment.buffer);
+                }
+            } catch (IOException ex) {
+                current = null;
+                closeChannel();
+                failed = true;
+                retryAt = 0;
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Open the file again, appending to it, after rolling it failed. This is
+     * tried by the next writer, then at most once per {@value #RETRY_MILLIS}
+     * milliseconds, and every record dropped in between is reported.
+     *
+     * @return true if there is a segment to write to
+     */
+    private boolean reopen() {
+        if (!failed) {
+            // closed, or no file set
+            return false;
+        }
+        synchronized (rollLock) {
+            if (current == null && failed) {
+                final long now = System.currentTimeMillis();
+                if (now < retryAt) {
+                    reportError("Dropping log message, " + file + " is not open", null,
+                            ErrorManager.WRITE_FAILURE);
+                    return false;
+                }
+                try {
+                    openFile(true, now);
+                    failed = false;
+                } catch (IOException ex) {
+                    closeChannel();
+                    retryAt = now + RETRY_MILLIS;
+                    reportError("Error opening " + file + " again, dropping log message", ex,
+                            ErrorManager.OPEN_FAILURE);
+                    return false;
+                }
+            }
+            return current != null;
+        }
+    }
+
+    private void closeChannel() {
+        final FileChannel channel = this.channel;
+        this.channel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                reportError("Error closing file", ex, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Wait for the writers still copying into a sealed segment.
+     */
+    private void awaitWriters(final Segment segment) {
+        while (segment.inFlight.get() > 0) {
+            LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Set the filter, which publishes its summaries to this handler.
+     *
+     * @param filter the filter
+     */
+    @Override
+    public void setFilter(final Filter filter) throws SecurityException {
+        final Filter previous = getFilter();
+        super.setFilter(filter);
+        SummarizingFilter.attach(this, previous, filter);
+    }
+
+    @Override
+    public void flush() {
+        SummarizingFilter.flush(getFilter());
+        super.flush();
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        checkAccess(this);
+        SummarizingFilter.detach(this, getFilter());
+        synchronized (rollLock) {
+            failed = false;
+            closeCurrent();
+            closeChannel();
+        }
+        super.close();
+    }
+
+    /**
+     * Set the file to append to.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be opened
+     */
+    public void setFile(final File file) throws IOException {
+        checkAccess(this);
+        synchronized (rollLock) {
+            failed = false;
+            closeCurrent();
+            closeChannel();
+            this.file = file;
+            openFile(append, System.currentTimeMillis());
+        }
+    }
+
+    public void setFileName(final String fileName) throws IOException {
+        setFile(new File(fileName));
+    }
+
+    public File getFile() {
+        synchronized (rollLock) {
+            return file;
+        }
+    }
+
+    /**
+     * Set whether to append to an existing file, must be set before the file.
+     *
+     * @param append false to truncate the file when it is opened
+     */
+    public void setAppend(final boolean append) {
+        checkAccess(this);
+        synchronized (rollLock) {
+            this.append = append;
+        }
+    }
+
+    /**
+     * Set the size of the mapped regions, must be set before the file.
+     *
+     * @param regionSize the size in bytes
+     */
+    public void setRegionSize(final int regionSize) {
+        checkAccess(this);
+        if (regionSize < 4096) {
+            throw new IllegalArgumentException("Region size must be at least 4096 bytes");
+        }
+        synchronized (rollLock) {
+            this.regionSize = regionSize;
+        }
+    }
+
+    /**
+     * Set the size after which the file is rotated.
+     *
+     * @param maxFileSize the size in bytes, 0 to only rotate by date
+     */
+    public void setMaxFileSize(final long maxFileSize) {
+        checkAccess(this);
+        synchronized (rollLock) {
+            this.maxFileSize = maxFileSize;
+        }
+    }
+
+    /**
+     * Set the date suffix of rotated files, e.g. {@code .yyyy-MM-dd}, must be set
+     * before the file. The smallest unit in the pattern is the rotation period.
+     *
+     * @param suffix the {@link SimpleDateFormat} pattern, or null to only rotate by size
+     */
+    public void setSuffix(final String suffix) {
+        checkAccess(this);
+        synchronized (rollLock) {
+            if (suffix == null || suffix.isEmpty()) {
+                this.suffix = null;
+                this.suffixFormat = null;
+                this.period = -1;
+            } else {
+                this.suffixFormat = new SimpleDateFormat(suffix);
+                this.period = periodOf(suffix);
+                this.suffix = suffix;
+            }
+        }
+    }
+
+    public String getSuffix() {
+        synchronized (rollLock) {
+            return suffix;
+        }
+    }
+
+    /**
+     * Get the smallest calendar field of a date pattern.
+     */
+    static int periodOf(final String pattern) {
+        final String units = "yMwWdDEHkKhms";
+        final int[] fields = {
+            Calendar.YEAR, Calendar.MONTH, Calendar.WEEK_OF_YEAR, Calendar.WEEK_OF_YEAR, Calendar.DAY_OF_MONTH,
+            Calendar.DAY_OF_MONTH, Calendar.DAY_OF_MONTH, Calendar.HOUR_OF_DAY, Calendar.HOUR_OF_DAY,
+            Calendar.HOUR_OF_DAY, Calendar.HOUR_OF_DAY, Calendar.MINUTE, Calendar.SECOND
+        };
+        final int[] order = {0, 1, 2, 2, 3, 3, 3, 4, 4, 4, 4, 5, 6};
+        int best = -1;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+                continue;
+            }
+            final int unit = quoted ? -1 : units.indexOf(c);
+            if (unit >= 0 && (best < 0 || order[unit] > order[best])) {
+                best = unit;
+            }
+        }
+        if (best < 0) {
+            throw new IllegalArgumentException("Suffix '" + pattern + "' holds no date field");
+        }
+        return fields[best];
+    }
+
+    /**
+     * Get the start of the period following the one holding the time.
+     */
+    private long nextRollover(final long millis) {
+        if (period < 0) {
+            return Long.MAX_VALUE;
+        }
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        calendar.set(Calendar.MILLISECOND, 0);
+        switch (period) {
+            case Calendar.YEAR:
+                calendar.set(Calendar.MONTH, Calendar.JANUARY);
+                // fall through
+            case Calendar.MONTH:
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                // fall through
+            case Calendar.DAY_OF_MONTH:
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+                // fall through
+            case Calendar.HOUR_OF_DAY:
+                calendar.set(Calendar.MINUTE, 0);
+                // fall through
+            case Calendar.MINUTE:
+                calendar.set(Calendar.SECOND, 0);
+                // fall through
+            default:
+                break;
+        }
+        if (period == Calendar.WEEK_OF_YEAR) {
+            calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+        }
+        calendar.add(period, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Open the file and map its first region, recovering the end of the data
+     * of an existing file.
+     *
+     * @param append whether to keep the content of an existing file
+     * @param now the time the period of a new file starts at
+     */
+    private void openFile(final boolean append, final long now) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final boolean existed = file.exists() && file.length() > 0;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = 0;
+        long started = now;
+        if (append && existed) {
+            size = recoverEnd(channel);
+            started = Math.min(started, file.lastModified());
+        }
+        channel.truncate(size);
+        current = map(size, 0, nextRollover(started),
+                suffixFormat == null ? null : suffixFormat.format(new Date(started)));
+    }
+
+    private Segment map(final long base, final int length, final long rollAt, final String suffix) throws IOException {
+        int size = regionSize;
+        if (maxFileSize > 0 && maxFileSize - base < size) {
+            // end the region where the file has to be rotated
+            size = (int) Math.max(maxFileSize - base, 0);
+        }
+        size = Math.max(size, length);
+        return new Segment(channel.map(FileChannel.MapMode.READ_WRITE, base, size), base, rollAt, suffix);
+    }
+
+    /**
+     * Find the end of the data, skipping the NUL bytes of a region mapped when
+     * the handler stopped without truncating it.
+     */
+    static long recoverEnd(final FileChannel channel) throws IOException {
+        final ByteBuffer chunk = ByteBuffer.allocate(RECOVERY_CHUNK);
+        long end = channel.size();
+        while (end > 0) {
+            final long start = Math.max(0, end - RECOVERY_CHUNK);
+            chunk.clear();
+            chunk.limit((int) (end - start));
+            while (chunk.hasRemaining() && channel.read(chunk, start + chunk.position()) >= 0) {
+                // read the whole chunk
+            }
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) != 0) {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    private void closeCurrent() {
+        final Segment segment = current;
+        if (segment == null) {
+            return;
+        }
+        segment.seal();
+        // a writer that sealed it before sets the end right away
+        while (segment.end < 0) {
+            LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+        }
+        current = null;
+        awaitWriters(segment);
+        try {
+            closeFile(segment, segment.base + segment.end);
+        } catch (IOException ex) {
+            reportError("Error closing file", ex, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    private void closeFile(final Segment segment, final long size) throws IOException {
+        try {
+            segment.buffer.force();
+            final boolean unmapped = unmap(segment.buffer);
+            try {
+                channel.truncate(size);
+            } catch (IOException ex) {
+                if (unmapped) {
+                    throw ex;
+                }
+                // still mapped, the tail is skipped when the file is opened again
+                reportError("Cannot truncate the mapped file " + file, ex, ErrorManager.CLOSE_FAILURE);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Release the mapping of a sealed region, which is not written anymore:
+     * a writer that still holds the segment cannot reserve room in it.
+     *
+     * @param buffer the mapped region
+     * @return true if the region was unmapped, false if it is left to the garbage collector
+     */
+    static boolean unmap(final MappedByteBuffer buffer) {
+        if (UNMAP == null) {
+            return false;
+        }
+        try {
+            UNMAP.invokeExact((ByteBuffer) buffer);
+            return true;
+        } catch (Throwable ex) {
+            return false;
+        }
+    }
+
+    private static MethodHandle unmapper() {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return lookup.findVirtual(unsafeClass, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class)).bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Java 8, below
+        }
+        try {
+            final MethodHandle cleaner = lookup.findVirtual(Class.forName("sun.nio.ch.DirectBuffer"), "cleaner",
+                    MethodType.methodType(Class.forName("sun.misc.Cleaner")));
+            final MethodHandle clean = lookup.findVirtual(Class.forName("sun.misc.Cleaner"), "clean",
+                    MethodType.methodType(void.class));
+            return MethodHandles.filterReturnValue(cleaner, clean)
+                    .asType(MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // another runtime, the mappings are released by the garbage collector
+            return null;
+        }
+    }
+
+    private void rename(final String periodSuffix) throws IOException {
+        final String name = file.getPath() + (periodSuffix != null ? periodSuffix : "");
+        // without a date suffix every rotated file gets an index
+        File target = periodSuffix != null ? new File(name) : null;
+        for (int index = 1; target == null || target.exists(); index++) {
+            target = new File(name + "." + index);
+        }
+        if (!file.renameTo(target)) {
+            throw new IOException("Cannot rename " + file + " to " + target);
+        }
+    }
+}
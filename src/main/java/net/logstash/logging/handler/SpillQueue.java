@@ -0,0 +1,394 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent FIFO of chunks of formatted events, for when the sink is down.
+ *
+ * Chunks are appended to memory-mapped segment files, each preceded by its
+ * length, its number of events and the CRC32 of its bytes. A zero length
+ * ends the data of a segment. The position of the oldest chunk not yet
+ * acknowledged is kept in a checkpoint file, so after a restart the chunks
+ * are replayed from there: a chunk sent but not acknowledged before the
+ * JVM stopped is sent again.
+ *
+ * When the segments would take more than the maximum size, or a segment is
+ * older than the maximum age, the oldest segment is deleted and its events
+ * counted as dropped. Not thread-safe, used by the sender thread only.
+ */
+final class SpillQueue implements Closeable {
+
+    static final int HEADER_SIZE = 12;
+    private static final String SUFFIX = ".spill";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final long maxAgeMillis;
+    private final FileChannel checkpoint;
+    private final ByteBuffer checkpointBuffer = ByteBuffer.allocate(16);
+    private final CRC32 crc = new CRC32();
+
+    /** The ids of the segments, oldest first, the last one being written. */
+    private final Deque<Long> segments = new ArrayDeque<Long>();
+    private long totalSize;
+    private long dropped;
+
+    private MappedByteBuffer writeBuffer;
+    private long writeId;
+    private long writeStarted;
+
+    private ByteBuffer readBuffer;
+    private long readId = -1;
+    /** The chunk returned by the last peek, until it is acknowledged. */
+    private ByteBuffer peeked;
+    private int peekedEnd;
+
+    /**
+     * Open the queue, recovering the chunks not acknowledged before.
+     *
+     * @param directory the directory of the segment files
+     * @param segmentSize the size in bytes of a segment
+     * @param maxSize the most bytes the segments may take, at least two segments
+     * @param maxAgeMillis how long a segment is kept, 0 to keep it until sent
+     * @throws IOException if the directory cannot be read or written
+     */
+    SpillQueue(final File directory, final int segmentSize, final long maxSize, final long maxAgeMillis)
+            throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size must be at least 4096 bytes");
+        }
+        if (maxSize < 2L * segmentSize) {
+            throw new IllegalArgumentException("Maximum size must hold at least two segments");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.maxAgeMillis = maxAgeMillis;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        checkpoint = FileChannel.open(new File(directory, CHECKPOINT).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long ackedId = -1;
+        int ackedOffset = 0;
+        checkpointBuffer.clear();
+        if (checkpoint.read(checkpointBuffer, 0) == checkpointBuffer.capacity()) {
+            crc.reset();
+            crc.update(checkpointBuffer.array(), 0, 12);
+            if ((int) crc.getValue() == checkpointBuffer.getInt(12)) {
+                ackedId = checkpointBuffer.getLong(0);
+                ackedOffset = checkpointBuffer.getInt(8);
+            }
+        }
+
+        final String[] names = directory.list();
+        final long[] ids = new long[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (names[i].endsWith(SUFFIX)) {
+                try {
+                    ids[count++] = Long.parseLong(names[i].substring(0, names[i].length() - SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    // not a segment
+                }
+            }
+        }
+        final long[] found = Arrays.copyOf(ids, count);
+        Arrays.sort(found);
+        for (final long id : found) {
+            if (id < ackedId) {
+                delete(id);
+            } else {
+                segments.addLast(id);
+                totalSize += file(id).length();
+            }
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(Math.max(ackedId, 0L), segmentSize);
+            return;
+        }
+        // append after the last valid chunk of the newest segment
+        writeId = segments.getLast();
+        writeBuffer = map(writeId, MapMode.READ_WRITE);
+        writeStarted = System.currentTimeMillis();
+        int end = 0;
+        while (true) {
+            final int next = validChunkEnd(writeBuffer, end);
+            if (next < 0) {
+                break;
+            }
+            end = next;
+        }
+        // a chunk torn by a crash must not be taken for data later
+        for (int i = end; i < writeBuffer.capacity(); i++) {
+            writeBuffer.put(i, (byte) 0);
+        }
+        writeBuffer.position(end);
+
+        readId = segments.getFirst();
+        readBuffer = readId == writeId ? writeBuffer.duplicate() : map(readId, MapMode.READ_ONLY);
+        readBuffer.position(readId == ackedId && ackedOffset <= readBuffer.capacity() ? ackedOffset : 0);
+    }
+
+    /**
+     * Get where the chunk at the position ends, checking its CRC.
+     *
+     * @return the end of the chunk, or -1 if there is no valid chunk
+     */
+    private int validChunkEnd(final ByteBuffer buffer, final int position) {
+        if (position + HEADER_SIZE > buffer.capacity()) {
+            return -1;
+        }
+        final int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+            return -1;
+        }
+        crc.reset();
+        final ByteBuffer chunk = buffer.duplicate();
+        chunk.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+        crc.update(chunk);
+        if ((int) crc.getValue() != buffer.getInt(position + 8)) {
+            return -1;
+        }
+        return position + HEADER_SIZE + length;
+    }
+
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Append a chunk of events.
+     *
+     * @param chunk the bytes from the position to the limit, the position is moved to the limit
+     * @param events the number of events in the chunk
+     * @throws IOException if a segment cannot be created
+     */
+    void append(final ByteBuffer chunk, final int events) throws IOException {
+        final int length = chunk.remaining();
+        if (length == 0) {
+            return;
+        }
+        if (writeBuffer.remaining() < HEADER_SIZE + length
+                || (maxAgeMillis > 0 && System.currentTimeMillis() - writeStarted > maxAgeMillis)) {
+            openSegment(writeId + 1, Math.max(segmentSize, HEADER_SIZE * 2 + length));
+        }
+        final int position = writeBuffer.position();
+        crc.reset();
+        crc.update(chunk.duplicate());
+        writeBuffer.position(position + HEADER_SIZE);
+        writeBuffer.put(chunk);
+        writeBuffer.putInt(position + 4, events);
+        writeBuffer.putInt(position + 8, (int) crc.getValue());
+        // the length last, a reader never sees a partial chunk
+        writeBuffer.putInt(position, length);
+    }
+
+    /**
+     * Get the oldest chunk, without removing it.
+     *
+     * @return the bytes of the chunk, or null if the queue is empty
+     */
+    ByteBuffer peek() {
+        dropExpired();
+        if (peeked != null) {
+            return peeked.duplicate();
+        }
+        while (true) {
+            final int position = readBuffer.position();
+            final int end = validChunkEnd(readBuffer, position);
+            if (end >= 0) {
+                peekedEnd = end;
+                final ByteBuffer chunk = readBuffer.duplicate();
+                chunk.limit(end).position(position + HEADER_SIZE);
+                peeked = chunk.slice();
+                return peeked.duplicate();
+            }
+            if (readId == writeId) {
+                return null;
+            }
+            // the rest of the segment was sent, or is unreadable
+            dropped += eventsFrom(readBuffer, position);
+            nextReadSegment();
+        }
+    }
+
+    /**
+     * Remove the chunk returned by {@link #peek()}, once it was sent.
+     *
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void ack() throws IOException {
+        if (peeked == null) {
+            return;
+        }
+        readBuffer.position(peekedEnd);
+        peeked = null;
+        checkpointBuffer.clear();
+        checkpointBuffer.putLong(0, readId).putInt(8, readBuffer.position());
+        crc.reset();
+        crc.update(checkpointBuffer.array(), 0, 12);
+        checkpointBuffer.putInt(12, (int) crc.getValue());
+        checkpoint.write(checkpointBuffer, 0);
+    }
+
+    /**
+     * Get the number of events lost to the size and age limits or corruption
+     * since the last call.
+     *
+     * @return the number of events
+     */
+    long takeDropped() {
+        final long count = dropped;
+        dropped = 0;
+        return count;
+    }
+
+    /**
+     * Flush the segment being written to the disk.
+     */
+    void sync() throws IOException {
+        writeBuffer.force();
+        checkpoint.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        checkpoint.close();
+    }
+
+    private void openSegment(final long id, final int size) throws IOException {
+        if (writeBuffer != null) {
+            file(writeId).setLastModified(System.currentTimeMillis());
+        }
+        // make room, never deleting the segment being written
+        while (totalSize + size > maxSize && segments.size() > 1) {
+            dropOldest();
+        }
+        final FileChannel channel = FileChannel.open(file(id).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            writeBuffer = channel.map(MapMode.READ_WRITE, 0, size);
+        } finally {
+            channel.close();
+        }
+        writeId = id;
+        writeStarted = System.currentTimeMillis();
+        segments.addLast(id);
+        totalSize += size;
+        if (readBuffer == null) {
+            readId = id;
+            readBuffer = writeBuffer.duplicate();
+        }
+    }
+
+    private void dropExpired() {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        while (segments.size() > 1 && now - file(segments.getFirst()).lastModified() > maxAgeMillis) {
+            dropOldest();
+        }
+    }
+
+    private void dropOldest() {
+        final long id = segments.getFirst();
+        if (id == readId) {
+            dropped += eventsFrom(readBuffer, readBuffer.position());
+            peeked = null;
+            nextReadSegment();
+        } else {
+            segments.removeFirst();
+            totalSize -= file(id).length();
+            delete(id);
+        }
+    }
+
+    /**
+     * Delete the segment read so far and move to the next one.
+     */
+    private void nextReadSegment() {
+        final long id = segments.removeFirst();
+        totalSize -= file(id).length();
+        delete(id);
+        readId = segments.getFirst();
+        if (readId == writeId) {
+            readBuffer = writeBuffer.duplicate();
+            readBuffer.position(0);
+        } else {
+            try {
+                readBuffer = map(readId, MapMode.READ_ONLY);
+            } catch (IOException ex) {
+                // unreadable, skipped on the next peek
+                readBuffer = ByteBuffer.allocate(0);
+            }
+        }
+    }
+
+    private int eventsFrom(final ByteBuffer buffer, final int position) {
+        int events = 0;
+        int current = position;
+        while (true) {
+            final int end = validChunkEnd(buffer, current);
+            if (end < 0) {
+                return events;
+            }
+            events += buffer.getInt(current + 4);
+            current = end;
+        }
+    }
+
+    private MappedByteBuffer map(final long id, final MapMode mode) throws IOException {
+        final FileChannel channel = mode == MapMode.READ_ONLY
+                ? FileChannel.open(file(id).toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file(id).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return channel.map(mode, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private File file(final long id) {
+        return new File(directory, String.format("%016d%s", id, SUFFIX));
+    }
+
+    private void delete(final long id) {
+        file(id).delete();
+    }
+}
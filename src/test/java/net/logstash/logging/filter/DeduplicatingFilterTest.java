@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DeduplicatingFilterTest {
+
+    private final List<LogRecord> published = new ArrayList<LogRecord>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(final LogRecord record) {
+            if (isLoggable(record)) {
+                synchronized (published) {
+                    published.add(record);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private Logger logger;
+    private DeduplicatingFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new DeduplicatingFilter();
+        handler.setFilter(filter);
+        logger = Logger.getLogger(DeduplicatingFilterTest.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeHandler(handler);
+    }
+
+    private void log(final Level level, final String message, final Throwable thrown, final long millis,
+            final Object... params) {
+        ExtLogRecord record = new ExtLogRecord(level, message, DeduplicatingFilterTest.class.getName());
+        record.setLoggerName(logger.getName());
+        record.setThrown(thrown);
+        record.setMillis(millis);
+        record.setParameters(params);
+        logger.log(record);
+    }
+
+    @Test
+    public void testRepeatsAreCollapsed() {
+        filter.setWindow(60000);
+        for (int i = 0; i < 100; i++) {
+            log(Level.WARNING, "Failed {0}", new IllegalStateException(), 1000 + i, i);
+        }
+        assertEquals(1, published.size());
+        assertEquals(99, filter.getCollapsedCount());
+
+        filter.flush();
+        assertEquals(2, published.size());
+        RepeatedLogRecord repeated = (RepeatedLogRecord) published.get(1);
+        assertEquals(99, repeated.getRepeatCount());
+        assertEquals(1001, repeated.getFirstMillis());
+        assertEquals(1099, repeated.getLastMillis());
+        assertEquals(1099, repeated.getMillis());
+        assertEquals("Failed {0}", repeated.getMessage());
+        assertEquals(Level.WARNING, repeated.getLevel());
+        assertEquals(logger.getName(), repeated.getLoggerName());
+
+        filter.flush();
+        assertEquals(2, published.size());
+    }
+
+    @Test
+    public void testFingerprint() {
+        filter.setWindow(60000);
+        log(Level.INFO, "message", null, 1);
+        log(Level.WARNING, "message", null, 2);
+        log(Level.INFO, "other message", null, 3);
+        log(Level.INFO, "message", new IllegalStateException(), 4);
+        log(Level.INFO, "message", new IllegalArgumentException(), 5);
+        log(Level.INFO, "message", new IllegalArgumentException("other"), 6);
+        assertEquals(5, published.size());
+        assertEquals(1, filter.getCollapsedCount());
+    }
+
+    @Test
+    public void testWindowEnds() throws Exception {
+        filter.setWindow(50);
+        log(Level.INFO, "message", null, 1);
+        log(Level.INFO, "message", null, 2);
+        log(Level.INFO, "message", null, 3);
+        Thread.sleep(60);
+        log(Level.INFO, "message", null, 4);
+        assertEquals(3, published.size());
+        RepeatedLogRecord repeated = (RepeatedLogRecord) published.get(1);
+        assertEquals(2, repeated.getRepeatCount());
+        assertEquals(2, repeated.getFirstMillis());
+        assertEquals(3, repeated.getLastMillis());
+        // a new window starts with the record let through
+        assertEquals(4, published.get(2).getMillis());
+        assertFalse(published.get(2) instanceof RepeatedLogRecord);
+    }
+
+    @Test
+    public void testClosedWindowsAreSwept() throws Exception {
+        filter.setWindow(50);
+        log(Level.INFO, "message", null, 1);
+        log(Level.INFO, "message", null, 2);
+        Thread.sleep(60);
+        log(Level.INFO, "another message", null, 3);
+        assertEquals(3, published.size());
+        assertEquals(1, ((RepeatedLogRecord) published.get(1)).getRepeatCount());
+    }
+
+    @Test
+    public void testQuietRepeatsAreSwept() throws Exception {
+        filter.setWindow(50);
+        log(Level.INFO, "message", null, 1);
+        log(Level.INFO, "message", null, 2);
+        for (int i = 0; i < 100 && published.size() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, published.size());
+        assertEquals(1, ((RepeatedLogRecord) published.get(1)).getRepeatCount());
+    }
+
+    @Test
+    public void testFullCacheLetsRecordsThrough() {
+        filter.setWindow(60000);
+        filter.setMaxEntries(2);
+        for (int i = 0; i < 3; i++) {
+            log(Level.INFO, "message " + i, null, 1);
+            log(Level.INFO, "message " + i, null, 2);
+        }
+        assertEquals(4, published.size());
+        assertEquals(2, filter.getCollapsedCount());
+    }
+
+    @Test
+    public void testConcurrentRepeatsAreCounted() throws Exception {
+        filter.setWindow(60000);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        log(Level.INFO, "message", null, i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        filter.flush();
+        assertEquals(2, published.size());
+        assertEquals(3999, ((RepeatedLogRecord) published.get(1)).getRepeatCount());
+    }
+}
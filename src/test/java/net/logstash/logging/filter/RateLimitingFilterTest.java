@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class RateLimitingFilterTest {
+
+    private final List<LogRecord> published = new ArrayList<LogRecord>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(final LogRecord record) {
+            if (isLoggable(record)) {
+                synchronized (published) {
+                    published.add(record);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private Logger logger;
+    private RateLimitingFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new RateLimitingFilter();
+        handler.setFilter(filter);
+        logger = Logger.getLogger(RateLimitingFilterTest.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeHandler(handler);
+    }
+
+    private void log(final Level level, final int count) {
+        for (int i = 0; i < count; i++) {
+            ExtLogRecord record = new ExtLogRecord(level, "message " + i, RateLimitingFilterTest.class.getName());
+            record.setLoggerName(logger.getName());
+            logger.log(record);
+        }
+    }
+
+    private List<LogRecord> summaries() {
+        List<LogRecord> summaries = new ArrayList<LogRecord>();
+        for (LogRecord record : published) {
+            if (((ExtLogRecord) record).getMdc("suppressed") != null) {
+                summaries.add(record);
+            }
+        }
+        return summaries;
+    }
+
+    @Test
+    public void testStormIsLimitedAndSummarized() throws Exception {
+        filter.setRate(20);
+        filter.setBurst(5);
+        log(Level.INFO, 200);
+        final int passed = published.size();
+        assertTrue(passed >= 5);
+        assertTrue(passed < 20);
+        assertEquals(200 - passed, filter.getSuppressedCount());
+        assertTrue(summaries().isEmpty());
+
+        Thread.sleep(200);
+        log(Level.INFO, 1);
+        List<LogRecord> summaries = summaries();
+        assertEquals(1, summaries.size());
+        ExtLogRecord summary = (ExtLogRecord) summaries.get(0);
+        assertEquals(Long.toString(200 - passed), summary.getMdc("suppressed"));
+        assertEquals("Suppressed " + (200 - passed) + " records from logger " + logger.getName(),
+                summary.getFormattedMessage());
+        assertEquals(Level.INFO, summary.getLevel());
+        assertEquals(logger.getName(), summary.getLoggerName());
+        // the summary comes before the record let through
+        assertSame(summary, published.get(published.size() - 2));
+    }
+
+    @Test
+    public void testSummaryWhileStillSuppressing() throws Exception {
+        filter.setRate(1);
+        filter.setBurst(1);
+        filter.setSummaryInterval(50);
+        log(Level.WARNING, 10);
+        Thread.sleep(60);
+        log(Level.WARNING, 1);
+        assertEquals(1, summaries().size());
+        assertEquals("10", ((ExtLogRecord) summaries().get(0)).getMdc("suppressed"));
+    }
+
+    @Test
+    public void testQuietLoggerIsSummarized() throws Exception {
+        filter.setRate(20);
+        filter.setBurst(5);
+        filter.setSummaryInterval(50);
+        log(Level.INFO, 200);
+        final long suppressed = filter.getSuppressedCount();
+        assertTrue(suppressed > 0);
+        for (int i = 0; i < 100 && summaries().isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, summaries().size());
+        assertEquals(Long.toString(suppressed), ((ExtLogRecord) summaries().get(0)).getMdc("suppressed"));
+    }
+
+    @Test
+    public void testSummaryGoesToTheHandlerOfTheFilter() {
+        final List<LogRecord> other = new ArrayList<LogRecord>();
+        Handler otherHandler = new Handler() {
+            @Override
+            public void publish(final LogRecord record) {
+                if (isLoggable(record)) {
+                    other.add(record);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        logger.addHandler(otherHandler);
+        try {
+            filter.setHandler(handler);
+            filter.setRate(1);
+            filter.setBurst(1);
+            log(Level.INFO, 10);
+            filter.flush();
+            assertEquals(1, summaries().size());
+            assertEquals("9", ((ExtLogRecord) summaries().get(0)).getMdc("suppressed"));
+            assertEquals(10, other.size());
+            for (LogRecord record : other) {
+                assertNull(((ExtLogRecord) record).getMdc("suppressed"));
+            }
+        } finally {
+            logger.removeHandler(otherHandler);
+        }
+    }
+
+    @Test
+    public void testChangingTheLimitsSummarizes() {
+        filter.setRate(1);
+        filter.setBurst(1);
+        log(Level.INFO, 10);
+        assertTrue(summaries().isEmpty());
+        filter.setRate(5);
+        assertEquals(1, summaries().size());
+        assertEquals("9", ((ExtLogRecord) summaries().get(0)).getMdc("suppressed"));
+
+        log(Level.WARNING, 10);
+        filter.setLevelRates("WARNING:1");
+        filter.setBurst(2);
+        assertEquals(2, summaries().size());
+        assertEquals("9", ((ExtLogRecord) summaries().get(1)).getMdc("suppressed"));
+    }
+
+    @Test
+    public void testLevelsAreLimitedSeparately() {
+        filter.setRate(1);
+        filter.setBurst(2);
+        filter.setLevelRates("SEVERE:0");
+        log(Level.INFO, 10);
+        log(Level.WARNING, 10);
+        log(Level.SEVERE, 10);
+        assertEquals(2 + 2 + 10, published.size());
+        assertEquals(16, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void testSampling() {
+        filter.setRate(0);
+        filter.setSampleRate(0.0);
+        log(Level.FINE, 100);
+        log(org.jboss.logmanager.Level.TRACE, 100);
+        log(Level.INFO, 100);
+        assertEquals(100, published.size());
+        assertEquals(200, filter.getSampledOutCount());
+        assertEquals(0, filter.getSuppressedCount());
+
+        filter.setSampleRate(0.5);
+        log(Level.FINE, 1000);
+        assertTrue(published.size() > 300);
+        assertTrue(published.size() < 900);
+    }
+
+    @Test
+    public void testJBossLevelNames() {
+        filter.setRate(1);
+        filter.setBurst(1);
+        filter.setLevelRates("DEBUG:0, ERROR : 0");
+        log(org.jboss.logmanager.Level.DEBUG, 5);
+        log(org.jboss.logmanager.Level.ERROR, 5);
+        assertEquals(10, published.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedLevelRate() {
+        filter.setLevelRates("INFO");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSampleRateOutOfRange() {
+        filter.setSampleRate(1.5);
+    }
+}
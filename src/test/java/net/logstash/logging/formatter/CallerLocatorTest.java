@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.StringReader;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CallerLocatorTest {
+
+    private ExtLogRecord record;
+
+    @Before
+    public void setUp() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+    }
+
+    /**
+     * Stands for a logger: records are created and located in its frames.
+     */
+    private static final class Logger {
+
+        static CallerLocator.Caller log(final CallerLocator locator, final ExtLogRecord record) {
+            return locator.locate(record);
+        }
+
+        static void capture(final CallerLocator locator, final ExtLogRecord record) {
+            locator.capture(record);
+        }
+
+        static ExtLogRecord record(final Level level) {
+            return new ExtLogRecord(level, "message", Logger.class.getName());
+        }
+    }
+
+    @Test
+    public void testAlways() {
+        CallerLocator locator = new CallerLocator("always");
+        record = Logger.record(Level.FINE);
+        CallerLocator.Caller caller = Logger.log(locator, record);
+        assertEquals(CallerLocatorTest.class.getName(), caller.className);
+        assertEquals("testAlways", caller.methodName);
+        assertEquals("CallerLocatorTest.java", caller.fileName);
+        // set on the record for the other handlers
+        assertEquals(CallerLocatorTest.class.getName(), record.getSourceClassName());
+        assertEquals("testAlways", record.getSourceMethodName());
+        assertEquals(caller.lineNumber, record.getSourceLineNumber());
+        assertEquals("always", locator.toString());
+    }
+
+    @Test
+    public void testCallSitesShareTheirStrings() {
+        CallerLocator locator = new CallerLocator(null);
+        CallerLocator.Caller[] callers = new CallerLocator.Caller[2];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = Logger.log(locator, Logger.record(Level.INFO));
+        }
+        assertSame(callers[0], callers[1]);
+        assertSame(callers[0].methodName, callers[1].methodName);
+        assertEquals(1, locator.callSites());
+        Logger.log(locator, Logger.record(Level.INFO));
+        assertEquals(2, locator.callSites());
+    }
+
+    @Test
+    public void testThreshold() {
+        CallerLocator locator = new CallerLocator("WARN");
+        assertEquals("WARN", locator.toString());
+        record = Logger.record(Level.INFO);
+        assertSame(CallerLocator.SKIPPED, Logger.log(locator, record));
+        record = Logger.record(Level.SEVERE);
+        assertEquals("testThreshold", Logger.log(locator, record).methodName);
+        assertEquals(Level.FINE.getName(), new CallerLocator("500").toString());
+    }
+
+    @Test
+    public void testGivenCallerIsKept() {
+        CallerLocator locator = new CallerLocator("off");
+        record = Logger.record(Level.SEVERE);
+        assertSame(CallerLocator.SKIPPED, Logger.log(locator, record));
+        record.setSourceClassName("com.example.Dao");
+        record.setSourceMethodName("find");
+        CallerLocator.Caller caller = Logger.log(locator, record);
+        assertEquals("com.example.Dao", caller.className);
+        assertEquals("find", caller.methodName);
+        assertEquals("find", Logger.log(new CallerLocator("always"), record).methodName);
+    }
+
+    @Test
+    public void testCaptureOnlyAtThreshold() {
+        CallerLocator locator = new CallerLocator("WARN");
+        record = Logger.record(Level.INFO);
+        Logger.capture(locator, record);
+        assertEquals(0, locator.callSites());
+        record = Logger.record(Level.WARNING);
+        Logger.capture(locator, record);
+        assertEquals(1, locator.callSites());
+        assertEquals("testCaptureOnlyAtThreshold", record.getSourceMethodName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPolicy() {
+        new CallerLocator("sometimes");
+    }
+
+    @Test
+    public void testClassAndMethodFields() {
+        LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+        formatter.setLayout("class,method,exception_class");
+        formatter.setCallerInfo("ERROR");
+        assertEquals("ERROR", formatter.getCallerInfo());
+
+        record = new ExtLogRecord(Level.INFO, "message", CallerLocatorTest.class.getName());
+        record.setThrown(new IllegalStateException());
+        JsonObject event = Json.createReader(new StringReader(formatter.format(record))).readObject();
+        assertFalse(event.containsKey("class"));
+        assertFalse(event.containsKey("method"));
+        assertEquals(IllegalStateException.class.getName(), event.getString("exception_class"));
+
+        formatter.setCallerInfo("always");
+        record.setSourceClassName("com.example.Dao");
+        record.setSourceMethodName("find");
+        event = Json.createReader(new StringReader(formatter.format(record))).readObject();
+        assertEquals("com.example.Dao", event.getString("class"));
+        assertEquals("find", event.getString("method"));
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import static org.junit.Assert.*;
+
+import net.logstash.logging.filter.RepeatedLogRecord;
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CborEventWriterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private LogstashUtilFormatter formatter;
+    private ExtLogRecord record;
+
+    @Before
+    public void setUp() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar");
+        formatter = new LogstashUtilFormatter();
+        formatter.setEncoding("cbor");
+        record = new ExtLogRecord(Level.WARNING, "caf\u00e9 \ud83d\ude00 \"quoted\"\n\ttab", CborEventWriterTest.class.getName());
+        record.setLoggerName(CborEventWriterTest.class.getName());
+        record.setSourceClassName(CborEventWriterTest.class.getName());
+        record.setSourceMethodName("testMethod");
+        record.setThreadName("main");
+        record.setThrown(LogstashUtilFormatterTest.buildException("failed", null,
+                new StackTraceElement("Test", "method", "Test.java", 42)));
+        record.setNdc("ndc");
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "abc\u0001");
+        mdc.put("user", "foobar");
+        record.setMdc(mdc);
+    }
+
+    @After
+    public void tearDown() {
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+    }
+
+    /**
+     * Decode a frame and check it holds the same fields, in the same order, as the JSON event.
+     */
+    private void assertSameEvent(final ExtLogRecord record, final byte[] frame, final int length) {
+        final int size = ByteBuffer.wrap(frame).getInt();
+        assertEquals(length - CborEventWriter.FRAME_HEADER_SIZE, size);
+        final Decoder decoder = new Decoder(frame, CborEventWriter.FRAME_HEADER_SIZE);
+        final Object decoded = decoder.decode();
+        assertEquals(length, decoder.pos);
+        final Object expected = toJava(Json.createReader(new StringReader(formatter.format(record))).readObject());
+        assertEquals(expected, decoded);
+        assertEquals(new ArrayList<Object>(((Map<?, ?>) expected).keySet()),
+                new ArrayList<Object>(((Map<?, ?>) decoded).keySet()));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        int length = formatter.formatTo(record, buffer);
+        assertEquals(length, buffer.position());
+        assertSameEvent(record, buffer.array(), length);
+    }
+
+    @Test
+    public void testRoundTripToOutputStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        formatter.formatTo(record, out);
+        Throwable thrown = record.getThrown();
+        record.setThrown(null);
+        formatter.formatTo(record, out);
+        byte[] bytes = out.toByteArray();
+
+        // the frames follow each other
+        int first = ByteBuffer.wrap(bytes).getInt() + CborEventWriter.FRAME_HEADER_SIZE;
+        record.setThrown(thrown);
+        assertSameEvent(record, Arrays.copyOf(bytes, first), first);
+        record.setThrown(null);
+        assertSameEvent(record, Arrays.copyOfRange(bytes, first, bytes.length), bytes.length - first);
+    }
+
+    @Test
+    public void testRoundTripRepeatedRecordAndLayout() {
+        formatter.setLayout("@timestamp:ts,level,message:msg,@mdc:ctx,repeat,@tags,stack_trace");
+        RepeatedLogRecord repeated = new RepeatedLogRecord(record, 42, 1000, 2000);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        int length = formatter.formatTo(repeated, buffer);
+        assertSameEvent(repeated, buffer.array(), length);
+    }
+
+    @Test
+    public void testRoundTripWithCustomFieldRepeatingAKey() {
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "@message:custom");
+        formatter = new LogstashUtilFormatter();
+        formatter.setEncoding("CBOR");
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        int length = formatter.formatTo(record, buffer);
+        assertSameEvent(record, buffer.array(), length);
+    }
+
+    @Test
+    public void testSmallerThanJson() {
+        int json = formatter.format(record).getBytes(UTF_8).length;
+        int cbor = formatter.formatTo(record, ByteBuffer.allocate(8192));
+        assertTrue(cbor + " >= " + json, cbor < json);
+    }
+
+    @Test
+    public void testEncodeValues() {
+        CborEventWriter writer = new CborEventWriter();
+        writer.beginObject()
+                .beginArray(new EventWriter.Key("a")).endArray()
+                .beginObject(new EventWriter.Key("b")).endObject()
+                .beginArray(new EventWriter.Key("c")).value(true).value(false).value((String) null).endArray()
+                .field(new EventWriter.Key("d"), -1)
+                .field(new EventWriter.Key("e"), 24)
+                .field(new EventWriter.Key("f"), 65536)
+                .beginArray(new EventWriter.Key("g")).value(1.5).endArray()
+                .field(new EventWriter.Key("h"), "\u00e9/")
+                .field(new EventWriter.Key("i"), (String) null)
+                .endObject();
+        int length = writer.frame();
+        assertEquals(length - CborEventWriter.FRAME_HEADER_SIZE, ByteBuffer.wrap(writer.bytes()).getInt());
+        Decoder decoder = new Decoder(writer.bytes(), CborEventWriter.FRAME_HEADER_SIZE);
+        Object decoded = decoder.decode();
+        assertEquals(length, decoder.pos);
+        String json = "{\"a\":[],\"b\":{},\"c\":[true,false,null],\"d\":-1,\"e\":24,\"f\":65536,\"g\":[1.5],"
+                + "\"h\":\"\\u00e9\\/\",\"i\":null}";
+        assertEquals(toJava(Json.createReader(new StringReader(json)).readObject()), decoded);
+    }
+
+    @Test
+    public void testWriterIsReset() {
+        CborEventWriter writer = CborEventWriter.get();
+        writer.beginObject().field(new EventWriter.Key("a"), "b").endObject();
+        assertSame(writer, CborEventWriter.get());
+        writer.beginObject().endObject();
+        assertEquals(CborEventWriter.FRAME_HEADER_SIZE + 2, writer.frame());
+    }
+
+    @Test
+    public void testNumbersKeepTheirPrecision() {
+        BigInteger big = new BigInteger("123456789012345678901234567890");
+        BigDecimal pi = new BigDecimal("3.14159265358979323846264338327950288");
+        record.setMessage("{0} {1} {2} {3} {4}");
+        record.setParameters(new Object[] {big, big.negate(), pi, 0.1f, 1.5});
+        formatter.setLayout("params");
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        formatter.formatTo(record, buffer);
+        List<?> params = (List<?>) ((Map<?, ?>) new Decoder(buffer.array(), CborEventWriter.FRAME_HEADER_SIZE).decode())
+                .get("params");
+        assertEquals(big, params.get(0));
+        assertEquals(big.negate(), params.get(1));
+        assertEquals(pi, params.get(2));
+        assertEquals(0.1, params.get(3));
+        assertEquals(1.5, params.get(4));
+
+        CborEventWriter writer = new CborEventWriter();
+        writer.beginObject().beginArray(new EventWriter.Key("n"))
+                .value(new BigDecimal("18446744073709551616"))
+                .value(new BigDecimal("-18446744073709551617"))
+                .value(new BigDecimal("1e400"))
+                .value(new BigDecimal("1.5e-400"))
+                .value(new BigDecimal("2.50"))
+                .value(Long.MIN_VALUE)
+                .endArray().endObject();
+        writer.frame();
+        assertEquals(Arrays.asList(new BigInteger("18446744073709551616"), new BigInteger("-18446744073709551617"),
+                BigInteger.TEN.pow(400), new BigDecimal("1.5e-400"), 2.5, Long.MIN_VALUE),
+                ((Map<?, ?>) new Decoder(writer.bytes(), CborEventWriter.FRAME_HEADER_SIZE).decode()).get("n"));
+    }
+
+    @Test
+    public void testJsonEncodingIsDefault() {
+        assertEquals("json", new LogstashUtilFormatter().getEncoding());
+        assertEquals("cbor", formatter.getEncoding());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEncodingIsRejected() {
+        formatter.setEncoding("smile");
+    }
+
+    private static Object toJava(final JsonValue value) {
+        switch (value.getValueType()) {
+            case OBJECT:
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) value).entrySet()) {
+                    map.put(entry.getKey(), toJava(entry.getValue()));
+                }
+                return map;
+            case ARRAY:
+                List<Object> list = new ArrayList<Object>();
+                for (JsonValue element : (JsonArray) value) {
+                    list.add(toJava(element));
+                }
+                return list;
+            case STRING:
+                return ((JsonString) value).getString();
+            case NUMBER:
+                JsonNumber number = (JsonNumber) value;
+                return number.isIntegral() ? (Object) number.longValue() : (Object) number.doubleValue();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Minimal CBOR decoder of the items the writer writes.
+     */
+    private static final class Decoder {
+
+        private static final Object BREAK = new Object();
+
+        private final byte[] bytes;
+        private int pos;
+
+        Decoder(final byte[] bytes, final int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        Object decode() {
+            final int initial = bytes[pos++] & 0xff;
+            final int major = initial >> 5;
+            final int info = initial & 0x1f;
+            if (initial == 0xff) {
+                return BREAK;
+            }
+            if (major == 7) {
+                switch (initial) {
+                    case 0xf4:
+                        return Boolean.FALSE;
+                    case 0xf5:
+                        return Boolean.TRUE;
+                    case 0xf6:
+                        return null;
+                    case 0xfb:
+                        return Double.longBitsToDouble(argument(27));
+                    default:
+                        throw new AssertionError("Unexpected simple value " + initial);
+                }
+            }
+            if (info == 31) {
+                if (major == 4) {
+                    List<Object> list = new ArrayList<Object>();
+                    for (Object element = decode(); element != BREAK; element = decode()) {
+                        list.add(element);
+                    }
+                    return list;
+                }
+                assertEquals(5, major);
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+                for (Object key = decode(); key != BREAK; key = decode()) {
+                    assertFalse("Repeated key " + key, map.containsKey(key));
+                    map.put(key, decode());
+                }
+                return map;
+            }
+            final long argument = argument(info);
+            switch (major) {
+                case 0:
+                    return argument;
+                case 1:
+                    return -1 - argument;
+                case 2:
+                    byte[] magnitude = Arrays.copyOfRange(bytes, pos, pos + (int) argument);
+                    pos += (int) argument;
+                    return new BigInteger(1, magnitude);
+                case 3:
+                    String s = new String(bytes, pos, (int) argument, UTF_8);
+                    pos += (int) argument;
+                    return s;
+                case 4:
+                    List<Object> elements = new ArrayList<Object>();
+                    for (long i = 0; i < argument; i++) {
+                        elements.add(decode());
+                    }
+                    return elements;
+                case 6:
+                    if (argument == 2) {
+                        return decode();
+                    }
+                    if (argument == 3) {
+                        return BigInteger.ONE.negate().subtract((BigInteger) decode());
+                    }
+                    assertEquals(4, argument);
+                    List<?> fraction = (List<?>) decode();
+                    BigInteger mantissa = fraction.get(1) instanceof BigInteger ? (BigInteger) fraction.get(1)
+                            : BigInteger.valueOf((Long) fraction.get(1));
+                    return new BigDecimal(mantissa, -((Long) fraction.get(0)).intValue());
+                default:
+                    throw new AssertionError("Unexpected major type " + major);
+            }
+        }
+
+        private long argument(final int info) {
+            if (info < 24) {
+                return info;
+            }
+            final int size = 1 << (info - 24);
+            long value = 0;
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | (bytes[pos++] & 0xff);
+            }
+            return value;
+        }
+    }
+}
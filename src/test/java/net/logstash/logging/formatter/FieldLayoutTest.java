@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import static org.junit.Assert.*;
+
+import net.logstash.logging.formatter.FieldLayout.Field;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class FieldLayoutTest {
+
+    private static final String[][] NO_FIELDS = new String[0][];
+    private static final String[] TAGS = {"foo"};
+    private static final ProcessContext CONTEXT = new ProcessContext("host", true, 42L, null, 0L);
+
+    private static FieldLayout compile(final String spec, final String[][] customfields) {
+        return FieldLayout.compile(spec, CONTEXT, customfields, TAGS);
+    }
+
+    @Test
+    public void testDefaultLayout() {
+        FieldLayout layout = compile(null, NO_FIELDS);
+        assertEquals("default", layout.toString());
+        // every field but the opt-in ones, which the classic event never had
+        assertEquals(Field.values().length - 6, layout.fields.length);
+        for (Field field : new Field[] {Field.MESSAGE_TEMPLATE, Field.PARAMS, Field.PID, Field.CONTAINER_ID,
+                Field.JVM_START_TIME, Field.STACK_HASH}) {
+            assertFalse(field.name, layout.contains(field));
+        }
+        assertEquals(Field.TIMESTAMP, layout.fields[0]);
+        assertEquals("@timestamp", layout.keys[0]);
+        assertTrue(layout.nullStrings);
+        assertFalse(layout.shadowing);
+        assertTrue(compile(" ", NO_FIELDS).nullStrings);
+        // extending the classic event keeps its class and method
+        assertTrue(compile("default,pid", NO_FIELDS).nullStrings);
+        assertFalse(compile("class,method", NO_FIELDS).nullStrings);
+    }
+
+    @Test
+    public void testRenamesAndDropsFields() {
+        FieldLayout layout = compile("message:msg, level ,HOSTNAME:host.name", NO_FIELDS);
+        assertArrayEquals(new Field[] {Field.MESSAGE, Field.LEVEL, Field.HOSTNAME}, layout.fields);
+        assertArrayEquals(new String[] {"msg", "level", "host.name"}, layout.keys);
+        assertEquals("\"msg\":", new String(layout.names[0].json));
+        assertEquals(",\"host.name\":\"host\"", new String(layout.constants[2].json));
+        assertFalse(layout.contains(Field.STACK_TRACE));
+        assertFalse(layout.nullStrings);
+    }
+
+    @Test
+    public void testProcessFields() {
+        FieldLayout layout = compile("pid:process.pid,container_id,jvm_start_time", NO_FIELDS);
+        assertEquals(",\"process.pid\":42", new String(layout.constants[0].json));
+        assertEquals(0, layout.constants[1].json.length);
+        assertEquals(0, layout.constants[2].json.length);
+        layout = FieldLayout.compile("container_id,jvm_start_time", new ProcessContext("host", true, 42L, "abc", 1000L),
+                NO_FIELDS, TAGS);
+        assertEquals(",\"container_id\":\"abc\"", new String(layout.constants[0].json));
+        assertEquals(",\"jvm_start_time\":\"1970-01-01T00:00:01.000Z\"", new String(layout.constants[1].json));
+    }
+
+    @Test
+    public void testEcsLayout() {
+        FieldLayout layout = compile("ecs", NO_FIELDS);
+        assertFalse(layout.contains(Field.LEVEL_VALUE));
+        assertFalse(layout.contains(Field.LINE_NUMBER));
+        assertEquals("log.level", layout.keys[1]);
+        assertEquals(",\"tags\":[\"foo\"]", new String(layout.constants[layout.fields.length - 3].json));
+        assertFalse(layout.nullStrings);
+    }
+
+    @Test
+    public void testShadowing() {
+        assertTrue(compile(null, new String[][] {{"ndc", "x"}}).shadowing);
+        assertTrue(compile(null, new String[][] {{"a", "x"}, {"a", "y"}}).shadowing);
+        assertFalse(compile("message:msg,custom_fields", new String[][] {{"message", "x"}}).shadowing);
+        assertTrue(compile("message:msg,custom_fields", new String[][] {{"msg", "x"}}).shadowing);
+        assertTrue(compile(null, new String[][] {{"repeat_count", "x"}}).shadowing);
+        // custom fields that are not written cannot shadow anything
+        assertFalse(compile("message", new String[][] {{"message", "x"}}).shadowing);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownField() {
+        compile("@timestamp,severity", NO_FIELDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRepeatedField() {
+        compile("message,message:msg", NO_FIELDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRepeatedKey() {
+        compile("message,logger_name:message", NO_FIELDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyKey() {
+        compile("message:", NO_FIELDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRenamedCustomFields() {
+        compile("custom_fields:fields", NO_FIELDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRenamedRepeat() {
+        compile("repeat:repeated", NO_FIELDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyRepeatingARepeatKey() {
+        compile("message:repeat_count,repeat", NO_FIELDS);
+    }
+}
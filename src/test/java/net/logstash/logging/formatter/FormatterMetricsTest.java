@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.MDC;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class FormatterMetricsTest {
+
+    private static final String METRICS = "net.logstash.logging.formatter.LogstashUtilFormatter.metrics";
+
+    private LogstashUtilFormatter formatter;
+    private FormatterMetrics metrics;
+
+    @Before
+    public void setUp() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        System.setProperty(METRICS, "true");
+        formatter = new LogstashUtilFormatter();
+        metrics = FormatterMetrics.registered();
+        metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(METRICS);
+        MDC.clear();
+    }
+
+    private static ExtLogRecord record(final Level level, final String message, final Object... parameters) {
+        ExtLogRecord record = new ExtLogRecord(level, message, FormatterMetricsTest.class.getName());
+        record.setLoggerName("test");
+        record.setParameters(parameters);
+        return record;
+    }
+
+    @Test
+    public void testCountRecords() {
+        String event = formatter.format(record(Level.INFO, "first"));
+        formatter.format(record(Level.INFO, "second"));
+        int length = formatter.formatTo(record(Level.WARNING, "third"), ByteBuffer.allocate(4096));
+
+        assertEquals(3, metrics.getRecordCount());
+        assertEquals(Long.valueOf(2), metrics.getRecordCountByLevel().get("INFO"));
+        assertEquals(Long.valueOf(1), metrics.getRecordCountByLevel().get("WARNING"));
+        assertTrue(metrics.getCharsFormatted() >= 2 * event.length());
+        assertEquals(length, metrics.getBytesFormatted());
+        assertTrue(metrics.getFormatLatencyMaxNanos() > 0);
+        assertTrue(metrics.getFormatLatency50thPercentileNanos() <= metrics.getFormatLatency99thPercentileNanos());
+        assertTrue(metrics.getFormatLatency99thPercentileNanos() <= metrics.getFormatLatencyMaxNanos());
+    }
+
+    @Test
+    public void testCountMessageFormatErrors() {
+        formatter.format(record(Level.INFO, "{0} and {1}", "a", "b"));
+        assertEquals(0, metrics.getMessageFormatErrors());
+
+        // the brace style throws on the bad number format, the printf style on the missing argument
+        formatter.format(record(Level.INFO, "{0,number,#} %d", "not a number"));
+        assertEquals(2, metrics.getMessageFormatErrors());
+    }
+
+    @Test
+    public void testCountOversizedStackTraces() {
+        ExtLogRecord record = record(Level.SEVERE, "failure");
+        record.setThrown(new Exception("small"));
+        formatter.format(record);
+        assertEquals(0, metrics.getOversizedStackTraces());
+
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i <= FormatterMetrics.OVERSIZED_STACK_TRACE; i++) {
+            message.append('x');
+        }
+        record.setThrown(new Exception(message.toString()));
+        formatter.format(record);
+        assertEquals(1, metrics.getOversizedStackTraces());
+    }
+
+    @Test
+    public void testMdcSizes() {
+        formatter.format(record(Level.INFO, "without"));
+        MDC.put("a", "1");
+        MDC.put("b", "2");
+        MDC.put("c", "3");
+        formatter.format(record(Level.INFO, "with"));
+
+        assertEquals(3, metrics.getMdcSizeMax());
+        assertEquals(1.5, metrics.getMdcSizeMean(), 0.001);
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        System.clearProperty(METRICS);
+        new LogstashUtilFormatter().format(record(Level.INFO, "message"));
+        assertEquals(0, metrics.getRecordCount());
+    }
+
+    @Test
+    public void testRegisteredMBean() throws Exception {
+        formatter.format(record(Level.INFO, "message"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(FormatterMetrics.OBJECT_NAME);
+        assertEquals(1L, server.getAttribute(name, "RecordCount"));
+        TabularData levels = (TabularData) server.getAttribute(name, "RecordCountByLevel");
+        CompositeData info = levels.get(new Object[] {"INFO"});
+        assertEquals(1L, info.get("value"));
+
+        server.invoke(name, "reset", new Object[0], new String[0]);
+        assertEquals(0L, server.getAttribute(name, "RecordCount"));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.Random;
+
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class JsonEscaperTest {
+
+    private static final JsonBuilderFactory BUILDER = Json.createBuilderFactory(null);
+
+    /** Characters around the boundaries of the escaping rules. */
+    private static final char[] SPECIAL = {
+        '"', '\\', '/', '\b', '\f', '\n', '\r', '\t', 0x00, 0x1f, 0x20, 0x7e, 0x7f, 0x80, 0x9f, 0xa0, 0xe9,
+        0x1fff, 0x2000, 0x2028, 0x2029, 0x20ac, 0x20ff, 0x2100, 0xd800, 0xdbff, 0xdc00, 0xdfff, 0xfeff, 0xffff
+    };
+
+    /**
+     * The quoted string as written by the javax.json reference implementation.
+     */
+    private static String reference(final String s) {
+        final String object = BUILDER.createObjectBuilder().add("k", s).build().toString();
+        return object.substring("{\"k\":".length(), object.length() - 1);
+    }
+
+    private static String escape(final String s, final int offset) {
+        final char[] dst = new char[offset + s.length() * JsonEscaper.MAX_EXPANSION];
+        final int end = JsonEscaper.escape(s, dst, offset);
+        return "\"" + new String(dst, offset, end - offset) + "\"";
+    }
+
+    private static String random(final Random random, final int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            final int kind = random.nextInt(10);
+            if (kind < 6) {
+                sb.append((char) (0x20 + random.nextInt(0x5f)));
+            } else if (kind < 8) {
+                sb.append(SPECIAL[random.nextInt(SPECIAL.length)]);
+            } else if (kind < 9) {
+                sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            } else {
+                sb.append((char) random.nextInt(0x10000));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testEveryCharacter() {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            final String s = "a" + (char) c + "b";
+            assertEquals(Integer.toHexString(c), reference(s), escape(s, 0));
+        }
+    }
+
+    @Test
+    public void testFuzzAgainstJsonBuilder() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            final String s = random(random, random.nextInt(i % 100 == 0 ? 16 * 1024 : 200));
+            assertEquals(s, reference(s), escape(s, random.nextInt(8)));
+        }
+    }
+
+    @Test
+    public void testOnlyEscapedCharacters() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            sb.append((char) (i % 0x20));
+        }
+        final String s = sb.toString();
+        assertEquals(reference(s), escape(s, 3));
+    }
+
+    @Test
+    public void testPlainAndEmpty() {
+        assertEquals("\"\"", escape("", 0));
+        assertEquals("\"plain message\"", escape("plain message", 5));
+    }
+
+    @Test
+    public void testLongStackTrace() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("\tat net.logstash.Example.method").append(i).append("(Example.java:").append(i).append(")\n");
+        }
+        final String s = sb.toString();
+        assertEquals(reference(s), escape(s, 0));
+    }
+}
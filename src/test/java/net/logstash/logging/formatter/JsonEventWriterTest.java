@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.json.Json;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class JsonEventWriterTest {
+
+    @Test
+    public void testEscapesEveryCharacterLikeJsonBuilder() {
+        final StringBuilder sb = new StringBuilder();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            sb.append((char) c);
+        }
+        final String value = sb.toString();
+        final String expected = Json.createObjectBuilder().add("key", value).build().toString();
+
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject().field("key", value).endObject();
+        assertEquals(expected, writer.toString());
+    }
+
+    @Test
+    public void testNestedStructures() {
+        final String expected = Json.createObjectBuilder()
+                .add("a", 1)
+                .add("b", Json.createArrayBuilder().add("x").add("y"))
+                .add("c", Json.createObjectBuilder().add("d", "e").add("f", "g"))
+                .add("h", Json.createArrayBuilder())
+                .build().toString();
+
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject()
+              .field("a", 1)
+              .beginArray("b").value("x").value("y").endArray()
+              .beginObject("c").field("d", "e").field("f", "g").endObject()
+              .beginArray("h").endArray()
+              .endObject()
+              .newLine();
+        assertEquals(expected + "\n", writer.toString());
+    }
+
+    @Test
+    public void testNullValue() {
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject().field("key", (String) null).endObject();
+        assertEquals("{\"key\":null}", writer.toString());
+    }
+
+    @Test
+    public void testTypedValues() {
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject().beginArray(JsonEventWriter.escapeName("params"))
+                .value(-42L).value(1.5).value(new BigDecimal("1E+30")).value(true).value((String) null)
+                .endArray().endObject();
+        assertEquals("{\"params\":[-42,1.5,1E+30,true,null]}", writer.toString());
+        assertEquals(1e30, Json.createReader(new StringReader(writer.toString())).readObject()
+                .getJsonArray("params").getJsonNumber(2).doubleValue(), 0.0);
+    }
+
+    @Test
+    public void testEscapedName() {
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject().field("a", "b").field(JsonEventWriter.escapeName("c\"\n"), "d").endObject();
+        assertEquals(Json.createObjectBuilder().add("a", "b").add("c\"\n", "d").build().toString(), writer.toString());
+    }
+
+    @Test
+    public void testGetResetsWriter() {
+        JsonEventWriter writer = JsonEventWriter.get();
+        writer.beginObject().field("key", "value").endObject();
+        writer = JsonEventWriter.get();
+        writer.beginObject().endObject();
+        assertEquals("{}", writer.toString());
+    }
+
+    @Test
+    public void testFields() {
+        JsonEventWriter fragment = new JsonEventWriter();
+        fragment.beginObject().field("b", "c").beginArray("d").value("e").endArray();
+        final char[] fields = fragment.toFields();
+
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject().field("a", 1).fields(fields).field("f", 2).endObject();
+        assertEquals("{\"a\":1,\"b\":\"c\",\"d\":[\"e\"],\"f\":2}", writer.toString());
+
+        writer = new JsonEventWriter();
+        writer.beginObject().fields(fields).field("f", 2).endObject();
+        assertEquals("{\"b\":\"c\",\"d\":[\"e\"],\"f\":2}", writer.toString());
+    }
+
+    @Test
+    public void testEmptyFields() {
+        JsonEventWriter fragment = new JsonEventWriter();
+        fragment.beginObject();
+        assertEquals(0, fragment.toFields().length);
+    }
+
+    @Test
+    public void testEncodeUtf8LikeString() {
+        final String[] values = {
+            "plain ascii", "caf\u00e9 \u20ac \ud83d\ude00", "lone \ud83d high", "lone \ude00 low", "end \ud83d"
+        };
+        for (final String value : values) {
+            JsonEventWriter writer = new JsonEventWriter();
+            writer.beginObject().field("key", value).endObject().newLine();
+            final byte[] expected = writer.toString().getBytes(Charset.forName("UTF-8"));
+            final int length = writer.encodeUtf8();
+            assertArrayEquals(value, expected, Arrays.copyOf(writer.utf8Bytes(), length));
+        }
+    }
+}
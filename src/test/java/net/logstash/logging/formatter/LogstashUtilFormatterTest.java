@@ -15,21 +15,33 @@
  */
 package net.logstash.logging.formatter;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ListResourceBundle;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 
 import static org.junit.Assert.*;
 
+import net.logstash.logging.filter.RepeatedLogRecord;
 import org.jboss.logmanager.ExtLogRecord;
 import org.junit.Before;
 import org.junit.Test;
@@ -54,17 +66,9 @@ public class LogstashUtilFormatterTest {
     private String fullLogMessage = null;
     private String logMessageWithoutFields = null;
     private JsonObjectBuilder fieldsBuilderWithFields = null;
-    private static String hostName;
+    private static final String hostName = ProcessContext.current().hostName;
     private static final String MESSAGE = "Junit Test";
 
-    static {
-        try {
-            hostName = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            hostName = "unknown-host";
-        }
-    }
-
     public static Exception buildException(final String message, final Throwable cause,
             final StackTraceElement...stackTrace) {
         final Exception result = new Exception(message, cause);
@@ -394,6 +398,24 @@ public class LogstashUtilFormatterTest {
         assertEquals("%s", instance.formatMessage(record));
     }
 
+    @Test
+    public void testFormatMessageWithResourceBundleAndNoParameters() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar");
+        record.setMessage("greeting");
+        record.setParameters(null);
+        record.setResourceBundle(new ListResourceBundle() {
+            @Override
+            protected Object[][] getContents() {
+                return new Object[][] {{"greeting", "hello"}};
+            }
+        });
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        assertEquals("hello", instance.formatMessage(record));
+        record.setParameters(new Object[0]);
+        assertEquals("hello", instance.formatMessage(record));
+    }
+
     @Test
     public void testFormatMessageWithBogusPercentFormat() {
     	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
@@ -403,4 +425,348 @@ public class LogstashUtilFormatterTest {
         LogstashUtilFormatter instance = new LogstashUtilFormatter();
         assertEquals("%0.5s", instance.formatMessage(record));
     }
+    @Test
+    public void testFormatEscapesLikeJsonBuilder() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        final String message = "quote\" backslash\\ tab\t nl\n \u0001 \u0085 \u2028 \u00e9 \ud83d\ude00";
+        record.setMessage(message);
+        record.setThrown(null);
+        record.setNdc(null);
+        record.setMdc(new HashMap<String, String>());
+
+        JsonObjectBuilder builder = Json.createBuilderFactory(null).createObjectBuilder();
+        builder.add("@timestamp", new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT).format(new Date(record.getMillis())))
+               .add("level", Level.ALL.toString())
+               .add("level_value", Level.ALL.intValue())
+               .add("message", message)
+               .add("logger_name", LogstashUtilFormatter.class.getName())
+               .add("thread_name", "Main Thread")
+               .add("HOSTNAME", hostName)
+               .add("class", LogstashUtilFormatter.class.getName())
+               .add("method", "testMethod")
+               .add("@tags", Json.createArrayBuilder().add("foo").add("bar"));
+
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        assertEquals(builder.build().toString() + "\n", instance.format(record));
+    }
+
+    @Test
+    public void testFormatWithCustomFieldRepeatingAKey() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,ndc:custom,foo:baz");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+
+        fieldsBuilderWithFields = Json.createBuilderFactory(null).createObjectBuilder();
+        addCommonElements(record.getMillis(), fieldsBuilderWithFields);
+        addCommonFields(fieldsBuilderWithFields);
+        fieldsBuilderWithFields.add("foo", "bar");
+        fieldsBuilderWithFields.add("ndc", "custom");
+        fieldsBuilderWithFields.add("foo", "baz");
+        fieldsBuilderWithFields.add("@tags", Json.createArrayBuilder().add("foo").add("bar"));
+        fieldsBuilderWithFields.add("@mdc", createMdcFields());
+
+        assertEquals(fieldsBuilderWithFields.build().toString() + "\n", instance.format(record));
+    }
+
+    @Test
+    public void testFormatRepeatedRecord() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        final long first = record.getMillis() + 1000;
+        final long last = record.getMillis() + 5000;
+        RepeatedLogRecord repeated = new RepeatedLogRecord(record, 42, first, last);
+
+        final SimpleDateFormat dateFormat = new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT);
+        createFullMessage(last);
+        fieldsBuilderWithFields.add("repeat_count", 42);
+        fieldsBuilderWithFields.add("first_timestamp", dateFormat.format(new Date(first)));
+        fieldsBuilderWithFields.add("last_timestamp", dateFormat.format(new Date(last)));
+        final String expected = fieldsBuilderWithFields.build().toString() + "\n";
+        assertEquals(expected, instance.format(repeated));
+
+        // the object tree gives the same event
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar,baz:foobar");
+        assertEquals(expected, new LogstashUtilFormatter().format(repeated));
+    }
+
+    @Test
+    public void testFormatWithLayout() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        instance.setLayout("custom_fields, message:msg ,stack_trace,@mdc:context");
+        assertEquals("custom_fields, message:msg ,stack_trace,@mdc:context", instance.getLayout());
+
+        JsonObjectBuilder builder = Json.createBuilderFactory(null).createObjectBuilder()
+                .add("foo", "bar")
+                .add("msg", MESSAGE)
+                .add("stack_trace", EXPECTED_EX_STACKTRACE)
+                .add("context", createMdcFields());
+        assertEquals(builder.build().toString() + "\n", instance.format(record));
+    }
+
+    @Test
+    public void testFormatWithEcsLayout() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.layout", "ecs");
+        LogstashUtilFormatter instance;
+        try {
+            instance = new LogstashUtilFormatter();
+        } finally {
+            System.clearProperty("net.logstash.logging.formatter.LogstashUtilFormatter.layout");
+        }
+        record.setSourceMethodName(null);
+
+        JsonObjectBuilder builder = Json.createBuilderFactory(null).createObjectBuilder()
+                .add("@timestamp", new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT).format(new Date(record.getMillis())))
+                .add("log.level", Level.ALL.toString())
+                .add("message", MESSAGE)
+                .add("log.logger", LogstashUtilFormatter.class.getName())
+                .add("process.thread.name", "Main Thread")
+                .add("host.hostname", hostName)
+                .add("log.origin.class", LogstashUtilFormatter.class.getName())
+                .add("error.type", ex.getClass().getName())
+                .add("error.message", ex.getMessage())
+                .add("error.stack_trace", EXPECTED_EX_STACKTRACE)
+                .add("ndc", "ndc_test")
+                .add("tags", Json.createArrayBuilder().add("foo").add("bar"))
+                .add("labels", createMdcFields());
+        assertEquals(builder.build().toString() + "\n", instance.format(record));
+    }
+
+    @Test
+    public void testFormatWithLayoutAndCustomFieldRepeatingAKey() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "msg:custom,foo:bar");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        instance.setLayout("message:msg,level,custom_fields");
+
+        JsonObjectBuilder builder = Json.createBuilderFactory(null).createObjectBuilder()
+                .add("msg", "custom")
+                .add("level", Level.ALL.toString())
+                .add("foo", "bar");
+        assertEquals(builder.build().toString() + "\n", instance.format(record));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedCustomFieldIsRejected() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz");
+        new LogstashUtilFormatter();
+    }
+
+    @Test
+    public void testParseCustomFields() {
+        String[][] fields = LogstashUtilFormatter.parseCustomFields("foo:bar,,baz:foobar");
+        assertEquals(2, fields.length);
+        assertArrayEquals(new String[] {"foo", "bar"}, fields[0]);
+        assertArrayEquals(new String[] {"baz", "foobar"}, fields[1]);
+        assertEquals(0, LogstashUtilFormatter.parseCustomFields("").length);
+    }
+
+    @Test
+    public void testFormatToByteBuffer() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar");
+        record.setMessage("caf\u00e9 \u20ac \ud83d\ude00");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        final byte[] expected = instance.format(record).getBytes(Charset.forName("UTF-8"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        buffer.put((byte) 'x');
+        assertEquals(expected.length, instance.formatTo(record, buffer));
+        assertEquals(expected.length + 1, buffer.position());
+        buffer.flip();
+        buffer.get();
+        final byte[] actual = new byte[expected.length];
+        buffer.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testFormatToByteBufferTooSmall() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        try {
+            instance.formatTo(record, buffer);
+            fail("Expected a BufferOverflowException");
+        } catch (BufferOverflowException ex) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testFormatToOutputStream() throws IOException {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "foo:bar,baz:foobar");
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int length = instance.formatTo(record, out);
+        assertEquals(length, out.size());
+        assertEquals(fullLogMessage, new String(out.toByteArray(), Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Stream counting the writes, to check a batch is written at once.
+     */
+    private static final class CountingOutputStream extends ByteArrayOutputStream {
+
+        private int writes;
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private static List<ExtLogRecord> records(final int count) {
+        List<ExtLogRecord> records = new ArrayList<ExtLogRecord>();
+        for (int i = 0; i < count; i++) {
+            ExtLogRecord record = new ExtLogRecord(i % 2 == 0 ? Level.INFO : Level.WARNING, "message {0}",
+                    LogstashUtilFormatterTest.class.getName());
+            record.setParameters(new Object[] {i});
+            record.setLoggerName("test");
+            records.add(record);
+        }
+        return records;
+    }
+
+    @Test
+    public void testFormatBatch() throws IOException {
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        for (int count : new int[] {0, 1, 100, 3000}) {
+            List<ExtLogRecord> records = records(count);
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (ExtLogRecord record : records) {
+                instance.formatTo(record, expected);
+            }
+            CountingOutputStream out = new CountingOutputStream();
+            assertEquals(expected.size(), instance.formatBatch(records, out));
+            assertEquals(count == 0 ? 0 : 1, out.writes);
+            assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testFormatBatchAsCbor() throws IOException {
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        instance.setEncoding("cbor");
+        List<ExtLogRecord> records = records(1000);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (ExtLogRecord record : records) {
+            instance.formatTo(record, expected);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        instance.formatBatch(records, out);
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
+    @Test
+    public void testFormatBatchFailureWritesNothing() throws IOException {
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        List<ExtLogRecord> records = records(1000);
+        records.set(700, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            instance.formatBatch(records, out);
+            fail("Expected a NullPointerException");
+        } catch (NullPointerException ex) {
+            assertEquals(0, out.size());
+        }
+        assertEquals(0, instance.formatBatch(Arrays.<ExtLogRecord>asList(), out));
+    }
+
+    @Test
+    public void testParams() {
+        final int[] rendered = new int[1];
+        Object object = new Object() {
+            @Override
+            public String toString() {
+                rendered[0]++;
+                return "object";
+            }
+        };
+        ExtLogRecord record = new ExtLogRecord(Level.FINE, "{0} {1} {2} {3} {4} {5} {6} {7}",
+                LogstashUtilFormatterTest.class.getName());
+        record.setParameters(new Object[] {42, 1.5f, Double.NaN, new BigInteger("123456789012345678901234567890"),
+                true, "quoted \"text\"", null, object});
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        instance.setLayout("message_template,params");
+
+        JsonObject event = Json.createReader(new StringReader(instance.format(record))).readObject();
+        assertEquals("{0} {1} {2} {3} {4} {5} {6} {7}", event.getString("message_template"));
+        assertFalse(event.containsKey("message"));
+        assertEquals(1, rendered[0]);
+        JsonArray params = event.getJsonArray("params");
+        assertEquals(42, params.getInt(0));
+        assertEquals(1.5, params.getJsonNumber(1).doubleValue(), 0.0);
+        assertEquals("NaN", params.getString(2));
+        assertEquals(new BigInteger("123456789012345678901234567890"), params.getJsonNumber(3).bigIntegerValue());
+        assertTrue(params.getBoolean(4));
+        assertEquals("quoted \"text\"", params.getString(5));
+        assertTrue(params.isNull(6));
+        assertEquals("object", params.getString(7));
+
+        // the same through the object tree
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "message_template:custom");
+        LogstashUtilFormatter shadowing = new LogstashUtilFormatter();
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        shadowing.setLayout("message,message_template,params,custom_fields");
+        JsonObject shadowed = Json.createReader(new StringReader(shadowing.format(record))).readObject();
+        assertEquals(params, shadowed.getJsonArray("params"));
+        assertEquals("custom", shadowed.getString("message_template"));
+        assertEquals(3, rendered[0]);
+
+        record.setParameters(null);
+        assertFalse(Json.createReader(new StringReader(instance.format(record))).readObject().containsKey("params"));
+    }
+
+    @Test
+    public void testFloatParamsAreNotWidened() {
+        ExtLogRecord record = new ExtLogRecord(Level.FINE, "{0} {1}", LogstashUtilFormatterTest.class.getName());
+        record.setParameters(new Object[] {0.1f, Float.POSITIVE_INFINITY});
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        instance.setLayout("params");
+        String json = instance.format(record);
+        assertTrue(json, json.contains("\"params\":[0.1,\"Infinity\"]"));
+    }
+
+    @Test
+    public void testObjectTreeWritesEveryField() {
+        final String layout = "default,message_template,params,stack_hash,pid,container_id,jvm_start_time";
+        record.setMessage("{0} {1}");
+        record.setParameters(new Object[] {42, "text"});
+        RepeatedLogRecord repeated = new RepeatedLogRecord(record, 3, 1000L, 2000L);
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "a:x,a:y");
+        LogstashUtilFormatter tree = new LogstashUtilFormatter();
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "a:y");
+        LogstashUtilFormatter streaming = new LogstashUtilFormatter();
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        tree.setLayout(layout);
+        streaming.setLayout(layout);
+        assertEquals(streaming.format(repeated), tree.format(repeated));
+    }
+
+    @Test
+    public void testParamsAreBounded() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("0123456789");
+        }
+        final String value = text.toString();
+        ExtLogRecord record = new ExtLogRecord(Level.FINE, "{0} {1}", LogstashUtilFormatterTest.class.getName());
+        record.setParameters(new Object[] {value, new StringBuilder(value)});
+        LogstashUtilFormatter instance = new LogstashUtilFormatter();
+        instance.setLayout("params");
+        JsonArray params = Json.createReader(new StringReader(instance.format(record))).readObject()
+                .getJsonArray("params");
+        assertEquals(value, params.getString(0));
+        assertEquals(value.substring(0, 256), params.getString(1));
+    }
 }
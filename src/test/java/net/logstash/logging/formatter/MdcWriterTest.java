@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.jboss.logmanager.MDC;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class MdcWriterTest {
+
+    @After
+    public void tearDown() {
+        MDC.clear();
+    }
+
+    private static ExtLogRecord record(final String... entries) {
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, "message", MdcWriterTest.class.getName());
+        Map<String, String> mdc = new LinkedHashMap<String, String>();
+        for (int i = 0; i < entries.length; i += 2) {
+            mdc.put(entries[i], entries[i + 1]);
+        }
+        record.setMdc(mdc);
+        return record;
+    }
+
+    private static String write(final MdcWriter mdcWriter, final ExtLogRecord record) {
+        JsonEventWriter writer = new JsonEventWriter();
+        writer.beginObject().field("a", "b");
+        mdcWriter.write(record, writer, new EventWriter.Key("@mdc"));
+        return writer.endObject().toString();
+    }
+
+    private static int count(final MdcWriter mdcWriter, final ExtLogRecord record) {
+        return mdcWriter.write(record, new TreeEventWriter().beginObject(), new EventWriter.Key("@mdc"));
+    }
+
+    @Test
+    public void testReadsMdcWithoutCopy() {
+        ExtLogRecord record = record("key", "value");
+        assertSame(MdcWriter.mdcOf(record), MdcWriter.mdcOf(record));
+        assertEquals(record.getMdcCopy(), MdcWriter.mdcOf(record));
+    }
+
+    @Test
+    public void testSnapshotsThreadMdc() {
+        MDC.put("thread", "value");
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, "message", MdcWriterTest.class.getName());
+        assertEquals("{\"a\":\"b\",\"@mdc\":{\"thread\":\"value\"}}", write(new MdcWriter(null, null), record));
+    }
+
+    @Test
+    public void testWritesAllEntries() {
+        MdcWriter mdcWriter = new MdcWriter(null, null);
+        assertEquals("{\"a\":\"b\",\"@mdc\":{\"k\\\"ey\":\"va\\nlue\"}}", write(mdcWriter, record("k\"ey", "va\nlue")));
+        assertEquals(1, mdcWriter.cachedKeys());
+        assertEquals("{\"a\":\"b\"}", write(mdcWriter, record()));
+    }
+
+    @Test
+    public void testInclude() {
+        MdcWriter mdcWriter = new MdcWriter("c, a", null);
+        ExtLogRecord record = record("a", "1", "b", "2", "c", "3");
+        assertEquals("{\"a\":\"b\",\"@mdc\":{\"c\":\"3\",\"a\":\"1\"}}", write(mdcWriter, record));
+        assertEquals("{\"a\":\"b\"}", write(mdcWriter, record("b", "2")));
+        assertEquals(2, count(mdcWriter, record));
+    }
+
+    @Test
+    public void testExclude() {
+        MdcWriter mdcWriter = new MdcWriter("", "b,c");
+        ExtLogRecord record = record("a", "1", "b", "2");
+        assertEquals("{\"a\":\"b\",\"@mdc\":{\"a\":\"1\"}}", write(mdcWriter, record));
+        assertEquals("{\"a\":\"b\"}", write(mdcWriter, record("c", "3")));
+        assertEquals(1, count(mdcWriter, record));
+        assertEquals(0, count(new MdcWriter("b", "b"), record));
+    }
+
+    @Test
+    public void testKeyCacheIsBounded() {
+        MdcWriter mdcWriter = new MdcWriter(null, null);
+        for (int i = 0; i < 2000; i++) {
+            write(mdcWriter, record("key" + i, "value"));
+        }
+        assertTrue(mdcWriter.cachedKeys() <= 512);
+    }
+}
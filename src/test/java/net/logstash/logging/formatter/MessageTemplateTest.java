@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class MessageTemplateTest {
+
+    private static final String[] PATTERNS = {
+        "{0}", "{0} %s", "%s", "%s {1}", "{0'}' %s", "%0.5s", "%d", "%s and %s", "%s%n%%", "100%",
+        "Can't connect to {0}", "'{0}' is quoted", "''{0}''", "{1} before {0}", "{5}", "{0,number,#.##}",
+        "{0,date}", "{ 0}", "{0", "{a} %s", "{}", "x{", "{0}}", "'", "{0}'", "{00}", "{99999} %s", "{99999999999} %s",
+        "{0,choice,0#none|1#one|1<many}", "no placeholders", "%S", "%1$s", "{0} %"
+    };
+
+    private static final Object[][] PARAMETERS = {
+        {"hi"},
+        {"hi", "there"},
+        {null},
+        {1234567, 3.5},
+        {new Date(0L), Boolean.TRUE},
+        {new Object[0]},
+    };
+
+    /**
+     * The original implementation of the message formatting.
+     */
+    private static String reference(final String pattern, final Object[] parameters) {
+        final LogRecord record = new LogRecord(Level.INFO, pattern);
+        record.setParameters(parameters);
+        String message = new SimpleFormatter().formatMessage(record);
+        try {
+            if (message == record.getMessage() && parameters != null && parameters.length > 0) {
+                message = String.format(message, parameters);
+            }
+        } catch (Exception ex) {
+        }
+        return message;
+    }
+
+    @Test
+    public void testFormatLikeReference() {
+        for (final String pattern : PATTERNS) {
+            final MessageTemplate template = MessageTemplate.compile(pattern);
+            for (final Object[] parameters : PARAMETERS) {
+                assertEquals(pattern, reference(pattern, parameters), template.format(parameters));
+            }
+        }
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        final MessageTemplate.Cache cache = new MessageTemplate.Cache(4);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("x" + i, cache.get("{0}" + i).format(new Object[] {"x"}));
+            assertTrue(cache.size() <= 4);
+        }
+    }
+
+    @Test
+    public void testCacheReusesTemplate() {
+        final MessageTemplate.Cache cache = new MessageTemplate.Cache(4);
+        assertSame(cache.get("{0}"), cache.get("{0}"));
+    }
+}
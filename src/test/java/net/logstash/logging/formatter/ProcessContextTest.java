@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ */
+public class ProcessContextTest {
+
+    private static final String ID = "3f4c2e1d0b9a8f7e6d5c4b3a29181716f5e4d3c2b1a09f8e7d6c5b4a39281706";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file(final String name, final String content) throws Exception {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.toPath();
+    }
+
+    @Test
+    public void testHostNameOverrides() throws Exception {
+        Path kernel = file("hostname", "kernel-host\n");
+        Map<String, String> env = new HashMap<String, String>();
+        assertEquals("kernel-host", ProcessContext.hostName(null, env, kernel));
+        env.put("COMPUTERNAME", "windows-host");
+        assertEquals("windows-host", ProcessContext.hostName(null, env, kernel));
+        env.put("HOSTNAME", "env-host");
+        assertEquals("env-host", ProcessContext.hostName(" ", env, kernel));
+        assertEquals("property-host", ProcessContext.hostName("property-host", env, kernel));
+    }
+
+    @Test
+    public void testHostNameLeftToTheNetwork() throws Exception {
+        Map<String, String> env = Collections.emptyMap();
+        assertNull(ProcessContext.hostName(null, env, folder.getRoot().toPath().resolve("missing")));
+        assertNull(ProcessContext.hostName(null, env, file("hostname", "")));
+    }
+
+    @Test
+    public void testPid() {
+        assertEquals(1234L, ProcessContext.pid("1234@host"));
+        assertEquals(-1L, ProcessContext.pid("host"));
+        assertEquals(-1L, ProcessContext.pid(folder.getRoot().toPath()));
+    }
+
+    @Test
+    public void testContainerIdFromCgroup() throws Exception {
+        Path cgroup = file("cgroup", "12:memory:/\n11:cpu:/docker/" + ID + "\n");
+        assertEquals(ID, ProcessContext.containerId(cgroup, file("mountinfo", "")));
+        cgroup = file("cgroup2", "0::/kubepods/burstable/pod1234/cri-containerd-" + ID + ".scope\n");
+        assertEquals(ID, ProcessContext.containerId(cgroup, file("mountinfo2", "")));
+    }
+
+    @Test
+    public void testContainerIdFromMounts() throws Exception {
+        Path cgroup = file("cgroup", "0::/\n");
+        Path mountinfo = file("mountinfo", "1 2 8:1 / / rw - ext4 /dev/sda1 rw\n"
+                + "3 4 8:1 /var/lib/docker/containers/" + ID + "/hostname /etc/hostname rw - ext4 /dev/sda1 rw\n");
+        assertEquals(ID, ProcessContext.containerId(cgroup, mountinfo));
+        assertNull(ProcessContext.containerId(cgroup, file("other", "1 2 8:1 / / rw - ext4 /dev/sda1 rw\n")));
+        assertNull(ProcessContext.containerId(folder.getRoot().toPath().resolve("missing"), cgroup));
+    }
+
+    @Test
+    public void testLayoutFollowsTheContext() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+        formatter.setLayout("HOSTNAME,pid,container_id,jvm_start_time");
+        ExtLogRecord record = new ExtLogRecord(Level.INFO, "message", ProcessContextTest.class.getName());
+        ProcessContext previous = ProcessContext.current();
+        try {
+            ProcessContext.publish(new ProcessContext("resolved-host", true, 42L, ID, 1000L));
+            JsonObject event = Json.createReader(new StringReader(formatter.format(record))).readObject();
+            assertEquals("resolved-host", event.getString("HOSTNAME"));
+            assertEquals(42, event.getInt("pid"));
+            assertEquals(ID, event.getString("container_id"));
+            assertEquals("1970-01-01T00:00:01.000Z", event.getString("jvm_start_time"));
+
+            ProcessContext.publish(new ProcessContext(ProcessContext.UNKNOWN_HOST, false, -1L, null, 0L));
+            event = Json.createReader(new StringReader(formatter.format(record))).readObject();
+            assertEquals(ProcessContext.UNKNOWN_HOST, event.getString("HOSTNAME"));
+            assertEquals(1, event.size());
+        } finally {
+            ProcessContext.publish(previous);
+        }
+    }
+}
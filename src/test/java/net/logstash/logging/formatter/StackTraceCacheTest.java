@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.StringReader;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class StackTraceCacheTest {
+
+    private final StackTraceRenderer renderer = new StackTraceRenderer("org.jboss.", false, 0, 0);
+    private FormatterMetrics metrics;
+    private StackTraceCache cache;
+
+    @Before
+    public void setUp() {
+    	metrics = new FormatterMetrics();
+        cache = new StackTraceCache(renderer, 4, metrics);
+    }
+
+    private static Exception exception(final String message, final Throwable cause, final String method,
+            final int line) {
+        Exception ex = cause == null ? new IllegalStateException(message) : new IllegalStateException(message, cause);
+        ex.setStackTrace(new StackTraceElement[] {
+            new StackTraceElement("com.example.Dao", method, "Dao.java", line),
+            new StackTraceElement("org.jboss.Proxy$1", "invoke", null, -1),
+            new StackTraceElement("com.example.Servlet", "service", "Servlet.java", 10),
+        });
+        return ex;
+    }
+
+    @Test
+    public void testRepeatIsCached() {
+        StackTraceCache.Entry first = cache.get(exception("failed", null, "find", 1));
+        StackTraceCache.Entry second = cache.get(exception("failed", null, "find", 1));
+        assertSame(first, second);
+        assertEquals(1, metrics.getStackTraceCacheMisses());
+        assertEquals(1, metrics.getStackTraceCacheHits());
+        String text = renderer.render(exception("failed", null, "find", 1));
+        assertArrayEquals(JsonEventWriter.escapeValue(text), second.value);
+        assertEquals(text.length(), second.length);
+    }
+
+    @Test
+    public void testMessagesAndLinesAreRenderedButKeepTheHash() {
+        StackTraceCache.Entry entry = cache.get(exception("failed", null, "find", 1));
+        StackTraceCache.Entry message = cache.get(exception("failed again", null, "find", 1));
+        StackTraceCache.Entry line = cache.get(exception("failed", null, "find", 2));
+        assertEquals(3, metrics.getStackTraceCacheMisses());
+        assertEquals(16, entry.stackHash.length());
+        assertEquals(entry.stackHash, message.stackHash);
+        assertEquals(entry.stackHash, line.stackHash);
+        assertTrue(new String(message.value).contains("failed again"));
+        assertTrue(new String(line.value).contains("Dao.java:2"));
+    }
+
+    @Test
+    public void testHashOfMethodsAndCauses() {
+        String hash = cache.hash(exception("failed", null, "find", 1));
+        assertFalse(hash.equals(cache.hash(exception("failed", null, "save", 1))));
+        Exception cause = exception("cause", null, "find", 1);
+        String caused = cache.hash(exception("failed", cause, "find", 1));
+        assertFalse(hash.equals(caused));
+        assertEquals(caused, cache.get(exception("failed", cause, "find", 1)).stackHash);
+        // the same in another cache, without the suppressed exceptions
+        Exception suppressed = exception("failed", cause, "find", 1);
+        suppressed.addSuppressed(new Exception("close"));
+        assertEquals(caused, new StackTraceCache(renderer, 0, null).hash(suppressed));
+        assertFalse(cache.get(suppressed).equals(cache.get(exception("failed", cause, "find", 1))));
+    }
+
+    @Test
+    public void testExcludedFramesAreNotHashed() {
+        Exception ex = exception("failed", null, "find", 1);
+        StackTraceElement[] trace = ex.getStackTrace();
+        trace[1] = new StackTraceElement("org.jboss.Proxy$2", "invoke", null, -1);
+        Exception other = exception("failed", null, "find", 1);
+        other.setStackTrace(trace);
+        assertEquals(cache.hash(ex), cache.hash(other));
+        assertFalse(cache.hash(ex).equals(new StackTraceCache(new StackTraceRenderer(null, false, 0, 0), 4, null)
+                .hash(ex)));
+    }
+
+    @Test
+    public void testEviction() {
+        for (int line = 1; line <= 10; line++) {
+            cache.get(exception("failed", null, "find", line));
+        }
+        assertEquals(4, cache.size());
+        assertEquals(6, metrics.getStackTraceCacheEvictions());
+        assertEquals(10, metrics.getStackTraceCacheMisses());
+    }
+
+    @Test
+    public void testCircularReference() {
+        Exception first = exception("first", null, "find", 1);
+        Exception second = exception("second", first, "find", 2);
+        first.initCause(second);
+        StackTraceCache.Entry entry = cache.get(first);
+        assertTrue(new String(entry.value).contains("CIRCULAR REFERENCE"));
+        assertSame(entry, cache.get(first));
+    }
+
+    @Test
+    public void testDisabled() {
+        cache = new StackTraceCache(renderer, 0, metrics);
+        Exception ex = exception("failed", null, "find", 1);
+        assertArrayEquals(JsonEventWriter.escapeValue(renderer.render(ex)), cache.get(ex).value);
+        assertEquals(0, cache.size());
+        assertEquals(0, metrics.getStackTraceCacheMisses());
+    }
+
+    @Test
+    public void testStackHashField() {
+    	System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.tags", "foo,bar");
+        System.setProperty("net.logstash.logging.formatter.LogstashUtilFormatter.fields", "");
+        LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+        ExtLogRecord record = new ExtLogRecord(Level.SEVERE, "failed", StackTraceCacheTest.class.getName());
+        record.setThrown(exception("failed", null, "find", 1));
+        String stackTrace = Json.createReader(new StringReader(formatter.format(record))).readObject()
+                .getString("stack_trace");
+
+        formatter.setLayout("message,stack_hash,stack_trace:trace");
+        JsonObject event = Json.createReader(new StringReader(formatter.format(record))).readObject();
+        assertEquals(new StackTraceCache(new StackTraceRenderer(null, false, 0, 0), 0, null).hash(record.getThrown()),
+                event.getString("stack_hash"));
+        assertEquals(stackTrace, event.getString("trace"));
+        formatter.setLayout("stack_trace,stack_hash");
+        assertEquals(event.getString("stack_hash"), Json.createReader(new StringReader(formatter.format(record)))
+                .readObject().getString("stack_hash"));
+
+        record.setThrown(null);
+        assertFalse(Json.createReader(new StringReader(formatter.format(record))).readObject()
+                .containsKey("stack_hash"));
+    }
+}
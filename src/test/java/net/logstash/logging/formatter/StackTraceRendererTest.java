@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class StackTraceRendererTest {
+
+    private static final String NL = System.lineSeparator();
+
+    private static StackTraceElement frame(final String className, final int line) {
+        return new StackTraceElement(className, "method", "File.java", line);
+    }
+
+    private static Exception exception(final String message, final Throwable cause,
+            final StackTraceElement... trace) {
+        Exception ex = new Exception(message, cause);
+        ex.setStackTrace(trace);
+        return ex;
+    }
+
+    private static String printStackTrace(final Throwable thrown) {
+        StringWriter sw = new StringWriter();
+        thrown.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    /**
+     * A wrapped exception thrown through a container, sharing the outer frames.
+     */
+    private static Exception wrapped() {
+        StackTraceElement servlet = frame("com.example.Servlet", 10);
+        StackTraceElement filter = frame("org.jboss.Filter", 20);
+        StackTraceElement handler = frame("org.jboss.Handler", 30);
+        StackTraceElement thread = frame("java.lang.Thread", 40);
+        Exception root = exception("root", null, frame("com.example.Dao", 1), frame("org.jboss.Jdbc", 2),
+                frame("org.jboss.Jdbc", 3), servlet, filter, handler, thread);
+        return exception("outer", root, frame("com.example.Service", 5), servlet, filter, handler, thread);
+    }
+
+    @Test
+    public void testDefaultIsPrintStackTrace() {
+        Exception cause = new IllegalStateException("cause");
+        Exception ex = new RuntimeException("failed", cause);
+        ex.addSuppressed(new IllegalArgumentException("suppressed", new Exception("suppressed cause")));
+        ex.addSuppressed(new Exception());
+        StackTraceRenderer renderer = new StackTraceRenderer(null, false, 0, 0);
+        assertEquals(printStackTrace(ex), renderer.render(ex));
+        assertEquals(printStackTrace(wrapped()), renderer.render(wrapped()));
+    }
+
+    @Test
+    public void testExcludedFramesAreFiltered() {
+        StackTraceRenderer renderer = new StackTraceRenderer("org.jboss., sun.reflect.", false, 0, 0);
+        assertEquals("java.lang.Exception: outer" + NL
+                + "\tat com.example.Service.method(File.java:5)" + NL
+                + "\tat com.example.Servlet.method(File.java:10)" + NL
+                + "\t... 2 filtered" + NL
+                + "\tat java.lang.Thread.method(File.java:40)" + NL
+                + "Caused by: java.lang.Exception: root" + NL
+                + "\tat com.example.Dao.method(File.java:1)" + NL
+                + "\t... 2 filtered" + NL
+                + "\t... 4 more" + NL, renderer.render(wrapped()));
+    }
+
+    @Test
+    public void testFirstFrameIsNeverFiltered() {
+        StackTraceRenderer renderer = new StackTraceRenderer("org.jboss.", false, 0, 0);
+        Exception ex = exception("message", null, frame("org.jboss.Thrower", 1), frame("org.jboss.Caller", 2));
+        assertEquals("java.lang.Exception: message" + NL
+                + "\tat org.jboss.Thrower.method(File.java:1)" + NL
+                + "\t... 1 filtered" + NL, renderer.render(ex));
+    }
+
+    @Test
+    public void testRootCauseFirst() {
+        StackTraceRenderer renderer = new StackTraceRenderer(null, true, 0, 0);
+        assertEquals("java.lang.Exception: root" + NL
+                + "\tat com.example.Dao.method(File.java:1)" + NL
+                + "\tat org.jboss.Jdbc.method(File.java:2)" + NL
+                + "\tat org.jboss.Jdbc.method(File.java:3)" + NL
+                + "\tat com.example.Servlet.method(File.java:10)" + NL
+                + "\tat org.jboss.Filter.method(File.java:20)" + NL
+                + "\tat org.jboss.Handler.method(File.java:30)" + NL
+                + "\tat java.lang.Thread.method(File.java:40)" + NL
+                + "Wrapped by: java.lang.Exception: outer" + NL
+                + "\tat com.example.Service.method(File.java:5)" + NL
+                + "\t... 4 more" + NL, renderer.render(wrapped()));
+    }
+
+    @Test
+    public void testMaxDepth() {
+        StackTraceRenderer renderer = new StackTraceRenderer(null, false, 2, 0);
+        assertEquals("java.lang.Exception: outer" + NL
+                + "\tat com.example.Service.method(File.java:5)" + NL
+                + "\tat com.example.Servlet.method(File.java:10)" + NL
+                + "\t... 3 truncated" + NL
+                + "Caused by: java.lang.Exception: root" + NL
+                + "\tat com.example.Dao.method(File.java:1)" + NL
+                + "\tat org.jboss.Jdbc.method(File.java:2)" + NL
+                + "\t... 1 truncated" + NL
+                + "\t... 4 more" + NL, renderer.render(wrapped()));
+    }
+
+    @Test
+    public void testMaxLength() {
+        String full = new StackTraceRenderer(null, false, 0, 0).render(wrapped());
+        for (int maxLength = 20; maxLength < full.length(); maxLength += 7) {
+            String text = new StackTraceRenderer(null, false, 0, maxLength).render(wrapped());
+            assertTrue(text.length() <= maxLength);
+            assertTrue(text.endsWith("... truncated" + NL));
+            // whole lines of the full trace
+            assertTrue(full.startsWith(text.substring(0, text.length() - ("... truncated" + NL).length())));
+        }
+        assertEquals(full, new StackTraceRenderer(null, false, 0, full.length()).render(wrapped()));
+    }
+
+    @Test
+    public void testCircularReference() {
+        Exception first = new Exception("first");
+        Exception second = new Exception("second", first);
+        first.initCause(second);
+        // a suppressed exception closing the cycle is printed with its prefix and caption
+        Exception suppressed = new IllegalStateException("suppressed");
+        second.addSuppressed(suppressed);
+        suppressed.initCause(second);
+        String text = new StackTraceRenderer(null, false, 0, 0).render(first);
+        assertEquals(printStackTrace(first), text);
+        assertTrue(text.contains("[CIRCULAR REFERENCE:"));
+        text = new StackTraceRenderer(null, true, 0, 0).render(first);
+        assertTrue(text.startsWith("java.lang.Exception: second"));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.formatter;
+
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TimestampFormatterTest {
+
+    private static final String[] ZONES = {
+        "UTC", "Europe/Brussels", "America/St_Johns", "Asia/Kolkata", "Pacific/Chatham", "America/Los_Angeles"
+    };
+
+    private static void assertSameAsSimpleDateFormat(final String zone, final long millis) {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat(LogstashUtilFormatter.DATE_FORMAT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone(zone));
+        final TimestampFormatter instance = new TimestampFormatter(ZoneId.of(zone));
+        assertEquals(dateFormat.format(new Date(millis)), instance.format(millis));
+    }
+
+    @Test
+    public void testFormatLikeSimpleDateFormat() {
+        final Random random = new Random(42);
+        for (final String zone : ZONES) {
+            for (int i = 0; i < 2000; i++) {
+                // 1970 up to 2100
+                final long millis = (long) (random.nextDouble() * 4102444800000L);
+                assertSameAsSimpleDateFormat(zone, millis);
+            }
+        }
+    }
+
+    @Test
+    public void testFormatAroundDaylightSavingTransition() {
+        // 2017-03-26T01:00:00Z, clocks in Brussels jump from 02:00 to 03:00
+        final long transition = 1490490000000L;
+        for (long millis = transition - 2000; millis < transition + 2000; millis += 7) {
+            assertSameAsSimpleDateFormat("Europe/Brussels", millis);
+        }
+    }
+
+    @Test
+    public void testFormatBeforeEpoch() {
+        assertSameAsSimpleDateFormat("UTC", -1L);
+        assertSameAsSimpleDateFormat("Europe/Brussels", -86399999L);
+    }
+
+    @Test
+    public void testFormatReusesSecond() {
+        final TimestampFormatter instance = new TimestampFormatter(ZoneId.of("UTC"));
+        assertEquals("2017-01-01T00:00:00.001+0000", instance.format(1483228800001L));
+        assertEquals("2017-01-01T00:00:00.999+0000", instance.format(1483228800999L));
+        assertEquals("2017-01-01T00:00:01.000+0000", instance.format(1483228801000L));
+        assertEquals("2017-01-01T00:00:00.500+0000", instance.format(1483228800500L));
+    }
+
+    @Test
+    public void testFormatUtc() {
+        assertEquals("2017-01-01T00:00:00.042Z", TimestampFormatter.utc().format(1483228800042L));
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static net.logstash.logging.handler.HandlerFixture.record;
+import static org.junit.Assert.*;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ */
+public class AsyncLogstashFileHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public HandlerFixture fixture = new HandlerFixture();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "logs/logstash.log");
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void testPublishFromManyThreads() throws Exception {
+        final AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setQueueLength(16);
+        handler.setBatchSize(4096);
+        handler.setFile(file);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        handler.publish(record(Level.INFO, "message " + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        final List<String> lines = lines();
+        assertEquals(2000, lines.size());
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("{\"@timestamp\":") && line.endsWith("]}"));
+        }
+        assertEquals(0, handler.getDroppedCount());
+    }
+
+    @Test
+    public void testMessageIsFormattedOnce() throws Exception {
+        final AtomicInteger rendered = new AtomicInteger();
+        Object param = new Object() {
+            @Override
+            public String toString() {
+                return "param " + rendered.incrementAndGet();
+            }
+        };
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setFile(file);
+        ExtLogRecord record = record(Level.INFO, "message {0}");
+        record.setParameters(new Object[] {param});
+        handler.publish(record);
+        handler.close();
+
+        assertEquals(1, rendered.get());
+        assertTrue(lines().get(0).contains("\"message\":\"message param 1\""));
+    }
+
+    @Test
+    public void testParametersAreCapturedWhenLogged() throws Exception {
+        StringBuilder param = new StringBuilder("before");
+        Date date = new Date(0L);
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setFile(file);
+        ExtLogRecord record = record(Level.INFO, "message {0} {1} {2}");
+        record.setParameters(new Object[] {param, 42, date});
+        handler.publish(record);
+        param.setLength(0);
+        param.append("after");
+        date.setTime(1000L);
+        handler.close();
+
+        assertEquals("before", record.getParameters()[0]);
+        assertEquals(42, record.getParameters()[1]);
+        assertEquals(new Date(0L), record.getParameters()[2]);
+        assertTrue(lines().get(0).contains("\"message\":\"message before 42 "));
+    }
+
+    @Test
+    public void testBacklogIsFormattedInOrder() throws Exception {
+        final CountDownLatch consuming = new CountDownLatch(1);
+        final CountDownLatch backlog = new CountDownLatch(1);
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter() {
+            @Override
+            public int formatTo(final ExtLogRecord record, final ByteBuffer buffer) {
+                if ("message 0".equals(record.getMessage())) {
+                    // hold the consumer until the queue is full of records
+                    consuming.countDown();
+                    try {
+                        backlog.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.formatTo(record, buffer);
+            }
+        });
+        handler.setQueueLength(4096);
+        handler.setFile(file);
+        handler.publish(record(Level.INFO, "message 0"));
+        consuming.await();
+        for (int i = 1; i < 4000; i++) {
+            handler.publish(record(Level.INFO, "message " + i));
+        }
+        backlog.countDown();
+        handler.close();
+
+        final List<String> lines = lines();
+        assertEquals(4000, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertTrue(lines.get(i), lines.get(i).contains("\"message\":\"message " + i + "\""));
+        }
+    }
+
+    @Test
+    public void testFlushWritesPublishedRecords() throws Exception {
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setFlushInterval(60000);
+        handler.setFile(file);
+        handler.publish(record(Level.INFO, "first"));
+        handler.publish(record(Level.INFO, "second"));
+        handler.flush();
+        assertEquals(2, lines().size());
+        handler.close();
+    }
+
+    @Test
+    public void testEventLargerThanBatch() throws Exception {
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setBatchSize(1024);
+        handler.setFile(file);
+        final StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            message.append("long message ");
+        }
+        handler.publish(record(Level.INFO, "short"));
+        handler.publish(record(Level.INFO, message.toString()));
+        handler.publish(record(Level.INFO, "short"));
+        handler.close();
+
+        final List<String> lines = lines();
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).contains(message.toString()));
+    }
+
+    @Test
+    public void testDropPolicies() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setFormatter(new Formatter() {
+            @Override
+            public String format(final LogRecord record) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return record.getMessage() + "\n";
+            }
+        });
+        handler.setQueueLength(2);
+        handler.setOverflowPolicy(AsyncLogstashFileHandler.OverflowPolicy.DROP_BY_LEVEL);
+        handler.setFile(file);
+
+        // the consumer holds the first record, the next two fill the queue
+        handler.publish(record(Level.INFO, "held"));
+        blocked.await();
+        handler.publish(record(Level.INFO, "queued1"));
+        handler.publish(record(Level.INFO, "queued2"));
+        handler.publish(record(Level.INFO, "dropped by level"));
+        assertEquals(1, handler.getDroppedCount());
+
+        handler.setOverflowPolicy(AsyncLogstashFileHandler.OverflowPolicy.DROP_NEWEST);
+        handler.publish(record(Level.SEVERE, "dropped"));
+        assertEquals(2, handler.getDroppedCount());
+
+        release.countDown();
+        handler.close();
+        assertEquals(3, lines().size());
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockedPublishReturnsOnceTheConsumerDied() throws Exception {
+        final List<String> errors = new ArrayList<String>();
+        AsyncLogstashFileHandler handler = new AsyncLogstashFileHandler();
+        handler.setErrorManager(new ErrorManager() {
+            @Override
+            public synchronized void error(final String msg, final Exception ex, final int code) {
+                errors.add(msg);
+            }
+        });
+        handler.setFormatter(new Formatter() {
+            @Override
+            public String format(final LogRecord record) {
+                throw new StackOverflowError();
+            }
+        });
+        handler.setQueueLength(2);
+        handler.setFile(file);
+        for (int i = 0; i < 10; i++) {
+            handler.publish(record(Level.INFO, "message " + i));
+        }
+        assertTrue(handler.getDroppedCount() > 0);
+        handler.close();
+        assertTrue(errors.toString(), errors.get(0).startsWith("Consumer thread stopped"));
+    }
+}
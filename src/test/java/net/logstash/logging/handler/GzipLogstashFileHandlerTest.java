@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static net.logstash.logging.handler.HandlerFixture.record;
+import static org.junit.Assert.*;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ */
+public class GzipLogstashFileHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public HandlerFixture fixture = new HandlerFixture();
+
+    private File file;
+    private LogstashUtilFormatter formatter;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "logs/logstash.log.gz");
+        formatter = new LogstashUtilFormatter();
+    }
+
+    private GzipLogstashFileHandler handler() throws IOException {
+        GzipLogstashFileHandler handler = new GzipLogstashFileHandler();
+        handler.setFormatter(formatter);
+        handler.setSyncFlushInterval(0);
+        handler.setFile(file);
+        return handler;
+    }
+
+    /**
+     * Read the complete lines decompressed so far, the file may still be written.
+     */
+    private List<String> lines() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            GZIPInputStream gzip = new GZIPInputStream(in);
+            byte[] buffer = new byte[512];
+            int n;
+            while ((n = gzip.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (EOFException ex) {
+            // the member is not finished yet
+        } finally {
+            in.close();
+        }
+        List<String> lines = new ArrayList<String>();
+        String text = new String(out.toByteArray(), Charset.forName("UTF-8"));
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testPublish() throws Exception {
+        GzipLogstashFileHandler handler = handler();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            ExtLogRecord record = record("message " + i);
+            handler.publish(record);
+            expected.add(formatter.format(record).trim());
+        }
+        handler.close();
+        assertEquals(expected, lines());
+    }
+
+    @Test
+    public void testEventsAreCompressed() throws Exception {
+        GzipLogstashFileHandler handler = handler();
+        long size = 0;
+        for (int i = 0; i < 1000; i++) {
+            ExtLogRecord record = record("message " + i);
+            handler.publish(record);
+            size += formatter.format(record).getBytes(Charset.forName("UTF-8")).length;
+        }
+        handler.close();
+        assertTrue(file.length() * 5 < size);
+    }
+
+    @Test
+    public void testFlushedEventsCanBeRead() throws Exception {
+        GzipLogstashFileHandler handler = handler();
+        handler.publish(record("first"));
+        handler.publish(record("second"));
+        handler.flush();
+        List<String> lines = lines();
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).contains("\"second\""));
+        handler.close();
+    }
+
+    @Test
+    public void testSyncFlushInterval() throws Exception {
+        GzipLogstashFileHandler handler = handler();
+        handler.setSyncFlushInterval(10);
+        handler.publish(record("message"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lines().isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        handler.close();
+        assertEquals(1, lines().size());
+    }
+
+    @Test
+    public void testAppendAddsMember() throws Exception {
+        GzipLogstashFileHandler handler = handler();
+        handler.publish(record("first"));
+        handler.close();
+        handler = handler();
+        handler.publish(record("second"));
+        handler.close();
+
+        List<String> lines = lines();
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\"first\""));
+        assertTrue(lines.get(1).contains("\"second\""));
+    }
+
+    @Test
+    public void testChangingFileFinishesMember() throws Exception {
+        GzipLogstashFileHandler handler = handler();
+        handler.publish(record("first"));
+        File previous = file;
+        file = new File(folder.getRoot(), "logs/logstash.log.1.gz");
+        handler.setFile(file);
+        handler.publish(record("second"));
+
+        // a complete stream, reading it fails otherwise
+        GZIPInputStream in = new GZIPInputStream(new FileInputStream(previous));
+        try {
+            while (in.read() >= 0) {
+                // skip
+            }
+        } finally {
+            in.close();
+        }
+        handler.close();
+        assertEquals(1, lines().size());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.util.logging.Level;
+
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.rules.ExternalResource;
+
+/**
+ * Sets the tags and custom fields of the formatters created by a handler
+ * test, restoring the previous properties afterwards, and creates its records.
+ */
+public class HandlerFixture extends ExternalResource {
+
+    private static final String TAGS = "net.logstash.logging.formatter.LogstashUtilFormatter.tags";
+    private static final String FIELDS = "net.logstash.logging.formatter.LogstashUtilFormatter.fields";
+
+    private String tags;
+    private String fields;
+
+    @Override
+    protected void before() {
+        tags = System.getProperty(TAGS);
+        fields = System.getProperty(FIELDS);
+        System.setProperty(TAGS, "foo,bar");
+        System.setProperty(FIELDS, "");
+    }
+
+    @Override
+    protected void after() {
+        restore(TAGS, tags);
+        restore(FIELDS, fields);
+    }
+
+    private static void restore(final String key, final String value) {
+        if (value == null) {
+            System.clearProperty(key);
+        } else {
+            System.setProperty(key, value);
+        }
+    }
+
+    static ExtLogRecord record(final Level level, final String message) {
+        ExtLogRecord record = new ExtLogRecord(level, message, HandlerFixture.class.getName());
+        record.setLoggerName("test");
+        return record;
+    }
+
+    static ExtLogRecord record(final String message) {
+        return record(Level.INFO, message);
+    }
+}
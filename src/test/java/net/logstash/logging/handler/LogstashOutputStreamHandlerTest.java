@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.SimpleFormatter;
+
+import static net.logstash.logging.handler.HandlerFixture.record;
+import static org.junit.Assert.*;
+
+import net.logstash.logging.filter.DeduplicatingFilter;
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LogstashOutputStreamHandlerTest {
+
+    @Rule
+    public HandlerFixture fixture = new HandlerFixture();
+
+    private ExtLogRecord record;
+
+    @Before
+    public void setUp() {
+        record = record(Level.INFO, "caf\u00e9");
+    }
+
+    @Test
+    public void testPublish() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogstashUtilFormatter formatter = new LogstashUtilFormatter();
+        LogstashOutputStreamHandler handler = new LogstashOutputStreamHandler(out, formatter);
+        handler.publish(record);
+        handler.publish(record);
+        handler.flush();
+
+        final String event = formatter.format(record);
+        assertEquals(event + event, new String(out.toByteArray(), Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void testPublishWithOtherFormatter() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SimpleFormatter formatter = new SimpleFormatter();
+        LogstashOutputStreamHandler handler = new LogstashOutputStreamHandler(out, formatter);
+        handler.publish(record);
+        handler.flush();
+
+        assertEquals(formatter.format(record), new String(out.toByteArray(), Charset.forName("UTF-8")));
+    }
+
+    @Test
+    public void testFilterSummariesArePublishedToTheHandler() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogstashOutputStreamHandler handler = new LogstashOutputStreamHandler(out, new LogstashUtilFormatter());
+        DeduplicatingFilter filter = new DeduplicatingFilter();
+        filter.setWindow(60000);
+        handler.setFilter(filter);
+        assertSame(handler, filter.getHandler());
+        for (int i = 0; i < 3; i++) {
+            handler.publish(record);
+        }
+        handler.flush();
+        String[] events = new String(out.toByteArray(), Charset.forName("UTF-8")).split("\n");
+        assertEquals(2, events.length);
+        assertTrue(events[1].contains("\"repeat_count\":2"));
+
+        handler.close();
+        assertNull(filter.getHandler());
+    }
+
+    @Test
+    public void testPublishAfterClose() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogstashOutputStreamHandler handler = new LogstashOutputStreamHandler(out, new LogstashUtilFormatter());
+        handler.close();
+        handler.publish(record);
+        assertEquals(0, out.size());
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import static net.logstash.logging.handler.HandlerFixture.record;
+import static org.junit.Assert.*;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import net.logstash.logging.handler.AsyncLogstashFileHandler.OverflowPolicy;
+import net.logstash.logging.handler.LogstashSocketHandler.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ */
+public class LogstashSocketHandlerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public HandlerFixture fixture = new HandlerFixture();
+
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+    private final List<Thread> servers = Collections.synchronizedList(new ArrayList<Thread>());
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+    private ServerSocket serverSocket;
+    private DatagramSocket datagramSocket;
+    private LogstashSocketHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = new LogstashSocketHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setHost("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        handler.close();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (datagramSocket != null) {
+            datagramSocket.close();
+        }
+        for (Thread server : threads()) {
+            server.join(5000);
+        }
+    }
+
+    private Thread[] threads() {
+        synchronized (servers) {
+            return servers.toArray(new Thread[servers.size()]);
+        }
+    }
+
+    /**
+     * Accept connections on the port, reading lines until the server socket is closed.
+     */
+    private int startTcpServer(final int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket server = serverSocket;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        accepted.add(socket);
+                        final Thread reader = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    BufferedReader in = new BufferedReader(
+                                            new InputStreamReader(socket.getInputStream(), UTF_8));
+                                    String line;
+                                    while ((line = in.readLine()) != null) {
+                                        received.add(line);
+                                    }
+                                    socket.close();
+                                } catch (IOException ex) {
+                                    // closed
+                                }
+                            }
+                        });
+                        servers.add(reader);
+                        reader.start();
+                    }
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        });
+        servers.add(thread);
+        thread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    private List<String> receive(final int count) throws InterruptedException {
+        List<String> lines = new ArrayList<String>();
+        while (lines.size() < count) {
+            String line = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Received only " + lines.size() + " events", line);
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static JsonObject parse(final String line) {
+        return Json.createReader(new StringReader(line)).readObject();
+    }
+
+    @Test
+    public void testSendOverTcpFromManyThreads() throws Exception {
+        handler.setPort(startTcpServer(0));
+        handler.setBatchSize(4096);
+        handler.setQueueLength(64);
+        handler.setOverflowPolicy(OverflowPolicy.BLOCK);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        handler.publish(record(Level.INFO, thread + " message " + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.flush();
+
+        List<String> lines = receive(2000);
+        int[] next = new int[threads.length];
+        for (String line : lines) {
+            String[] message = parse(line).getString("message").split(" ");
+            int thread = Integer.parseInt(message[0]);
+            assertEquals(next[thread]++, Integer.parseInt(message[2]));
+        }
+        assertEquals(0, handler.getDroppedCount());
+        assertTrue(handler.isConnected());
+    }
+
+    @Test
+    public void testEventLargerThanBatch() throws Exception {
+        handler.setPort(startTcpServer(0));
+        handler.setBatchSize(1024);
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            message.append("long ");
+        }
+        handler.publish(record(Level.INFO, "short"));
+        handler.publish(record(Level.INFO, message.toString()));
+        handler.publish(record(Level.INFO, "short again"));
+
+        List<String> lines = receive(3);
+        assertEquals("short", parse(lines.get(0)).getString("message"));
+        assertEquals(message.toString(), parse(lines.get(1)).getString("message"));
+        assertEquals("short again", parse(lines.get(2)).getString("message"));
+    }
+
+    @Test
+    public void testReconnects() throws Exception {
+        // find a free port, nothing listens on it at first
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        handler.setPort(port);
+        handler.setReconnectDelay(10);
+        handler.setMaxReconnectDelay(50);
+        handler.publish(record(Level.INFO, "before"));
+        handler.flush();
+        assertFalse(handler.isConnected());
+
+        startTcpServer(port);
+        handler.publish(record(Level.INFO, "after"));
+        List<String> lines = receive(2);
+        assertEquals("before", parse(lines.get(0)).getString("message"));
+        assertEquals("after", parse(lines.get(1)).getString("message"));
+
+        // the server goes away and comes back
+        serverSocket.close();
+        synchronized (accepted) {
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+        }
+        for (Thread server : threads()) {
+            server.join(5000);
+        }
+        servers.clear();
+        startTcpServer(port);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(record(Level.INFO, "again " + i));
+            Thread.sleep(1);
+        }
+        // events written to the dead connection may be lost, the others arrive in order
+        int last = -1;
+        while (last < 99) {
+            String line = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(line);
+            int i = Integer.parseInt(parse(line).getString("message").substring("again ".length()));
+            assertTrue(i > last);
+            last = i;
+        }
+    }
+
+    @Test
+    public void testDropsWhenQueueIsFull() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        handler.setPort(port);
+        handler.setQueueLength(8);
+        handler.setBatchSize(1024);
+        handler.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(record(Level.INFO, "message " + i));
+        }
+        // besides the queue, only a batch is held while disconnected
+        assertTrue(handler.getDroppedCount() > 50);
+
+        handler.close();
+        // what was still queued is lost as well
+        assertEquals(100, handler.getDroppedCount());
+    }
+
+    @Test
+    public void testSpillsWhileDown() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        handler.setPort(port);
+        handler.setQueueLength(8);
+        handler.setBatchSize(1024);
+        handler.setOverflowPolicy(OverflowPolicy.BLOCK);
+        handler.setReconnectDelay(10);
+        handler.setMaxReconnectDelay(50);
+        handler.setSpillDirectory(new File(folder.getRoot(), "spill").getPath());
+        for (int i = 0; i < 1000; i++) {
+            handler.publish(record(Level.INFO, "message " + i));
+        }
+        // returns once on disk
+        handler.flush();
+        assertFalse(handler.isConnected());
+
+        startTcpServer(port);
+        handler.publish(record(Level.INFO, "message 1000"));
+        List<String> lines = receive(1001);
+        for (int i = 0; i <= 1000; i++) {
+            assertEquals("message " + i, parse(lines.get(i)).getString("message"));
+        }
+        assertEquals(0, handler.getDroppedCount());
+    }
+
+    @Test
+    public void testSpilledEventsAreSentAfterRestart() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+        final String spillDirectory = new File(folder.getRoot(), "spill").getPath();
+
+        handler.setPort(port);
+        handler.setSpillDirectory(spillDirectory);
+        for (int i = 0; i < 10; i++) {
+            handler.publish(record(Level.INFO, "message " + i));
+        }
+        handler.close();
+        assertEquals(0, handler.getDroppedCount());
+
+        startTcpServer(port);
+        handler = new LogstashSocketHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setHost("127.0.0.1");
+        handler.setPort(port);
+        handler.setSpillDirectory(spillDirectory);
+        handler.publish(record(Level.INFO, "message 10"));
+        List<String> lines = receive(11);
+        for (int i = 0; i <= 10; i++) {
+            assertEquals("message " + i, parse(lines.get(i)).getString("message"));
+        }
+    }
+
+    @Test
+    public void testSendOverUdp() throws Exception {
+        datagramSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        final DatagramSocket socket = datagramSocket;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[65536];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        String datagram = new String(packet.getData(), 0, packet.getLength(), UTF_8);
+                        assertTrue(datagram.endsWith("\n"));
+                        for (String line : datagram.split("\n")) {
+                            received.add(line);
+                        }
+                    }
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        });
+        servers.add(thread);
+        thread.start();
+
+        handler.setProtocol(Protocol.UDP);
+        handler.setPort(datagramSocket.getLocalPort());
+        handler.setBatchSize(2048);
+        for (int i = 0; i < 50; i++) {
+            handler.publish(record(Level.INFO, "message " + i));
+            // the receiver is no faster than the sender
+            Thread.sleep(1);
+        }
+        List<String> lines = receive(50);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("message " + i, parse(lines.get(i)).getString("message"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConfigurationIsFixedOnceStarted() throws Exception {
+        handler.setPort(startTcpServer(0));
+        handler.publish(record(Level.INFO, "message"));
+        handler.setPort(1234);
+    }
+}
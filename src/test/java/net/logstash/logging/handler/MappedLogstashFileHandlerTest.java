@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.ErrorManager;
+
+import static net.logstash.logging.handler.HandlerFixture.record;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import net.logstash.logging.formatter.LogstashUtilFormatter;
+import org.jboss.logmanager.ExtLogRecord;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ */
+public class MappedLogstashFileHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public HandlerFixture fixture = new HandlerFixture();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "logs/logstash.log");
+    }
+
+    private static MappedLogstashFileHandler handler() {
+        MappedLogstashFileHandler handler = new MappedLogstashFileHandler();
+        handler.setFormatter(new LogstashUtilFormatter());
+        handler.setRegionSize(4096);
+        return handler;
+    }
+
+    private static List<String> lines(final File file) throws IOException {
+        return Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+    }
+
+    private static void assertNoNul(final File file) throws IOException {
+        for (byte b : Files.readAllBytes(file.toPath())) {
+            assertNotEquals(0, b);
+        }
+    }
+
+    @Test
+    public void testPublishFromManyThreadsAcrossRegions() throws Exception {
+        final MappedLogstashFileHandler handler = handler();
+        handler.setFile(file);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        handler.publish(record("message " + thread + "-" + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        assertNoNul(file);
+        List<String> lines = lines(file);
+        assertEquals(2000, lines.size());
+        Set<String> messages = new HashSet<String>();
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("{\"@timestamp\":") && line.endsWith("}"));
+            messages.add(line.substring(line.indexOf("\"message\":"), line.indexOf(",\"logger_name\"")));
+        }
+        assertEquals(2000, messages.size());
+    }
+
+    @Test
+    public void testEventLargerThanRegion() throws Exception {
+        MappedLogstashFileHandler handler = handler();
+        handler.setFile(file);
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append('x');
+        }
+        handler.publish(record("before"));
+        handler.publish(record(message.toString()));
+        handler.publish(record("after"));
+        handler.close();
+
+        assertNoNul(file);
+        List<String> lines = lines(file);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).contains(message));
+        assertTrue(lines.get(2).contains("\"message\":\"after\""));
+    }
+
+    @Test
+    public void testRotateBySize() throws Exception {
+        MappedLogstashFileHandler handler = handler();
+        handler.setMaxFileSize(2048);
+        handler.setFile(file);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(record("message " + i));
+        }
+        handler.close();
+
+        int count = lines(file).size();
+        for (int index = 1; ; index++) {
+            File rotated = new File(file.getPath() + "." + index);
+            if (!rotated.exists()) {
+                assertTrue(index > 2);
+                break;
+            }
+            assertTrue(rotated.length() <= 2048);
+            assertNoNul(rotated);
+            count += lines(rotated).size();
+        }
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void testRegionsAreUnmapped() throws Exception {
+        // the mappings of the process, on Linux
+        File maps = new File("/proc/self/maps");
+        assumeTrue(maps.canRead());
+        MappedLogstashFileHandler handler = handler();
+        handler.setMaxFileSize(8192);
+        handler.setFile(file);
+        for (int i = 0; i < 200; i++) {
+            handler.publish(record("message " + i));
+        }
+        assertTrue(new File(file.getPath() + ".1").exists());
+        assertEquals(1, mappingsOf(maps, file.getName()));
+        handler.close();
+
+        assertEquals(0, mappingsOf(maps, file.getName()));
+        assertNoNul(file);
+    }
+
+    private static int mappingsOf(final File maps, final String name) throws IOException {
+        int count = 0;
+        for (String line : lines(maps)) {
+            if (line.contains(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws Exception {
+        file.getParentFile().mkdirs();
+        byte[] data = "{\"message\":\"before\"}\n".getBytes("UTF-8");
+        byte[] crashed = new byte[data.length + 4096];
+        System.arraycopy(data, 0, crashed, 0, data.length);
+        Files.write(file.toPath(), crashed);
+
+        MappedLogstashFileHandler handler = handler();
+        handler.setFile(file);
+        handler.publish(record("after"));
+        handler.close();
+
+        assertNoNul(file);
+        List<String> lines = lines(file);
+        assertEquals(2, lines.size());
+        assertEquals("{\"message\":\"before\"}", lines.get(0));
+        assertTrue(lines.get(1).contains("\"message\":\"after\""));
+    }
+
+    @Test
+    public void testTruncateWithoutAppend() throws Exception {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), "{\"message\":\"before\"}\n".getBytes("UTF-8"));
+
+        MappedLogstashFileHandler handler = handler();
+        handler.setAppend(false);
+        handler.setFile(file);
+        handler.publish(record("after"));
+        handler.close();
+
+        List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"message\":\"after\""));
+    }
+
+    @Test
+    public void testRotateByDate() throws Exception {
+        MappedLogstashFileHandler handler = handler();
+        handler.setSuffix(".yyyy-MM-dd");
+        handler.setFile(file);
+        ExtLogRecord tomorrow = record("tomorrow");
+        tomorrow.setMillis(System.currentTimeMillis() + 24L * 60 * 60 * 1000);
+        handler.publish(record("today"));
+        handler.publish(tomorrow);
+        handler.close();
+
+        File[] rotated = file.getParentFile().listFiles();
+        assertEquals(2, rotated.length);
+        List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"message\":\"tomorrow\""));
+    }
+
+    @Test
+    public void testFailedRotationIsRetried() throws Exception {
+        final List<Integer> errors = new ArrayList<Integer>();
+        MappedLogstashFileHandler handler = handler();
+        handler.setErrorManager(new ErrorManager() {
+            @Override
+            public synchronized void error(final String msg, final Exception ex, final int code) {
+                errors.add(code);
+            }
+        });
+        // the rotated file would be below the log file itself
+        handler.setSuffix("'/rotated/'yyyy-MM-dd");
+        handler.setFile(file);
+        ExtLogRecord tomorrow = record("tomorrow");
+        tomorrow.setMillis(System.currentTimeMillis() + 24L * 60 * 60 * 1000);
+        handler.publish(record("today"));
+        handler.publish(tomorrow);
+        assertEquals(Arrays.asList(ErrorManager.WRITE_FAILURE), errors);
+        handler.publish(record("after"));
+        handler.close();
+
+        List<String> lines = lines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\"message\":\"today\""));
+        assertTrue(lines.get(1).contains("\"message\":\"after\""));
+        assertNoNul(file);
+    }
+
+    @Test
+    public void testPeriodOf() {
+        assertEquals(Calendar.DAY_OF_MONTH, MappedLogstashFileHandler.periodOf(".yyyy-MM-dd"));
+        assertEquals(Calendar.HOUR_OF_DAY, MappedLogstashFileHandler.periodOf(".yyyy-MM-dd-HH"));
+        assertEquals(Calendar.MONTH, MappedLogstashFileHandler.periodOf(".yyyy-MM"));
+        assertEquals(Calendar.MONTH, MappedLogstashFileHandler.periodOf("'.day'-yyyy-MM"));
+        assertEquals(Calendar.MINUTE, MappedLogstashFileHandler.periodOf(".HHmm"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSuffixWithoutDate() {
+        MappedLogstashFileHandler.periodOf(".log");
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Karl Spies, Steven Post.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.logstash.logging.handler;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ */
+public class SpillQueueTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "spill");
+    }
+
+    private static void append(final SpillQueue queue, final String events) throws Exception {
+        queue.append(ByteBuffer.wrap(events.getBytes(UTF_8)), events.split("\n").length);
+    }
+
+    private static String take(final SpillQueue queue) throws Exception {
+        ByteBuffer chunk = queue.peek();
+        if (chunk == null) {
+            return null;
+        }
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        queue.ack();
+        return new String(bytes, UTF_8);
+    }
+
+    @Test
+    public void testChunksAreReadInOrderAcrossSegments() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 4096, 1 << 20, 0);
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            append(queue, "event " + i + " with some padding to fill segments\n");
+        }
+        // a chunk larger than a segment
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("large ");
+        }
+        append(queue, large.append('\n').toString());
+        assertTrue(directory.list().length > 2);
+
+        for (int i = 0; i < 100; i++) {
+            // peeking again returns the same chunk until acknowledged
+            assertEquals(queue.peek(), queue.peek());
+            assertEquals("event " + i + " with some padding to fill segments\n", take(queue));
+        }
+        assertEquals(large.toString(), take(queue));
+        assertNull(take(queue));
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.takeDropped());
+        queue.close();
+    }
+
+    @Test
+    public void testAcknowledgedChunksAreNotReplayedAfterRestart() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 4096, 1 << 20, 0);
+        for (int i = 0; i < 200; i++) {
+            append(queue, "event " + i + "\n");
+        }
+        for (int i = 0; i < 150; i++) {
+            take(queue);
+        }
+        // peeked but not acknowledged, so sent again
+        queue.peek();
+        queue.close();
+
+        queue = new SpillQueue(directory, 4096, 1 << 20, 0);
+        assertEquals("event 150\n", take(queue));
+        append(queue, "event 200\n");
+        for (int i = 151; i <= 200; i++) {
+            assertEquals("event " + i + "\n", take(queue));
+        }
+        assertNull(take(queue));
+        queue.close();
+    }
+
+    @Test
+    public void testTornChunkIsIgnored() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 4096, 1 << 20, 0);
+        append(queue, "first\n");
+        append(queue, "second\n");
+        queue.close();
+
+        // corrupt the second chunk, as if the process died while writing it
+        File segment = new File(directory, "0000000000000000.spill");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(SpillQueue.HEADER_SIZE + "first\n".length() + SpillQueue.HEADER_SIZE);
+            file.write('S');
+        } finally {
+            file.close();
+        }
+
+        queue = new SpillQueue(directory, 4096, 1 << 20, 0);
+        assertEquals("first\n", take(queue));
+        assertNull(take(queue));
+        // appended in place of the torn chunk
+        append(queue, "third\n");
+        assertEquals("third\n", take(queue));
+        queue.close();
+    }
+
+    @Test
+    public void testOldestSegmentsAreDroppedBeyondMaxSize() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 4096, 3 * 4096, 0);
+        byte[] event = new byte[1000];
+        Arrays.fill(event, (byte) 'x');
+        event[event.length - 1] = '\n';
+        for (int i = 0; i < 40; i++) {
+            queue.append(ByteBuffer.wrap(event), 1);
+        }
+        assertTrue(directory.list().length <= 4);
+        long dropped = queue.takeDropped();
+        assertTrue(dropped > 0);
+        assertEquals(0, queue.takeDropped());
+        int left = 0;
+        while (take(queue) != null) {
+            left++;
+        }
+        assertEquals(40, left + dropped);
+        queue.close();
+    }
+
+    @Test
+    public void testSegmentsExpire() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 4096, 1 << 20, 50);
+        append(queue, "old\n");
+        Thread.sleep(60);
+        // rolls to a new segment, the old one expires
+        append(queue, "new\n");
+        new File(directory, "0000000000000000.spill").setLastModified(System.currentTimeMillis() - 1000);
+        assertEquals("new\n", take(queue));
+        assertEquals(1, queue.takeDropped());
+        queue.close();
+    }
+}